@@ -0,0 +1,80 @@
+package com.example.android.productivityladder.data;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.productivityladder.data.WorkContract.ChangeEntry;
+import com.example.android.productivityladder.data.WorkContract.TaskEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that every single-task update adds exactly one record to the change feed, including a
+ * status change, which the position trigger follows with an update of its own.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ChangeFeedTest {
+
+    private static final String DATABASE_NAME = "test_change_feed.db";
+
+    private Context mContext;
+    private WorkDbHelper mHelper;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mHelper = new WorkDbHelper(mContext, DATABASE_NAME);
+        mDb = mHelper.getWritableDatabase();
+        mDb.execSQL("INSERT INTO " + TaskEntry.TABLE_NAME + " (" + TaskEntry.COLUMN_TASK_TITLE + ", "
+                + TaskEntry.COLUMN_TASK_STATUS + ", " + TaskEntry.COLUMN_TASK_POSITION + ") VALUES ('Pay rent', "
+                + TaskEntry.STATUS_NOT_STARTED + ", " + WorkDbHelper.POSITION_GAP + ")");
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void statusChangeIsOneRecord() {
+        assertEquals(1, recordsAdded("UPDATE " + TaskEntry.TABLE_NAME + " SET " + TaskEntry.COLUMN_TASK_STATUS
+                + " = " + TaskEntry.STATUS_COMPLETED));
+    }
+
+    @Test
+    public void editAndMoveAreOneRecordEach() {
+        assertEquals(1, recordsAdded("UPDATE " + TaskEntry.TABLE_NAME + " SET "
+                + TaskEntry.COLUMN_TASK_TITLE + " = 'Pay the rent'"));
+        assertEquals(1, recordsAdded("UPDATE " + TaskEntry.TABLE_NAME + " SET "
+                + TaskEntry.COLUMN_TASK_POSITION + " = " + TaskEntry.COLUMN_TASK_POSITION + " * 2"));
+        assertEquals(1, recordsAdded("UPDATE " + TaskEntry.TABLE_NAME + " SET "
+                + TaskEntry.COLUMN_TASK_TITLE + " = 'Rent', " + TaskEntry.COLUMN_TASK_STATUS + " = "
+                + TaskEntry.STATUS_IN_PROGRESS));
+    }
+
+    /**
+     * Run sql and return the number of change records it added.
+     */
+    private long recordsAdded(String sql) {
+        long last = lastSequence();
+        mDb.execSQL(sql);
+        return DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM " + ChangeEntry.TABLE_NAME
+                + " WHERE " + ChangeEntry.COLUMN_SEQUENCE + " > ?", new String[] { String.valueOf(last) });
+    }
+
+    private long lastSequence() {
+        return DatabaseUtils.longForQuery(mDb, "SELECT IFNULL(MAX(" + ChangeEntry.COLUMN_SEQUENCE + "), 0) FROM "
+                + ChangeEntry.TABLE_NAME, null);
+    }
+}
@@ -0,0 +1,239 @@
+package com.example.android.productivityladder.data;
+
+import android.net.Uri;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A sync server running inside the test process, speaking just enough HTTP/1.1 for
+ * {@link TaskSyncer}: POST /push and GET /changes, with gzipped JSON both ways. Every pushed
+ * change gets the next version number and replaces the task, so the last push wins, and the
+ * newest version handed out doubles as the sync token.
+ */
+class FakeSyncServer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ServerSocket mSocket;
+    private final Thread mThread;
+
+    /** The newest version of every task, by sync id; guarded by this */
+    private final Map<String, JSONObject> mTasks = new HashMap<>();
+    private long mVersion;
+
+    FakeSyncServer() throws IOException {
+        mSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "FakeSyncServer");
+        mThread.start();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + mSocket.getLocalPort();
+    }
+
+    void close() throws IOException {
+        mSocket.close();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serve() {
+        while (!mSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = mSocket.accept();
+            } catch (IOException e) {
+                // Closed
+                return;
+            }
+            try {
+                handle(socket);
+            } catch (IOException | JSONException e) {
+                throw new RuntimeException(e);
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Nothing left to do with it
+                }
+            }
+        }
+    }
+
+    private void handle(Socket socket) throws IOException, JSONException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        String[] requestLine = readLine(in).split(" ");
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+        }
+
+        byte[] body = readBody(in, headers);
+        if ("gzip".equals(headers.get("content-encoding"))) {
+            body = gunzip(body);
+        }
+
+        Uri uri = Uri.parse(requestLine[1]);
+        JSONObject response;
+        if ("POST".equals(requestLine[0]) && "/push".equals(uri.getPath())) {
+            response = push(new JSONObject(new String(body, UTF_8)));
+        } else if ("GET".equals(requestLine[0]) && "/changes".equals(uri.getPath())) {
+            String since = uri.getQueryParameter("since");
+            response = changes(since == null ? 0 : Long.parseLong(since),
+                    Integer.parseInt(uri.getQueryParameter("limit")));
+        } else {
+            respond(socket.getOutputStream(), "404 Not Found", new byte[0]);
+            return;
+        }
+        respond(socket.getOutputStream(), "200 OK", gzip(response.toString().getBytes(UTF_8)));
+    }
+
+    private synchronized JSONObject push(JSONObject request) throws JSONException {
+        JSONArray changes = request.getJSONArray("changes");
+        JSONArray versions = new JSONArray();
+        for (int i = 0; i < changes.length(); i++) {
+            JSONObject change = changes.getJSONObject(i);
+            change.remove("base_version");
+            change.put("version", ++mVersion);
+            mTasks.put(change.getString("id"), change);
+            versions.put(new JSONObject().put("id", change.getString("id")).put("version", mVersion));
+        }
+        return new JSONObject().put("versions", versions);
+    }
+
+    private synchronized JSONObject changes(long since, int limit) throws JSONException {
+        List<JSONObject> newer = new ArrayList<>();
+        for (JSONObject task : mTasks.values()) {
+            if (task.getLong("version") > since) {
+                newer.add(task);
+            }
+        }
+        Collections.sort(newer, new Comparator<JSONObject>() {
+            @Override
+            public int compare(JSONObject a, JSONObject b) {
+                return Long.compare(a.optLong("version"), b.optLong("version"));
+            }
+        });
+
+        JSONArray changes = new JSONArray();
+        long token = since;
+        for (int i = 0; i < newer.size() && i < limit; i++) {
+            changes.put(newer.get(i));
+            token = newer.get(i).getLong("version");
+        }
+        return new JSONObject()
+                .put("changes", changes)
+                .put("token", String.valueOf(token))
+                .put("more", newer.size() > limit);
+    }
+
+    private static void respond(OutputStream out, String status, byte[] body) throws IOException {
+        String head = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: application/json\r\n"
+                + (body.length > 0 ? "Content-Encoding: gzip\r\n" : "")
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        out.write(head.getBytes(UTF_8));
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * Read the request body, sent either with a Content-Length or in chunks.
+     */
+    private static byte[] readBody(InputStream in, Map<String, String> headers) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if ("chunked".equals(headers.get("transfer-encoding"))) {
+            int size;
+            while ((size = Integer.parseInt(readLine(in).split(";")[0].trim(), 16)) > 0) {
+                copy(in, body, size);
+                readLine(in);
+            }
+            // Trailers, up to the empty line
+            while (!readLine(in).isEmpty()) {
+                // Skip
+            }
+        } else if (headers.containsKey("content-length")) {
+            copy(in, body, Integer.parseInt(headers.get("content-length")));
+        }
+        return body.toByteArray();
+    }
+
+    private static void copy(InputStream in, ByteArrayOutputStream out, int count) throws IOException {
+        byte[] buffer = new byte[4096];
+        while (count > 0) {
+            int read = in.read(buffer, 0, Math.min(buffer.length, count));
+            if (read == -1) {
+                throw new IOException("Request cut off");
+            }
+            out.write(buffer, 0, read);
+            count -= read;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                throw new IOException("Request cut off");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        in.close();
+        return bytes.toByteArray();
+    }
+}
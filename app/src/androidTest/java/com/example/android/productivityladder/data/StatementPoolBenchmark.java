@@ -0,0 +1,138 @@
+package com.example.android.productivityladder.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.productivityladder.data.WorkContract.TaskEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the throughput of single-task status changes made the old way, with a selection
+ * string and a String[] built for every call, against the pooled compiled statement the
+ * provider now uses. Run it on a device and read the results from logcat under the tag of
+ * this class.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StatementPoolBenchmark {
+
+    private static final String LOG_TAG = StatementPoolBenchmark.class.getSimpleName();
+    private static final String DATABASE_NAME = "benchmark_statement_pool.db";
+    private static final int ROW_COUNT = 1000;
+    private static final int OPERATIONS = 20000;
+
+    private static final String UPDATE_STATUS_SQL = "UPDATE " + TaskEntry.TABLE_NAME + " SET "
+            + TaskEntry.COLUMN_TASK_STATUS + " = ? WHERE " + TaskEntry._ID + " = ?";
+
+    private Context mContext;
+    private WorkDbHelper mDbHelper;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDbHelper = new WorkDbHelper(mContext, DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void statusUpdatesPerSecond() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        insertTasks(db, ROW_COUNT);
+
+        // Warm up both paths, so neither pays for the first compile or page cache misses
+        updateWithSelection(db, 500);
+        StatementPool warmUpPool = new StatementPool();
+        updateWithPool(db, warmUpPool, 500);
+        warmUpPool.close();
+
+        long selectionNanos = updateWithSelection(db, OPERATIONS);
+        StatementPool pool = new StatementPool();
+        long poolNanos = updateWithPool(db, pool, OPERATIONS);
+        pool.close();
+
+        double selectionOps = opsPerSecond(selectionNanos);
+        double poolOps = opsPerSecond(poolNanos);
+        Log.i(LOG_TAG, "operations=" + OPERATIONS
+                + " selection=" + Math.round(selectionOps) + " ops/s"
+                + " pooled=" + Math.round(poolOps) + " ops/s"
+                + " speedup=" + String.format("%.2f", poolOps / selectionOps) + "x " + pool);
+
+        // Every update was compiled once and then reused
+        assertEquals("Statement pool: compiled=1 reused=" + (OPERATIONS - 1), pool.toString());
+        assertEquals(ROW_COUNT, db.compileStatement("SELECT COUNT(*) FROM " + TaskEntry.TABLE_NAME)
+                .simpleQueryForLong());
+    }
+
+    /**
+     * The path the provider used before: a new selection and String[] for every update.
+     */
+    private static long updateWithSelection(SQLiteDatabase db, int operations) {
+        ContentValues values = new ContentValues();
+        long start = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            values.put(TaskEntry.COLUMN_TASK_STATUS, i % 3);
+            String selection = TaskEntry._ID + "=?";
+            String[] selectionArgs = new String[] { String.valueOf(i % ROW_COUNT + 1) };
+            db.update(TaskEntry.TABLE_NAME, values, selection, selectionArgs);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * The path the provider uses now: a pooled statement with the values bound as longs.
+     */
+    private static long updateWithPool(SQLiteDatabase db, StatementPool pool, int operations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            SQLiteStatement statement = pool.acquire(db, UPDATE_STATUS_SQL);
+            try {
+                statement.bindLong(1, i % 3);
+                statement.bindLong(2, i % ROW_COUNT + 1);
+                statement.executeUpdateDelete();
+            } finally {
+                pool.release(db, UPDATE_STATUS_SQL, statement);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static double opsPerSecond(long nanos) {
+        return OPERATIONS * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+
+    private static void insertTasks(SQLiteDatabase db, int count) {
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + TaskEntry.TABLE_NAME + " ("
+                + TaskEntry.COLUMN_TASK_TITLE + ", "
+                + TaskEntry.COLUMN_TASK_STATUS + ") VALUES (?, ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                insert.bindString(1, "Task " + i);
+                insert.bindLong(2, i % 3);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+}
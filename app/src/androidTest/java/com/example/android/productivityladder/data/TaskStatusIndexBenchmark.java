@@ -0,0 +1,151 @@
+package com.example.android.productivityladder.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.productivityladder.data.WorkContract.TaskEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the latency of a tab query ("status = ?") at 100k tasks, before and after the
+ * version 5 migration adds the (status, _id) index. Run it on a device and read the
+ * results from logcat under the tag of this class.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TaskStatusIndexBenchmark {
+
+    private static final String LOG_TAG = TaskStatusIndexBenchmark.class.getSimpleName();
+    private static final String DATABASE_NAME = "benchmark_status_index.db";
+    private static final int ROW_COUNT = 100000;
+    private static final int RUNS = 15;
+
+    private Context mContext;
+    private WorkDbHelper mDbHelper;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDbHelper = new WorkDbHelper(mContext, DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void tabQueryLatencyBeforeAndAfterStatusIndex() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        insertTasks(db, ROW_COUNT);
+
+        // Go back to the version 4 schema, which had no index on status (version 9 replaced the
+        // one version 5 adds with the position index)
+        db.execSQL("DROP INDEX IF EXISTS tasks_status_idx");
+        db.execSQL("DROP INDEX IF EXISTS tasks_position_idx");
+        long before = medianTabQueryNanos(db);
+        String planBefore = queryPlan(db);
+
+        // Run the real migration step on the populated database
+        db.beginTransaction();
+        try {
+            mDbHelper.onUpgrade(db, 4, 5);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        long after = medianTabQueryNanos(db);
+        String planAfter = queryPlan(db);
+
+        Log.i(LOG_TAG, "rows=" + ROW_COUNT
+                + " before=" + before / 1000 + "us (" + planBefore + ")"
+                + " after=" + after / 1000 + "us (" + planAfter + ")");
+
+        // The migration must keep every row and the tab query must now use the index
+        assertEquals(ROW_COUNT, countTasks(db));
+        assertTrue(planAfter, planAfter.contains("tasks_status_idx"));
+    }
+
+    private static void insertTasks(SQLiteDatabase db, int count) {
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + TaskEntry.TABLE_NAME + " ("
+                + TaskEntry.COLUMN_TASK_TITLE + ", "
+                + TaskEntry.COLUMN_TASK_DETAILS + ", "
+                + TaskEntry.COLUMN_TASK_STATUS + ") VALUES (?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                insert.bindString(1, "Task " + i);
+                insert.bindString(2, "Details of task " + i);
+                // Most tasks end up done, like on a device that has been used for a while
+                insert.bindLong(3, i % 10 == 0 ? TaskEntry.STATUS_NOT_STARTED
+                        : i % 10 == 1 ? TaskEntry.STATUS_IN_PROGRESS : TaskEntry.STATUS_COMPLETED);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    /**
+     * Runs the To Do tab query several times, reading every row like the list does,
+     * and returns the median time.
+     */
+    private static long medianTabQueryNanos(SQLiteDatabase db) {
+        long[] timings = new long[RUNS];
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            Cursor cursor = db.query(TaskEntry.TABLE_NAME,
+                    new String[] { TaskEntry._ID, TaskEntry.COLUMN_TASK_TITLE, TaskEntry.COLUMN_TASK_DETAILS },
+                    TaskEntry.COLUMN_TASK_STATUS + " = ?",
+                    new String[] { String.valueOf(TaskEntry.STATUS_NOT_STARTED) }, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+            timings[run] = System.nanoTime() - start;
+        }
+        Arrays.sort(timings);
+        return timings[RUNS / 2];
+    }
+
+    private static String queryPlan(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN SELECT " + TaskEntry._ID + " FROM "
+                + TaskEntry.TABLE_NAME + " WHERE " + TaskEntry.COLUMN_TASK_STATUS + " = ?",
+                new String[] { String.valueOf(TaskEntry.STATUS_NOT_STARTED) });
+        try {
+            StringBuilder plan = new StringBuilder();
+            int detailColumn = cursor.getColumnIndex("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detailColumn));
+            }
+            return plan.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long countTasks(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + TaskEntry.TABLE_NAME, null);
+    }
+}
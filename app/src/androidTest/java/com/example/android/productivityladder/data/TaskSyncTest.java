@@ -0,0 +1,224 @@
+package com.example.android.productivityladder.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.productivityladder.data.WorkContract.TaskEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Syncs two databases, standing in for two devices, through a {@link FakeSyncServer} and checks
+ * that only the changed tasks travel and that both devices end up with the same tasks.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TaskSyncTest {
+
+    private static final String DATABASE_NAME_A = "test_sync_a.db";
+    private static final String DATABASE_NAME_B = "test_sync_b.db";
+    private static final String PREFERENCES_A = "test_sync_a";
+    private static final String PREFERENCES_B = "test_sync_b";
+
+    private static final String SYNCED_TASKS_SQL = "SELECT " + WorkDbHelper.COLUMN_TASK_SYNC_ID + ", "
+            + TaskEntry.COLUMN_TASK_TITLE + ", " + TaskEntry.COLUMN_TASK_DETAILS + ", "
+            + TaskEntry.COLUMN_TASK_STATUS + ", " + TaskEntry.COLUMN_TASK_CREATED + " FROM " + TaskEntry.TABLE_NAME
+            + " WHERE " + WorkDbHelper.LIVE_TASKS + " ORDER BY " + WorkDbHelper.COLUMN_TASK_SYNC_ID;
+
+    private static final TaskSyncer.Listener NO_LISTENER = new TaskSyncer.Listener() {
+        @Override
+        public void onTasksReceived() {
+        }
+    };
+
+    private Context mContext;
+    private FakeSyncServer mServer;
+    private WorkDbHelper mHelperA;
+    private WorkDbHelper mHelperB;
+    private TaskSyncer mSyncerA;
+    private TaskSyncer mSyncerB;
+
+    @Before
+    public void setUp() throws IOException {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME_A);
+        mContext.deleteDatabase(DATABASE_NAME_B);
+        mServer = new FakeSyncServer();
+        mHelperA = new WorkDbHelper(mContext, DATABASE_NAME_A);
+        mHelperB = new WorkDbHelper(mContext, DATABASE_NAME_B);
+        mSyncerA = new TaskSyncer(mHelperA, preferences(PREFERENCES_A), NO_LISTENER);
+        mSyncerB = new TaskSyncer(mHelperB, preferences(PREFERENCES_B), NO_LISTENER);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+        mHelperA.close();
+        mHelperB.close();
+        mContext.deleteDatabase(DATABASE_NAME_A);
+        mContext.deleteDatabase(DATABASE_NAME_B);
+        preferences(PREFERENCES_A);
+        preferences(PREFERENCES_B);
+    }
+
+    @Test
+    public void onlyChangesAreSynced() throws IOException {
+        SQLiteDatabase a = mHelperA.getWritableDatabase();
+        SQLiteDatabase b = mHelperB.getWritableDatabase();
+        insertTask(a, "Write report", "By Friday", TaskEntry.STATUS_NOT_STARTED);
+        insertTask(a, "Call plumber", null, TaskEntry.STATUS_IN_PROGRESS);
+        insertTask(a, "Pay rent", null, TaskEntry.STATUS_COMPLETED);
+
+        TaskSyncer.Result result = mSyncerA.sync(mServer.getUrl());
+        assertEquals(3, result.rowsSent);
+        // The server only hands back A's own changes, which have nothing new
+        assertEquals(0, result.rowsReceived);
+        assertTrue(result.bytesSent > 0);
+        assertTrue(result.bytesReceived > 0);
+
+        result = mSyncerB.sync(mServer.getUrl());
+        assertEquals(0, result.rowsSent);
+        assertEquals(3, result.rowsReceived);
+        assertSameTasks(a, b);
+
+        result = mSyncerA.sync(mServer.getUrl());
+        assertEquals(0, result.rowsSent);
+        assertEquals(0, result.rowsReceived);
+
+        b.execSQL("UPDATE " + TaskEntry.TABLE_NAME + " SET " + TaskEntry.COLUMN_TASK_STATUS + " = "
+                + TaskEntry.STATUS_COMPLETED + " WHERE " + TaskEntry.COLUMN_TASK_TITLE + " = 'Write report'");
+        b.execSQL("UPDATE " + TaskEntry.TABLE_NAME + " SET " + WorkDbHelper.COLUMN_TASK_DELETED + " = "
+                + WorkDbHelper.TASK_DELETED + " WHERE " + TaskEntry.COLUMN_TASK_TITLE + " = 'Call plumber'");
+        result = mSyncerB.sync(mServer.getUrl());
+        assertEquals(2, result.rowsSent);
+
+        result = mSyncerA.sync(mServer.getUrl());
+        assertEquals(0, result.rowsSent);
+        assertEquals(2, result.rowsReceived);
+        assertEquals(2, count(a));
+        assertSameTasks(a, b);
+    }
+
+    @Test
+    public void lastPushWins() throws IOException {
+        SQLiteDatabase a = mHelperA.getWritableDatabase();
+        SQLiteDatabase b = mHelperB.getWritableDatabase();
+        insertTask(a, "Plan trip", null, TaskEntry.STATUS_NOT_STARTED);
+        mSyncerA.sync(mServer.getUrl());
+        mSyncerB.sync(mServer.getUrl());
+
+        a.execSQL("UPDATE " + TaskEntry.TABLE_NAME + " SET " + TaskEntry.COLUMN_TASK_TITLE + " = 'Plan trip to Rome'");
+        b.execSQL("UPDATE " + TaskEntry.TABLE_NAME + " SET " + TaskEntry.COLUMN_TASK_TITLE + " = 'Plan trip to Oslo'");
+        mSyncerA.sync(mServer.getUrl());
+        // B pushes before it pulls, so its change goes over A's and A's never reaches B
+        TaskSyncer.Result result = mSyncerB.sync(mServer.getUrl());
+        assertEquals(1, result.rowsSent);
+        assertEquals(0, result.rowsReceived);
+        result = mSyncerA.sync(mServer.getUrl());
+        assertEquals(1, result.rowsReceived);
+
+        assertSameTasks(a, b);
+        assertEquals("Plan trip to Oslo", title(a));
+    }
+
+    @Test
+    public void deleteAllIsSynced() throws IOException {
+        SQLiteDatabase a = mHelperA.getWritableDatabase();
+        SQLiteDatabase b = mHelperB.getWritableDatabase();
+        for (int i = 0; i < TaskSyncer.BATCH_SIZE + 10; i++) {
+            insertTask(a, "Task " + i, null, i % 3);
+        }
+        mSyncerA.sync(mServer.getUrl());
+        assertEquals(TaskSyncer.BATCH_SIZE + 10, mSyncerB.sync(mServer.getUrl()).rowsReceived);
+
+        // Like WorkProvider: move the watermark past every task, then let the purger remove them
+        a.execSQL("UPDATE " + WorkDbHelper.TABLE_TASK_WATERMARK + " SET " + WorkDbHelper.COLUMN_DELETED_THROUGH
+                + " = (SELECT MAX(" + TaskEntry._ID + ") FROM " + TaskEntry.TABLE_NAME + ")");
+        a.execSQL("DELETE FROM " + TaskEntry.TABLE_NAME + " WHERE NOT (" + WorkDbHelper.LIVE_TASKS + ")");
+
+        assertEquals(TaskSyncer.BATCH_SIZE + 10, mSyncerA.sync(mServer.getUrl()).rowsSent);
+        assertEquals(TaskSyncer.BATCH_SIZE + 10, mSyncerB.sync(mServer.getUrl()).rowsReceived);
+        assertEquals(0, count(b));
+        assertEquals(0, count(a, "SELECT COUNT(*) FROM " + WorkDbHelper.TABLE_TASK_SYNC_DELETES));
+    }
+
+    private SharedPreferences preferences(String name) {
+        SharedPreferences preferences = mContext.getSharedPreferences(name, Context.MODE_PRIVATE);
+        preferences.edit().clear().commit();
+        return preferences;
+    }
+
+    private static void insertTask(SQLiteDatabase db, String title, String details, int status) {
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + TaskEntry.TABLE_NAME + " ("
+                + TaskEntry.COLUMN_TASK_TITLE + ", " + TaskEntry.COLUMN_TASK_DETAILS + ", "
+                + TaskEntry.COLUMN_TASK_STATUS + ", " + TaskEntry.COLUMN_TASK_POSITION + ", "
+                + TaskEntry.COLUMN_TASK_CREATED + ") VALUES (?, ?, ?, "
+                + WorkDbHelper.lastPosition("?3") + " + " + WorkDbHelper.POSITION_GAP + ", ?)");
+        try {
+            insert.bindString(1, title);
+            if (details == null) {
+                insert.bindNull(2);
+            } else {
+                insert.bindString(2, details);
+            }
+            insert.bindLong(3, status);
+            insert.bindLong(4, System.currentTimeMillis());
+            insert.executeInsert();
+        } finally {
+            insert.close();
+        }
+    }
+
+    private static void assertSameTasks(SQLiteDatabase expected, SQLiteDatabase actual) {
+        Cursor expectedRows = expected.rawQuery(SYNCED_TASKS_SQL, null);
+        Cursor actualRows = actual.rawQuery(SYNCED_TASKS_SQL, null);
+        try {
+            assertEquals(expectedRows.getCount(), actualRows.getCount());
+            while (expectedRows.moveToNext()) {
+                actualRows.moveToNext();
+                for (int i = 0; i < expectedRows.getColumnCount(); i++) {
+                    assertEquals("row " + expectedRows.getPosition() + " column " + i,
+                            expectedRows.getString(i), actualRows.getString(i));
+                }
+            }
+        } finally {
+            expectedRows.close();
+            actualRows.close();
+        }
+    }
+
+    private static String title(SQLiteDatabase db) {
+        SQLiteStatement statement = db.compileStatement("SELECT " + TaskEntry.COLUMN_TASK_TITLE
+                + " FROM " + TaskEntry.TABLE_NAME + " WHERE " + WorkDbHelper.LIVE_TASKS);
+        try {
+            return statement.simpleQueryForString();
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static long count(SQLiteDatabase db) {
+        return count(db, "SELECT COUNT(*) FROM " + TaskEntry.TABLE_NAME + " WHERE " + WorkDbHelper.LIVE_TASKS);
+    }
+
+    private static long count(SQLiteDatabase db, String sql) {
+        SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            return statement.simpleQueryForLong();
+        } finally {
+            statement.close();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.android.productivityladder.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.productivityladder.data.WorkContract.TaskEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that tab queries keep their latency while a long write transaction is open.
+ * Without write-ahead logging every reader would wait for the writer to commit.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WalContentionTest {
+
+    private static final String LOG_TAG = WalContentionTest.class.getSimpleName();
+    private static final String DATABASE_NAME = "test_wal_contention.db";
+    private static final int SEED_ROWS = 20000;
+    private static final int READERS = 3;
+    private static final long WRITE_TRANSACTION_MILLIS = 2000;
+
+    private Context mContext;
+    private WorkDbHelper mDbHelper;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDbHelper = new WorkDbHelper(mContext, DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void databaseUsesWriteAheadLog() {
+        Cursor cursor = mDbHelper.getWritableDatabase().rawQuery("PRAGMA journal_mode", null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("wal", cursor.getString(0).toLowerCase());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void readerLatencyStaysFlatDuringLongWriteTransaction() throws InterruptedException {
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            insertTasks(db, SEED_ROWS);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // Reader latency with nobody writing
+        final List<Long> idle = Collections.synchronizedList(new ArrayList<Long>());
+        runReaders(db, idle, new AtomicBoolean(false), 20);
+
+        // Reader latency while one writer keeps a transaction open for a couple of seconds
+        final List<Long> contended = Collections.synchronizedList(new ArrayList<Long>());
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final CountDownLatch writerStarted = new CountDownLatch(1);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                db.beginTransactionNonExclusive();
+                try {
+                    writerStarted.countDown();
+                    long end = System.currentTimeMillis() + WRITE_TRANSACTION_MILLIS;
+                    while (System.currentTimeMillis() < end) {
+                        insertTasks(db, 100);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                    writing.set(false);
+                }
+            }
+        });
+        writer.start();
+        assertTrue(writerStarted.await(5, TimeUnit.SECONDS));
+        runReaders(db, contended, writing, 1);
+        writer.join();
+
+        long idleP95 = percentile(idle, 95);
+        long contendedP95 = percentile(contended, 95);
+        long contendedMax = percentile(contended, 100);
+        Log.i(LOG_TAG, "idle p50=" + percentile(idle, 50) + "ms p95=" + idleP95 + "ms; "
+                + "during write p50=" + percentile(contended, 50) + "ms p95=" + contendedP95
+                + "ms max=" + contendedMax + "ms over " + contended.size() + " queries");
+
+        // Readers must have kept running while the transaction was open, not queued behind it
+        assertTrue("readers made no progress during the write", contended.size() > READERS);
+        assertTrue("a reader waited on the writer: " + contendedMax + "ms",
+                contendedMax < WRITE_TRANSACTION_MILLIS / 4);
+        assertTrue("reader p95 went from " + idleP95 + "ms to " + contendedP95 + "ms",
+                contendedP95 <= Math.max(idleP95 * 3, idleP95 + 50));
+    }
+
+    /**
+     * Run the Doing tab query from several threads, recording each latency in milliseconds.
+     * Every reader runs it at least minQueries times, and keeps going while keepGoing is true.
+     */
+    private static void runReaders(final SQLiteDatabase db, final List<Long> latencies,
+                                   final AtomicBoolean keepGoing, final int minQueries)
+            throws InterruptedException {
+        Thread[] readers = new Thread[READERS];
+        for (int i = 0; i < READERS; i++) {
+            readers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int queries = 0;
+                    do {
+                        long start = System.nanoTime();
+                        Cursor cursor = db.query(TaskEntry.TABLE_NAME,
+                                new String[] { TaskEntry._ID, TaskEntry.COLUMN_TASK_TITLE },
+                                TaskEntry.COLUMN_TASK_STATUS + " = ?",
+                                new String[] { String.valueOf(TaskEntry.STATUS_IN_PROGRESS) },
+                                null, null, null);
+                        try {
+                            cursor.getCount();
+                        } finally {
+                            cursor.close();
+                        }
+                        latencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                        queries++;
+                    } while (queries < minQueries || keepGoing.get());
+                }
+            });
+            readers[i].start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+    }
+
+    private static void insertTasks(SQLiteDatabase db, int count) {
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + TaskEntry.TABLE_NAME + " ("
+                + TaskEntry.COLUMN_TASK_TITLE + ", "
+                + TaskEntry.COLUMN_TASK_STATUS + ") VALUES (?, ?)");
+        try {
+            for (int i = 0; i < count; i++) {
+                insert.bindString(1, "Task " + i);
+                insert.bindLong(2, i % 3);
+                insert.executeInsert();
+            }
+        } finally {
+            insert.close();
+        }
+    }
+
+    private static long percentile(List<Long> values, int percentile) {
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+}
@@ -0,0 +1,256 @@
+package com.example.android.productivityladder.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Looper;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.productivityladder.data.WorkContract.ArchiveEntry;
+import com.example.android.productivityladder.data.WorkContract.ReminderEntry;
+import com.example.android.productivityladder.data.WorkContract.TaskCountEntry;
+import com.example.android.productivityladder.data.WorkContract.TaskEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes a snapshot of one database, restores it into another one that already holds other
+ * rows, and checks that both end up with exactly the same tasks, reminders and task counts.
+ * The restore rate is logged under the tag of this class.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WorkSnapshotTest {
+
+    private static final String LOG_TAG = WorkSnapshotTest.class.getSimpleName();
+    private static final String SOURCE_DATABASE_NAME = "test_snapshot_source.db";
+    private static final String TARGET_DATABASE_NAME = "test_snapshot_target.db";
+    private static final int TASK_COUNT = 50000;
+    private static final int REMINDER_COUNT = 1000;
+
+    private Context mContext;
+    private WorkDbHelper mSource;
+    private WorkDbHelper mTarget;
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(SOURCE_DATABASE_NAME);
+        mContext.deleteDatabase(TARGET_DATABASE_NAME);
+        mSource = new WorkDbHelper(mContext, SOURCE_DATABASE_NAME);
+        mTarget = new WorkDbHelper(mContext, TARGET_DATABASE_NAME);
+        mFile = new File(mContext.getCacheDir(), "test.snapshot");
+    }
+
+    @After
+    public void tearDown() {
+        mSource.close();
+        mTarget.close();
+        mContext.deleteDatabase(SOURCE_DATABASE_NAME);
+        mContext.deleteDatabase(TARGET_DATABASE_NAME);
+        mFile.delete();
+    }
+
+    @Test
+    public void restoreGivesBackTheSameRows() throws IOException {
+        SQLiteDatabase source = mSource.getWritableDatabase();
+        insertRows(source, TASK_COUNT, REMINDER_COUNT);
+        // Deleted tasks are left out of the snapshot, like everywhere else
+        source.execSQL("UPDATE " + TaskEntry.TABLE_NAME + " SET " + WorkDbHelper.COLUMN_TASK_DELETED
+                + " = 1 WHERE " + TaskEntry._ID + " % 100 = 0");
+        source.execSQL("DELETE FROM " + TaskEntry.TABLE_NAME + " WHERE " + WorkDbHelper.COLUMN_TASK_DELETED + " = 1");
+
+        // The rows already in the target, and its delete watermark, must not survive the restore
+        SQLiteDatabase target = mTarget.getWritableDatabase();
+        insertRows(target, 100, 10);
+        target.execSQL("UPDATE " + WorkDbHelper.TABLE_TASK_WATERMARK + " SET "
+                + WorkDbHelper.COLUMN_DELETED_THROUGH + " = 50");
+
+        int written = WorkSnapshot.write(source, mFile);
+        long start = System.nanoTime();
+        int restored = WorkSnapshot.restore(target, mFile);
+        long nanos = System.nanoTime() - start;
+        Log.i(LOG_TAG, "rows=" + restored + " bytes=" + mFile.length()
+                + " restore=" + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms"
+                + " (" + Math.round(restored * 1e9 / nanos) + " rows/s)");
+
+        assertEquals(TASK_COUNT - TASK_COUNT / 100 + REMINDER_COUNT, written);
+        assertEquals(written, restored);
+        assertSameRows(source, target, "SELECT " + TaskEntry._ID + ", " + TaskEntry.COLUMN_TASK_TITLE + ", "
+                + TaskEntry.COLUMN_TASK_DETAILS + ", " + TaskEntry.COLUMN_TASK_STATUS + ", "
+                + TaskEntry.COLUMN_TASK_POSITION + ", " + TaskEntry.COLUMN_TASK_CREATED + ", "
+                + TaskEntry.COLUMN_TASK_COMPLETED + " FROM " + TaskEntry.TABLE_NAME
+                + " WHERE " + WorkDbHelper.LIVE_TASKS + " ORDER BY " + TaskEntry._ID);
+        assertSameRows(source, target, "SELECT * FROM " + ReminderEntry.TABLE_NAME
+                + " ORDER BY " + ReminderEntry._ID);
+        assertSameRows(source, target, "SELECT * FROM " + TaskCountEntry.TABLE_NAME
+                + " ORDER BY " + TaskCountEntry.COLUMN_STATUS);
+    }
+
+    @Test
+    public void restoreKeepsSyncedTasks() throws IOException {
+        SQLiteDatabase db = mSource.getWritableDatabase();
+        insertRows(db, 100, 0);
+        // As if every task had been synced
+        db.execSQL("UPDATE " + TaskEntry.TABLE_NAME + " SET " + WorkDbHelper.COLUMN_TASK_VERSION + " = "
+                + TaskEntry._ID + ", " + WorkDbHelper.COLUMN_TASK_DIRTY + " = 0");
+        String syncIdsSql = "SELECT group_concat(" + WorkDbHelper.COLUMN_TASK_SYNC_ID + ") FROM (SELECT "
+                + WorkDbHelper.COLUMN_TASK_SYNC_ID + " FROM " + TaskEntry.TABLE_NAME + " ORDER BY " + TaskEntry._ID + ")";
+        String syncIds = DatabaseUtils.stringForQuery(db, syncIdsSql, null);
+        WorkSnapshot.write(db, mFile);
+
+        // After the snapshot, task 1 is pulled at a newer version and task 101 is added and synced
+        db.execSQL("UPDATE " + TaskEntry.TABLE_NAME + " SET " + WorkDbHelper.COLUMN_TASK_VERSION + " = 1000"
+                + " WHERE " + TaskEntry._ID + " = 1");
+        insertRows(db, 1, 0);
+        db.execSQL("UPDATE " + TaskEntry.TABLE_NAME + " SET " + WorkDbHelper.COLUMN_TASK_VERSION + " = 101, "
+                + WorkDbHelper.COLUMN_TASK_DIRTY + " = 0 WHERE " + TaskEntry._ID + " = 101");
+
+        WorkSnapshot.restore(db, mFile);
+        assertEquals(syncIds, DatabaseUtils.stringForQuery(db, syncIdsSql, null));
+        // Only task 101, which the restore removed, is deleted on the server
+        assertEquals(1, count(db, WorkDbHelper.TABLE_TASK_SYNC_DELETES));
+        // Task 1 went back to an older version than the server's, so it is sent again
+        assertEquals(1, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + TaskEntry.TABLE_NAME
+                + " WHERE " + WorkDbHelper.COLUMN_TASK_DIRTY + " > 0", null));
+    }
+
+    @Test
+    public void tasksArchivedAfterTheSnapshotCanBeArchivedAgain() throws IOException {
+        SQLiteDatabase db = mSource.getWritableDatabase();
+        insertRows(db, 30, 0);
+        // Every Done task was completed long ago
+        db.execSQL("UPDATE " + TaskEntry.TABLE_NAME + " SET " + TaskEntry.COLUMN_TASK_COMPLETED + " = 1"
+                + " WHERE " + TaskEntry.COLUMN_TASK_STATUS + " = " + TaskEntry.STATUS_COMPLETED);
+        String doneSql = "SELECT COUNT(*) FROM " + TaskEntry.TABLE_NAME + " WHERE " + TaskEntry.COLUMN_TASK_STATUS
+                + " = " + TaskEntry.STATUS_COMPLETED + " AND " + WorkDbHelper.LIVE_TASKS;
+        long done = DatabaseUtils.longForQuery(db, doneSql, null);
+        WorkSnapshot.write(db, mFile);
+
+        TaskArchiver archiver = new TaskArchiver(mSource, Looper.getMainLooper(),
+                mContext.getSharedPreferences("test_snapshot", Context.MODE_PRIVATE), new TaskArchiver.Listener() {
+                    @Override
+                    public void onArchived(int count) {
+                    }
+                });
+        archiver.archiveNow(System.currentTimeMillis());
+        assertEquals(done, count(db, ArchiveEntry.TABLE_NAME));
+
+        // The restore brings the archived tasks back, and they can be archived again
+        WorkSnapshot.restore(db, mFile);
+        assertEquals(done, DatabaseUtils.longForQuery(db, doneSql, null));
+        assertEquals(0, count(db, ArchiveEntry.TABLE_NAME));
+        archiver.archiveNow(System.currentTimeMillis());
+        assertEquals(0, DatabaseUtils.longForQuery(db, doneSql, null));
+        assertEquals(done, count(db, ArchiveEntry.TABLE_NAME));
+    }
+
+    @Test
+    public void damagedSnapshotChangesNothing() throws IOException {
+        insertRows(mSource.getWritableDatabase(), 1000, 10);
+        SQLiteDatabase target = mTarget.getWritableDatabase();
+        insertRows(target, 100, 10);
+        WorkSnapshot.write(mSource.getWritableDatabase(), mFile);
+
+        // Cut the file off in the middle of the tasks, trailer and all
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(file.length() / 2);
+        file.close();
+
+        try {
+            WorkSnapshot.restore(target, mFile);
+            fail("Restored a damaged snapshot");
+        } catch (IOException expected) {
+            // The restore has to roll back
+        }
+        assertEquals(100, count(target, TaskEntry.TABLE_NAME));
+        assertEquals(10, count(target, ReminderEntry.TABLE_NAME));
+    }
+
+    /**
+     * Insert tasks in every status, with a few repeated titles and some without details, and
+     * reminders.
+     */
+    private static void insertRows(SQLiteDatabase db, int tasks, int reminders) {
+        SQLiteStatement insertTask = db.compileStatement("INSERT INTO " + TaskEntry.TABLE_NAME + " ("
+                + TaskEntry.COLUMN_TASK_TITLE + ", " + TaskEntry.COLUMN_TASK_DETAILS + ", "
+                + TaskEntry.COLUMN_TASK_STATUS + ", " + TaskEntry.COLUMN_TASK_POSITION + ", "
+                + TaskEntry.COLUMN_TASK_CREATED + ") VALUES (?, ?, ?, ?, ?)");
+        SQLiteStatement insertReminder = db.compileStatement("INSERT INTO " + ReminderEntry.TABLE_NAME + " ("
+                + ReminderEntry.COLUMN_REMINDER_NAME + ", " + ReminderEntry.COLUMN_REMINDER_DETAILS + ", "
+                + ReminderEntry.COLUMN_TIME_HOURS + ", " + ReminderEntry.COLUMN_TIME_MINUTES + ") VALUES (?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 1; i <= tasks; i++) {
+                insertTask.bindString(1, i % 10 == 0 ? "Task " + i + " \u2713 \"quoted\"" : "Daily task " + (i % 7));
+                if (i % 3 == 0) {
+                    insertTask.bindNull(2);
+                } else {
+                    insertTask.bindString(2, "Details of task " + i);
+                }
+                insertTask.bindLong(3, i % 3);
+                insertTask.bindLong(4, i * WorkDbHelper.POSITION_GAP);
+                insertTask.bindLong(5, 1500000000000L + i);
+                insertTask.executeInsert();
+            }
+            for (int i = 1; i <= reminders; i++) {
+                insertReminder.bindString(1, "Reminder " + (i % 20));
+                if (i % 2 == 0) {
+                    insertReminder.bindNull(2);
+                } else {
+                    insertReminder.bindString(2, "Details of reminder " + i);
+                }
+                insertReminder.bindLong(3, i % 24);
+                insertReminder.bindLong(4, i % 60);
+                insertReminder.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insertTask.close();
+            insertReminder.close();
+        }
+    }
+
+    private static void assertSameRows(SQLiteDatabase expected, SQLiteDatabase actual, String sql) {
+        Cursor expectedRows = expected.rawQuery(sql, null);
+        Cursor actualRows = actual.rawQuery(sql, null);
+        try {
+            assertEquals(sql, expectedRows.getCount(), actualRows.getCount());
+            while (expectedRows.moveToNext()) {
+                actualRows.moveToNext();
+                for (int i = 0; i < expectedRows.getColumnCount(); i++) {
+                    assertEquals(sql + " row " + expectedRows.getPosition() + " column " + i,
+                            expectedRows.getString(i), actualRows.getString(i));
+                }
+            }
+        } finally {
+            expectedRows.close();
+            actualRows.close();
+        }
+    }
+
+    private static long count(SQLiteDatabase db, String table) {
+        SQLiteStatement statement = db.compileStatement("SELECT COUNT(*) FROM " + table);
+        try {
+            return statement.simpleQueryForLong();
+        } finally {
+            statement.close();
+        }
+    }
+}
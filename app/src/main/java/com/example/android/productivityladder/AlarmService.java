@@ -3,13 +3,12 @@ package com.example.android.productivityladder;
 import android.app.AlarmManager;
 import android.app.IntentService;
 import android.app.PendingIntent;
+import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 import com.example.android.productivityladder.data.WorkContract;
-import com.example.android.productivityladder.data.WorkDbHelper;
 import java.util.Calendar;
 import static android.content.ContentValues.TAG;
 
@@ -40,20 +39,19 @@ public class AlarmService extends IntentService {
 
     private void execute(String action, String notificationId) {
 
-        WorkDbHelper mDbHelper = new WorkDbHelper(AlarmService.this);
-        SQLiteDatabase database = mDbHelper.getReadableDatabase();
-
         AlarmManager am = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
         Cursor cursor = null;
         try {
-            cursor = database.query(WorkContract.ReminderEntry.TABLE_NAME, null, "_id = ?",
-                    new String[]{notificationId}, null, null, null);
+            // Go through the provider, which serves recently read reminders from its row cache
+            cursor = getContentResolver().query(ContentUris.withAppendedId(
+                    WorkContract.ReminderEntry.CONTENT_URI, Long.parseLong(notificationId)),
+                    null, null, null, null);
         } catch(Exception e) {
 
         }
 
         if(CREATE.equals(action)) {
-            if (cursor.moveToFirst()) {
+            if (cursor != null && cursor.moveToFirst()) {
                 Intent i = new Intent(this, AlarmReceiver.class);
                 i.putExtra("id", Long.parseLong(notificationId));
                 i.putExtra("name", cursor.getString(cursor.getColumnIndex(WorkContract.ReminderEntry.COLUMN_REMINDER_NAME)));
@@ -76,7 +74,8 @@ public class AlarmService extends IntentService {
                     i, PendingIntent.FLAG_UPDATE_CURRENT);
             am.cancel(pi);
         }
-        cursor.close();
-        mDbHelper.close();
+        if (cursor != null) {
+            cursor.close();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,242 @@
+package com.example.android.productivityladder;
+
+import android.app.LoaderManager;
+import android.content.Context;
+import android.content.CursorLoader;
+import android.content.Loader;
+import android.database.Cursor;
+import android.database.MergeCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.provider.BaseColumns;
+import android.widget.AbsListView;
+import android.widget.CursorAdapter;
+
+import com.example.android.productivityladder.data.WorkContract;
+
+import java.util.ArrayList;
+
+/**
+ * Feeds a {@link CursorAdapter} from a list URI one page at a time, using the provider's keyset
+ * pagination. The first page is loaded straight away and each following page once the list is
+ * scrolled close to the end of what has been loaded, so the rows held in memory depend on how far
+ * the user scrolled rather than on how big the table is.
+ *
+ * Every page has its own loader, so when the data changes each page re-runs a small range query
+ * instead of one query for the whole list.
+ *
+ * Lists sorted by a position column, like the task lists of one status, are paged by
+ * (position, _id) instead of _id.
+ */
+public class CursorPager implements LoaderManager.LoaderCallbacks<Cursor>, AbsListView.OnScrollListener {
+
+    /** Number of rows in a page */
+    public static final int PAGE_SIZE = 50;
+
+    /** Loader ids reserved for the pages of one list */
+    private static final int LOADER_ID_STRIDE = 1 << 16;
+
+    private final Context mContext;
+    private final LoaderManager mLoaderManager;
+    private final int mFirstLoaderId;
+    private final Uri mContentUri;
+    private final String[] mProjection;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private final String mPositionColumn;
+    private final CursorAdapter mAdapter;
+
+    /** The row each page starts after; the first page starts after _id 0 */
+    private final ArrayList<PageStart> mPageStarts = new ArrayList<>();
+
+    /**
+     * The loaded cursor of each page, or null while that page is loading for the first time.
+     * A page that is reloaded from a new start keeps its old cursor until the new one arrives.
+     */
+    private final ArrayList<Cursor> mPages = new ArrayList<>();
+
+    /** Sort key of the last row before a page */
+    private static final class PageStart {
+        final long mPosition;
+        final long mId;
+
+        PageStart(long position, long id) {
+            mPosition = position;
+            mId = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PageStart)) {
+                return false;
+            }
+            PageStart other = (PageStart) o;
+            return mPosition == other.mPosition && mId == other.mId;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (mPosition * 31 + mId);
+        }
+    }
+
+    /**
+     * Constructs a new {@link CursorPager} for a list in _id order.
+     *
+     * @param loaderId      id of the list's loader; its pages use the ids from loaderId * 65536 on
+     * @param contentUri    list URI to read the pages from
+     * @param projection    columns to read, must include {@link BaseColumns#_ID}
+     * @param adapter       adapter that gets the rows loaded so far
+     */
+    public CursorPager(Context context, LoaderManager loaderManager, int loaderId, Uri contentUri,
+                       String[] projection, String selection, String[] selectionArgs, CursorAdapter adapter) {
+        this(context, loaderManager, loaderId, contentUri, projection, selection, selectionArgs, null, adapter);
+    }
+
+    /**
+     * Constructs a new {@link CursorPager} for a list sorted by a position column and then _id,
+     * like the task lists of one status.
+     *
+     * @param positionColumn    the position column, which must be in the projection too;
+     *                          null for a list in _id order
+     */
+    public CursorPager(Context context, LoaderManager loaderManager, int loaderId, Uri contentUri,
+                       String[] projection, String selection, String[] selectionArgs, String positionColumn,
+                       CursorAdapter adapter) {
+        mContext = context;
+        mLoaderManager = loaderManager;
+        mFirstLoaderId = loaderId * LOADER_ID_STRIDE;
+        mContentUri = contentUri;
+        mProjection = projection;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mPositionColumn = positionColumn;
+        mAdapter = adapter;
+    }
+
+    /**
+     * Start loading the first page. Pages left over from a previous instance of the list
+     * (e.g. before a configuration change) are dropped.
+     */
+    public void start() {
+        for (int id = mFirstLoaderId + 1; mLoaderManager.getLoader(id) != null; id++) {
+            mLoaderManager.destroyLoader(id);
+        }
+        mPageStarts.clear();
+        mPages.clear();
+        mPageStarts.add(new PageStart(0, 0));
+        mPages.add(null);
+        mLoaderManager.initLoader(mFirstLoaderId, null, this);
+    }
+
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        int page = id - mFirstLoaderId;
+        PageStart start = mPageStarts.get(page);
+        Uri pageUri = page == 0 || mPositionColumn == null
+                ? WorkContract.buildPageUri(mContentUri, start.mId, PAGE_SIZE)
+                : WorkContract.buildPageUri(mContentUri, start.mPosition, start.mId, PAGE_SIZE);
+        return new CursorLoader(mContext, pageUri, mProjection, mSelection, mSelectionArgs, null);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        int page = loader.getId() - mFirstLoaderId;
+        if (page >= mPages.size()) {
+            // A page that has been dropped in the meantime
+            return;
+        }
+        mPages.set(page, data);
+
+        // If rows were added, removed or moved in this page, the next page no longer starts
+        // where this one ends. Reload it from the new end, keeping its old rows on screen until
+        // then; its own reload does the same for the page after it. Only a page that comes back
+        // short ends the list, so the pages after it are dropped.
+        int next = page + 1;
+        if (next < mPageStarts.size()) {
+            if (data == null || data.getCount() < PAGE_SIZE) {
+                dropPagesFrom(next);
+            } else {
+                PageStart end = lastRow(data);
+                if (!end.equals(mPageStarts.get(next))) {
+                    mPageStarts.set(next, end);
+                    mLoaderManager.restartLoader(mFirstLoaderId + next, null, this);
+                }
+            }
+        }
+        updateAdapter();
+    }
+
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        int page = loader.getId() - mFirstLoaderId;
+        if (page < mPages.size()) {
+            mPages.set(page, null);
+            updateAdapter();
+        }
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        // Ask for the next page half a page before the user reaches the end of the list
+        if (totalItemCount > 0 && firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_SIZE / 2) {
+            loadNextPage();
+        }
+    }
+
+    private void loadNextPage() {
+        if (mPages.isEmpty()) {
+            return;
+        }
+        int last = mPages.size() - 1;
+        Cursor lastPage = mPages.get(last);
+        // Wait for the last page to finish loading, and stop once a page comes back short
+        if (lastPage == null || lastPage.getCount() < PAGE_SIZE) {
+            return;
+        }
+        mPageStarts.add(lastRow(lastPage));
+        mPages.add(null);
+        mLoaderManager.initLoader(mFirstLoaderId + last + 1, null, this);
+    }
+
+    private void dropPagesFrom(int page) {
+        for (int i = mPages.size() - 1; i >= page; i--) {
+            mPages.remove(i);
+            mPageStarts.remove(i);
+            mLoaderManager.destroyLoader(mFirstLoaderId + i);
+        }
+    }
+
+    /**
+     * Show the pages that have been loaded so far, up to the first one that is still loading.
+     */
+    private void updateAdapter() {
+        ArrayList<Cursor> loaded = new ArrayList<>();
+        for (Cursor page : mPages) {
+            if (page == null) {
+                break;
+            }
+            loaded.add(page);
+        }
+        // The loaders own the page cursors and close them, so the old cursor isn't closed here
+        if (loaded.isEmpty()) {
+            mAdapter.swapCursor(null);
+        } else if (loaded.size() == 1) {
+            mAdapter.swapCursor(loaded.get(0));
+        } else {
+            mAdapter.swapCursor(new MergeCursor(loaded.toArray(new Cursor[loaded.size()])));
+        }
+    }
+
+    private PageStart lastRow(Cursor page) {
+        if (!page.moveToLast()) {
+            return new PageStart(0, 0);
+        }
+        long position = mPositionColumn == null ? 0 : page.getLong(page.getColumnIndexOrThrow(mPositionColumn));
+        return new PageStart(position, page.getLong(page.getColumnIndexOrThrow(BaseColumns._ID)));
+    }
+}
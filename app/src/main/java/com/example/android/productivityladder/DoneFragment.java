@@ -10,22 +10,19 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.AdapterView;
 import android.widget.ListView;
-import android.app.LoaderManager;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.CursorLoader;
 import android.content.Intent;
-import android.content.Loader;
-import android.database.Cursor;
 import android.net.Uri;
 import android.util.Log;
 
 import com.example.android.productivityladder.data.WorkContract.TaskEntry;
 
-public class DoneFragment extends Fragment implements LoaderManager.LoaderCallbacks<Cursor> {
+public class DoneFragment extends Fragment {
 
     private static final int TASK_LOADER = 3;
     TaskCursorAdapter mTaskCursorAdapter;
+    CursorPager mTaskPager;
 
     public DoneFragment() {
         // Required empty public constructor
@@ -66,8 +63,21 @@ public class DoneFragment extends Fragment implements LoaderManager.LoaderCallba
                 startActivity(intent);
             }
         });
+        // Load the tasks a page at a time, fetching the next page as the list is scrolled.
+        // The status URI is only notified of changes to tasks in this tab.
+        String[] projection = {
+                TaskEntry._ID,
+                TaskEntry.COLUMN_TASK_TITLE,
+                TaskEntry.COLUMN_TASK_DETAILS,
+                TaskEntry.COLUMN_TASK_POSITION};
+        mTaskPager = new CursorPager(getActivity(), getActivity().getLoaderManager(), TASK_LOADER,
+                TaskEntry.buildStatusUri(TaskEntry.STATUS_COMPLETED), projection, null, null,
+                TaskEntry.COLUMN_TASK_POSITION, mTaskCursorAdapter);
+        taskListView.setOnScrollListener(mTaskPager);
+        // Long-press a task to drag it to another place in the list
+        TaskReorderListener.attach(taskListView);
         // Kick off the loader
-        getActivity().getLoaderManager().initLoader(TASK_LOADER, null, this);
+        mTaskPager.start();
 
         return view;
     }
@@ -108,27 +118,6 @@ public class DoneFragment extends Fragment implements LoaderManager.LoaderCallba
         return super.onOptionsItemSelected(item);
     }
 
-    @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        String selectionArgs[] = {"2"};
-        String[] projection = {
-                TaskEntry._ID,
-                TaskEntry.COLUMN_TASK_TITLE,
-                TaskEntry.COLUMN_TASK_DETAILS};
-        return new CursorLoader(this.getActivity(), TaskEntry.CONTENT_URI, projection,
-                TaskEntry.COLUMN_TASK_STATUS + " = ?", selectionArgs, null);
-    }
-
-    @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        mTaskCursorAdapter.swapCursor(data);
-    }
-
-    @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
-        mTaskCursorAdapter.swapCursor(null);
-    }
-
     /**
      * Helper method to delete all tasks in the database.
      */
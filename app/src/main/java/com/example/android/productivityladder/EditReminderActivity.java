@@ -20,7 +20,9 @@ import android.view.View;
 import android.widget.EditText;
 import android.widget.TimePicker;
 import android.widget.Toast;
+import com.example.android.productivityladder.data.WorkContract;
 import com.example.android.productivityladder.data.WorkContract.ReminderEntry;
+import com.example.android.productivityladder.data.WriteConflictException;
 import static com.example.android.productivityladder.AlarmService.CANCEL;
 import static com.example.android.productivityladder.AlarmService.CREATE;
 
@@ -40,6 +42,13 @@ public class EditReminderActivity extends AppCompatActivity implements LoaderMan
     /** EditText field to enter the reminder's time */
     private TimePicker mReminderTimePicker;
 
+    /**
+     * Revision of the reminder shown in the editor, or -1 until it is loaded. Saving only
+     * applies if the reminder is still at this revision, so a change made elsewhere isn't
+     * overwritten.
+     */
+    private long mRevision = -1;
+
     /** Boolean flag that keeps track of whether the reminder has been edited (true) or not (false) */
     private boolean mReminderHasChanged = false;
     /**
@@ -93,9 +102,10 @@ public class EditReminderActivity extends AppCompatActivity implements LoaderMan
 
 
     /**
-     * Get user input from editor and save new reminder into database.
+     * Get user input from editor and save new reminder into database. Returns false if the
+     * reminder was changed elsewhere since it was loaded, in which case nothing was saved.
      */
-    private void saveReminder() {
+    private boolean saveReminder() {
         // Read from input fields
         // Use trim to eliminate leading or trailing white space
         String nameString = mNameEditText.getText().toString().trim();
@@ -109,7 +119,7 @@ public class EditReminderActivity extends AppCompatActivity implements LoaderMan
                 && TextUtils.isEmpty(detailsString)) {
             // Since no fields were modified, we can return early without creating a new reminder.
             // No need to create ContentValues and no need to do any ContentProvider operations.
-            return;
+            return true;
         }
 
         // Create a ContentValues object where column names are the keys,
@@ -144,7 +154,18 @@ public class EditReminderActivity extends AppCompatActivity implements LoaderMan
             // and pass in the new ContentValues. Pass in null for the selection and selection args
             // because mCurrentReminderUri will already identify the correct row in the database that
             // we want to modify.
-            int rowsAffected = getContentResolver().update(mCurrentReminderUri, values, null, null);
+            Uri uri = mRevision == -1 ? mCurrentReminderUri
+                    : WorkContract.buildRevisionUri(mCurrentReminderUri, mRevision);
+            int rowsAffected;
+            try {
+                rowsAffected = getContentResolver().update(uri, values, null, null);
+            } catch (WriteConflictException e) {
+                // Keep the user's edits on screen; saving again overwrites the other change
+                mRevision = e.getCurrentRevision();
+                Toast.makeText(this, getString(R.string.editor_update_reminder_conflict),
+                        Toast.LENGTH_LONG).show();
+                return false;
+            }
             // Show a toast message depending on whether or not the update was successful.
             if (rowsAffected == 0) {
                 // If no rows were affected, then there was an error with the update.
@@ -160,6 +181,7 @@ public class EditReminderActivity extends AppCompatActivity implements LoaderMan
             sendIntent.putExtra("notificationId", Long.toString(ContentUris.parseId(mCurrentReminderUri)));
             startService(sendIntent);
         }
+        return true;
     }
 
     @Override
@@ -191,10 +213,10 @@ public class EditReminderActivity extends AppCompatActivity implements LoaderMan
         switch (item.getItemId()) {
             // Respond to a click on the "Save" menu option
             case R.id.action_save:
-                // Save reminder to database
-                saveReminder();
-                // Exit activity
-                finish();
+                // Save reminder to database, and exit activity unless the reminder was changed elsewhere
+                if (saveReminder()) {
+                    finish();
+                }
                 return true;
             // Respond to a click on the "Delete" menu option
             case R.id.action_delete:
@@ -236,7 +258,8 @@ public class EditReminderActivity extends AppCompatActivity implements LoaderMan
                 ReminderEntry.COLUMN_REMINDER_NAME,
                 ReminderEntry.COLUMN_REMINDER_DETAILS,
                 ReminderEntry.COLUMN_TIME_MINUTES,
-                ReminderEntry.COLUMN_TIME_HOURS };
+                ReminderEntry.COLUMN_TIME_HOURS,
+                ReminderEntry.COLUMN_REMINDER_REVISION };
         if(mCurrentReminderUri!=null)
         // This loader will execute the ContentProvider's query method on a background thread
         return new android.support.v4.content.CursorLoader(this,   // Parent activity context
@@ -255,9 +278,15 @@ public class EditReminderActivity extends AppCompatActivity implements LoaderMan
         if (cursor == null || cursor.getCount() < 1) {
             return;
         }
+        // The loader reloads when the reminder is changed elsewhere. Don't replace the user's
+        // edits with that change; saving them will report the conflict instead.
+        if (mReminderHasChanged && mRevision != -1) {
+            return;
+        }
         // Proceed with moving to the first row of the cursor and reading data from it
         // (This should be the only row in the cursor)
         if (cursor.moveToFirst()) {
+            mRevision = cursor.getLong(cursor.getColumnIndex(ReminderEntry.COLUMN_REMINDER_REVISION));
             // Find the columns of reminder attributes that we're interested in
             int nameColumnIndex = cursor.getColumnIndex(ReminderEntry.COLUMN_REMINDER_NAME);
             int detailsColumnIndex = cursor.getColumnIndex(ReminderEntry.COLUMN_REMINDER_DETAILS);
@@ -22,7 +22,9 @@ import android.widget.EditText;
 import android.widget.Spinner;
 import android.widget.Toast;
 
+import com.example.android.productivityladder.data.WorkContract;
 import com.example.android.productivityladder.data.WorkContract.TaskEntry;
+import com.example.android.productivityladder.data.WriteConflictException;
 
 public class EditTaskActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
 
@@ -47,6 +49,12 @@ public class EditTaskActivity extends AppCompatActivity implements LoaderManager
      */
     private int mStatus = TaskEntry.STATUS_NOT_STARTED;
 
+    /**
+     * Revision of the task shown in the editor, or -1 until it is loaded. Saving only applies
+     * if the task is still at this revision, so a change made elsewhere isn't overwritten.
+     */
+    private long mRevision = -1;
+
     /** Boolean flag that keeps track of whether the task has been edited (true) or not (false) */
     private boolean mTaskHasChanged = false;
     /**
@@ -139,9 +147,10 @@ public class EditTaskActivity extends AppCompatActivity implements LoaderManager
     }
 
     /**
-     * Get user input from editor and save new task into database.
+     * Get user input from editor and save new task into database. Returns false if the task
+     * was changed elsewhere since it was loaded, in which case nothing was saved.
      */
-    private void saveTask() {
+    private boolean saveTask() {
         // Read from input fields
         // Use trim to eliminate leading or trailing white space
         String titleString = mTitleEditText.getText().toString().trim();
@@ -152,7 +161,7 @@ public class EditTaskActivity extends AppCompatActivity implements LoaderManager
                 && TextUtils.isEmpty(detailsString) && mStatus == TaskEntry.STATUS_NOT_STARTED) {
             // Since no fields were modified, we can return early without creating a new task.
             // No need to create ContentValues and no need to do any ContentProvider operations.
-            return;
+            return true;
         }
 
         // Create a ContentValues object where column names are the keys,
@@ -182,7 +191,18 @@ public class EditTaskActivity extends AppCompatActivity implements LoaderManager
             // and pass in the new ContentValues. Pass in null for the selection and selection args
             // because mCurrenttaskUri will already identify the correct row in the database that
             // we want to modify.
-            int rowsAffected = getContentResolver().update(mCurrentTaskUri, values, null, null);
+            Uri uri = mRevision == -1 ? mCurrentTaskUri
+                    : WorkContract.buildRevisionUri(mCurrentTaskUri, mRevision);
+            int rowsAffected;
+            try {
+                rowsAffected = getContentResolver().update(uri, values, null, null);
+            } catch (WriteConflictException e) {
+                // Keep the user's edits on screen; saving again overwrites the other change
+                mRevision = e.getCurrentRevision();
+                Toast.makeText(this, getString(R.string.editor_update_task_conflict),
+                        Toast.LENGTH_LONG).show();
+                return false;
+            }
             // Show a toast message depending on whether or not the update was successful.
             if (rowsAffected == 0) {
                 // If no rows were affected, then there was an error with the update.
@@ -194,6 +214,7 @@ public class EditTaskActivity extends AppCompatActivity implements LoaderManager
                         Toast.LENGTH_SHORT).show();
             }
         }
+        return true;
     }
 
     @Override
@@ -225,10 +246,10 @@ public class EditTaskActivity extends AppCompatActivity implements LoaderManager
         switch (item.getItemId()) {
             // Respond to a click on the "Save" menu option
             case R.id.action_save:
-                // Save task to database
-                saveTask();
-                // Exit activity
-                finish();
+                // Save task to database, and exit activity unless the task was changed elsewhere
+                if (saveTask()) {
+                    finish();
+                }
                 return true;
             // Respond to a click on the "Delete" menu option
             case R.id.action_delete:
@@ -269,7 +290,8 @@ public class EditTaskActivity extends AppCompatActivity implements LoaderManager
                 TaskEntry._ID,
                 TaskEntry.COLUMN_TASK_TITLE,
                 TaskEntry.COLUMN_TASK_DETAILS,
-                TaskEntry.COLUMN_TASK_STATUS };
+                TaskEntry.COLUMN_TASK_STATUS,
+                TaskEntry.COLUMN_TASK_REVISION };
         if(mCurrentTaskUri!=null)
             // This loader will execute the ContentProvider's query method on a background thread
             return new android.support.v4.content.CursorLoader(this,   // Parent activity context
@@ -288,9 +310,15 @@ public class EditTaskActivity extends AppCompatActivity implements LoaderManager
         if (cursor == null || cursor.getCount() < 1) {
             return;
         }
+        // The loader reloads when the task is changed elsewhere. Don't replace the user's edits
+        // with that change; saving them will report the conflict instead.
+        if (mTaskHasChanged && mRevision != -1) {
+            return;
+        }
         // Proceed with moving to the first row of the cursor and reading data from it
         // (This should be the only row in the cursor)
         if (cursor.moveToFirst()) {
+            mRevision = cursor.getLong(cursor.getColumnIndex(TaskEntry.COLUMN_TASK_REVISION));
             // Find the columns of task attributes that we're interested in
             int titleColumnIndex = cursor.getColumnIndex(TaskEntry.COLUMN_TASK_TITLE);
             int detailsColumnIndex = cursor.getColumnIndex(TaskEntry.COLUMN_TASK_DETAILS);
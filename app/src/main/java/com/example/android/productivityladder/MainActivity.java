@@ -1,6 +1,7 @@
 package com.example.android.productivityladder;
 
 import android.content.Intent;
+import android.database.Cursor;
 import android.support.design.widget.TabLayout;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v7.app.AppCompatActivity;
@@ -8,13 +9,23 @@ import android.support.v7.widget.Toolbar;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentPagerAdapter;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.CursorLoader;
+import android.support.v4.content.Loader;
 import android.support.v4.view.ViewPager;
+import android.os.Build;
 import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 
-public class MainActivity extends AppCompatActivity {
+import com.example.android.productivityladder.data.WorkContract.TaskCountEntry;
+import com.example.android.productivityladder.data.WorkContract.TaskEntry;
+
+public class MainActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+
+    /** Identifier for the task counts loader */
+    private static final int TASK_COUNTS_LOADER = 0;
 
     /**
      * The {@link android.support.v4.view.PagerAdapter} that will provide
@@ -31,6 +42,11 @@ public class MainActivity extends AppCompatActivity {
      */
     private ViewPager mViewPager;
 
+    /**
+     * The {@link TabLayout} whose task tabs show the number of tasks in them.
+     */
+    private TabLayout mTabLayout;
+
     Fragment reminderFragment;
     Fragment toDoFragment;
     Fragment doingFragment;
@@ -51,10 +67,18 @@ public class MainActivity extends AppCompatActivity {
         mViewPager = (ViewPager) findViewById(R.id.container);
         mViewPager.setAdapter(mSectionsPagerAdapter);
 
-        TabLayout tabLayout = (TabLayout) findViewById(R.id.tabs);
+        mTabLayout = (TabLayout) findViewById(R.id.tabs);
+
+        mViewPager.addOnPageChangeListener(new TabLayout.TabLayoutOnPageChangeListener(mTabLayout));
+        mTabLayout.addOnTabSelectedListener(new TabLayout.ViewPagerOnTabSelectedListener(mViewPager));
+
+        // Keep the task counts on the tabs up to date; it's a read of one row per status
+        getSupportLoaderManager().initLoader(TASK_COUNTS_LOADER, null, this);
 
-        mViewPager.addOnPageChangeListener(new TabLayout.TabLayoutOnPageChangeListener(tabLayout));
-        tabLayout.addOnTabSelectedListener(new TabLayout.ViewPagerOnTabSelectedListener(mViewPager));
+        // Compact and check the database now and then while the phone is idle
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            MaintenanceJobService.schedule(this);
+        }
 
         reminderFragment = new ReminderFragment();
         toDoFragment = new ToDoFragment();
@@ -109,6 +133,57 @@ public class MainActivity extends AppCompatActivity {
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        String[] projection = {
+                TaskCountEntry.COLUMN_STATUS,
+                TaskCountEntry.COLUMN_COUNT };
+        return new CursorLoader(this, TaskCountEntry.CONTENT_URI, projection, null, null, null);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+        if (cursor == null) {
+            return;
+        }
+        int statusColumnIndex = cursor.getColumnIndex(TaskCountEntry.COLUMN_STATUS);
+        int countColumnIndex = cursor.getColumnIndex(TaskCountEntry.COLUMN_COUNT);
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            int status = cursor.getInt(statusColumnIndex);
+            int count = cursor.getInt(countColumnIndex);
+            switch (status) {
+                case TaskEntry.STATUS_NOT_STARTED:
+                    setTabCount(1, R.string.tab_text_2, count);
+                    break;
+                case TaskEntry.STATUS_IN_PROGRESS:
+                    setTabCount(2, R.string.tab_text_3, count);
+                    break;
+                case TaskEntry.STATUS_COMPLETED:
+                    setTabCount(3, R.string.tab_text_4, count);
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        // Go back to the plain tab titles
+        mTabLayout.getTabAt(1).setText(R.string.tab_text_2);
+        mTabLayout.getTabAt(2).setText(R.string.tab_text_3);
+        mTabLayout.getTabAt(3).setText(R.string.tab_text_4);
+    }
+
+    /**
+     * Show the number of tasks next to the title of the tab at the given position.
+     */
+    private void setTabCount(int position, int titleResId, int count) {
+        TabLayout.Tab tab = mTabLayout.getTabAt(position);
+        if (tab != null) {
+            tab.setText(getString(R.string.tab_text_with_count, getString(titleResId), count));
+        }
+    }
+
     /**
      * A {@link FragmentPagerAdapter} that returns a fragment corresponding to
      * one of the sections/tabs/pages.
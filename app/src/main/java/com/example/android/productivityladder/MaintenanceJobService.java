@@ -0,0 +1,88 @@
+package com.example.android.productivityladder;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.productivityladder.data.WorkContract;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the database maintenance of the provider (see {@link WorkContract#METHOD_MAINTENANCE})
+ * about once a day, while the device is idle and charging. The work is asked for in short
+ * slices, so the job stops soon after the scheduler tells it to.
+ *
+ * JobScheduler only exists from Lollipop on; only touch this class after checking for it.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class MaintenanceJobService extends JobService {
+
+    private static final String LOG_TAG = MaintenanceJobService.class.getSimpleName();
+
+    private static final int JOB_ID = 1;
+
+    /** Time budget of each maintenance call */
+    private static final long SLICE_MILLIS = 200;
+
+    /** Set when the scheduler stops the job, e.g. because the device is in use again */
+    private volatile boolean mStopped;
+
+    /**
+     * Schedule the daily maintenance, unless it already is.
+     */
+    public static void schedule(Context context) {
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+        scheduler.schedule(new JobInfo.Builder(JOB_ID, new ComponentName(context, MaintenanceJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(TimeUnit.DAYS.toMillis(1))
+                .build());
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        mStopped = false;
+        // Jobs start on the main thread, so do the work on another one
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Bundle extras = new Bundle();
+                extras.putLong(WorkContract.EXTRA_TIME_BUDGET_MILLIS, SLICE_MILLIS);
+                boolean done = false;
+                try {
+                    while (!done && !mStopped) {
+                        Bundle result = getContentResolver().call(WorkContract.BASE_CONTENT_URI,
+                                WorkContract.METHOD_MAINTENANCE, null, extras);
+                        done = result != null && result.getBoolean(WorkContract.EXTRA_MAINTENANCE_DONE);
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Database maintenance failed", e);
+                }
+                if (!mStopped) {
+                    jobFinished(params, false);
+                }
+            }
+        }, LOG_TAG).start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        mStopped = true;
+        // The next call carries on from where this one stopped
+        return true;
+    }
+}
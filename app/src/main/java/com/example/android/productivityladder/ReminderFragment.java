@@ -10,21 +10,18 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.AdapterView;
 import android.widget.ListView;
-import android.app.LoaderManager;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.CursorLoader;
 import android.content.Intent;
-import android.content.Loader;
-import android.database.Cursor;
 import android.net.Uri;
 import com.example.android.productivityladder.data.WorkContract.ReminderEntry;
 import static com.example.android.productivityladder.AlarmService.CREATE;
 
-public class ReminderFragment extends Fragment implements LoaderManager.LoaderCallbacks<Cursor> {
+public class ReminderFragment extends Fragment {
 
     private static final int REMINDER_LOADER = 0;
     ReminderCursorAdapter mReminderCursorAdapter;
+    CursorPager mReminderPager;
 
     public ReminderFragment() {
         // Required empty public constructor
@@ -65,8 +62,18 @@ public class ReminderFragment extends Fragment implements LoaderManager.LoaderCa
                 startActivity(intent);
             }
         });
+        // Load the reminders a page at a time, fetching the next page as the list is scrolled
+        String[] projection = {
+                ReminderEntry._ID,
+                ReminderEntry.COLUMN_REMINDER_NAME,
+                ReminderEntry.COLUMN_REMINDER_DETAILS,
+                ReminderEntry.COLUMN_TIME_HOURS,
+                ReminderEntry.COLUMN_TIME_MINUTES};
+        mReminderPager = new CursorPager(getActivity(), getActivity().getLoaderManager(), REMINDER_LOADER,
+                ReminderEntry.CONTENT_URI, projection, null, null, mReminderCursorAdapter);
+        reminderListView.setOnScrollListener(mReminderPager);
         // Kick off the loader
-        getActivity().getLoaderManager().initLoader(REMINDER_LOADER, null, this);
+        mReminderPager.start();
 
         return view;
     }
@@ -119,28 +126,6 @@ public class ReminderFragment extends Fragment implements LoaderManager.LoaderCa
         return super.onOptionsItemSelected(item);
     }
 
-    @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        String[] projection = {
-                ReminderEntry._ID,
-                ReminderEntry.COLUMN_REMINDER_NAME,
-                ReminderEntry.COLUMN_REMINDER_DETAILS,
-                ReminderEntry.COLUMN_TIME_HOURS,
-                ReminderEntry.COLUMN_TIME_MINUTES};
-        return new CursorLoader(this.getActivity(), ReminderEntry.CONTENT_URI, projection,
-                null, null, null);
-    }
-
-    @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        mReminderCursorAdapter.swapCursor(data);
-    }
-
-    @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
-        mReminderCursorAdapter.swapCursor(null);
-    }
-
     /**
      * Helper method to delete all reminders in the database.
      */
@@ -0,0 +1,139 @@
+package com.example.android.productivityladder;
+
+import android.content.ClipData;
+import android.content.ContentResolver;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Bundle;
+import android.view.DragEvent;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ListView;
+
+import com.example.android.productivityladder.data.WorkContract;
+
+/**
+ * Lets the user reorder the tasks of a list by long-pressing a task and dropping it onto another
+ * place in the same list. The drop is sent to the provider as a single move (see
+ * {@link WorkContract#METHOD_MOVE_TASK}), and the list reloads from the change notification.
+ */
+public class TaskReorderListener implements AdapterView.OnItemLongClickListener, View.OnDragListener {
+
+    /** Part of the list's height at its top and bottom edges that scrolls it during a drag */
+    private static final float SCROLL_EDGE = 0.15f;
+
+    /** Distance scrolled per drag event over an edge, in pixels */
+    private static final int SCROLL_STEP = 20;
+
+    private final ListView mListView;
+
+    private TaskReorderListener(ListView listView) {
+        mListView = listView;
+    }
+
+    /**
+     * Enable drag to reorder on a list of tasks of one status.
+     */
+    public static void attach(ListView listView) {
+        TaskReorderListener listener = new TaskReorderListener(listView);
+        listView.setOnItemLongClickListener(listener);
+        listView.setOnDragListener(listener);
+    }
+
+    @Override
+    public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+        ClipData data = ClipData.newPlainText("task", String.valueOf(id));
+        // The task and its list travel as the local state, so only drags from this list are accepted
+        TaskDrag drag = new TaskDrag(mListView, id);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return view.startDragAndDrop(data, new View.DragShadowBuilder(view), drag, 0);
+        }
+        return startDragPreN(view, data, drag);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static boolean startDragPreN(View view, ClipData data, TaskDrag drag) {
+        return view.startDrag(data, new View.DragShadowBuilder(view), drag, 0);
+    }
+
+    @Override
+    public boolean onDrag(View v, DragEvent event) {
+        if (!(event.getLocalState() instanceof TaskDrag)
+                || ((TaskDrag) event.getLocalState()).mListView != mListView) {
+            return false;
+        }
+        switch (event.getAction()) {
+            case DragEvent.ACTION_DRAG_LOCATION:
+                // Scroll while the task is held over the top or bottom edge of the list
+                float edge = mListView.getHeight() * SCROLL_EDGE;
+                if (event.getY() < edge) {
+                    mListView.smoothScrollBy(-SCROLL_STEP, 0);
+                } else if (event.getY() > mListView.getHeight() - edge) {
+                    mListView.smoothScrollBy(SCROLL_STEP, 0);
+                }
+                return true;
+            case DragEvent.ACTION_DROP:
+                drop(((TaskDrag) event.getLocalState()).mId, (int) event.getX(), (int) event.getY());
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Move the dragged task to where it was dropped. Dropped onto a task further down the list,
+     * it goes below that task; further up, it goes above it.
+     *
+     * The move runs in the background, as making room for the task can rewrite the positions of
+     * the rest of the list. Moves run one at a time, in the order the tasks were dropped.
+     */
+    private void drop(long id, int x, int y) {
+        int count = mListView.getCount();
+        if (count == 0) {
+            return;
+        }
+        int target = mListView.pointToPosition(x, y);
+        if (target == ListView.INVALID_POSITION) {
+            // Below the last task
+            target = count - 1;
+        }
+        int from = -1;
+        for (int i = 0; i < count; i++) {
+            if (mListView.getItemIdAtPosition(i) == id) {
+                from = i;
+                break;
+            }
+        }
+        if (from == -1 || from == target) {
+            return;
+        }
+
+        long afterId;
+        if (from < target) {
+            afterId = mListView.getItemIdAtPosition(target);
+        } else {
+            afterId = target == 0 ? 0 : mListView.getItemIdAtPosition(target - 1);
+        }
+        final Bundle extras = new Bundle();
+        extras.putLong(WorkContract.EXTRA_AFTER_ID, afterId);
+        final String taskId = String.valueOf(id);
+        final ContentResolver resolver = mListView.getContext().getContentResolver();
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                resolver.call(WorkContract.BASE_CONTENT_URI, WorkContract.METHOD_MOVE_TASK, taskId, extras);
+            }
+        });
+    }
+
+    /** Local state of a task drag */
+    private static final class TaskDrag {
+        final ListView mListView;
+        final long mId;
+
+        TaskDrag(ListView listView, long id) {
+            mListView = listView;
+            mId = id;
+        }
+    }
+}
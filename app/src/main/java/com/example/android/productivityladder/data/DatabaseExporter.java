@@ -0,0 +1,224 @@
+package com.example.android.productivityladder.data;
+
+import android.content.ContentProvider;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.example.android.productivityladder.data.WorkContract.ArchiveEntry;
+import com.example.android.productivityladder.data.WorkContract.ExportEntry;
+import com.example.android.productivityladder.data.WorkContract.ReminderEntry;
+import com.example.android.productivityladder.data.WorkContract.TaskEntry;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Writes the tables of an export (see {@link ExportEntry}) into the pipe handed out by
+ * {@link WorkProvider#openFile}. The rows are read a page at a time in _id order and written out
+ * before the next page is read, so memory use doesn't grow with the size of the table, and the
+ * reader gets the first rows while the rest are still being read.
+ *
+ * The pages are separate queries, so rows saved while the export runs may or may not be in it.
+ */
+class DatabaseExporter implements ContentProvider.PipeDataWriter<String> {
+
+    private static final String LOG_TAG = DatabaseExporter.class.getSimpleName();
+
+    /** Rows read per query; a page fits well inside one cursor window */
+    private static final int PAGE_SIZE = 500;
+
+    /** The tables of an export of the whole database, in order */
+    static final String[] ALL_TABLES = { ExportEntry.TABLE_TASKS, ExportEntry.TABLE_ARCHIVE,
+            ExportEntry.TABLE_REMINDERS };
+
+    private static final String[] TASK_COLUMNS = { TaskEntry._ID, TaskEntry.COLUMN_TASK_TITLE,
+            TaskEntry.COLUMN_TASK_DETAILS, TaskEntry.COLUMN_TASK_STATUS, TaskEntry.COLUMN_TASK_POSITION,
+            TaskEntry.COLUMN_TASK_CREATED, TaskEntry.COLUMN_TASK_COMPLETED };
+    private static final String[] ARCHIVE_COLUMNS = { ArchiveEntry._ID, ArchiveEntry.COLUMN_TITLE,
+            ArchiveEntry.COLUMN_DETAILS, ArchiveEntry.COLUMN_CREATED, ArchiveEntry.COLUMN_COMPLETED };
+    private static final String[] REMINDER_COLUMNS = { ReminderEntry._ID, ReminderEntry.COLUMN_REMINDER_NAME,
+            ReminderEntry.COLUMN_REMINDER_DETAILS, ReminderEntry.COLUMN_TIME_HOURS,
+            ReminderEntry.COLUMN_TIME_MINUTES };
+
+    private final WorkDbHelper mDbHelper;
+
+    DatabaseExporter(WorkDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Returns true if table is one of the tables that can be exported.
+     */
+    static boolean isTable(String table) {
+        for (String name : ALL_TABLES) {
+            if (name.equals(table)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write the export. table is the table to export, or null for the whole database.
+     */
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType, Bundle opts, String table) {
+        boolean csv = ExportEntry.CSV_TYPE.equals(mimeType);
+        FileOutputStream stream = new FileOutputStream(output.getFileDescriptor());
+        Writer writer = new BufferedWriter(new OutputStreamWriter(stream, Charset.forName("UTF-8")));
+        try {
+            if (csv) {
+                writeCsv(writer, table);
+            } else {
+                JsonWriter json = new JsonWriter(writer);
+                if (table != null) {
+                    writeJson(json, table);
+                } else {
+                    json.beginObject();
+                    for (String name : ALL_TABLES) {
+                        json.name(name);
+                        writeJson(json, name);
+                    }
+                    json.endObject();
+                }
+                json.flush();
+            }
+            writer.flush();
+        } catch (IOException e) {
+            // Most likely the reader closed its end before reading everything
+            Log.w(LOG_TAG, "Export of " + uri + " stopped", e);
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // Nothing left to do with the pipe
+            }
+        }
+    }
+
+    /**
+     * Write the rows of the table as a JSON array of objects, one per row.
+     */
+    private void writeJson(JsonWriter json, String table) throws IOException {
+        json.beginArray();
+        String[] columns = columnsOf(table);
+        long lastId = 0;
+        int rows;
+        do {
+            Cursor cursor = queryPage(table, lastId);
+            try {
+                rows = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    json.beginObject();
+                    for (int i = 0; i < columns.length; i++) {
+                        json.name(columns[i]);
+                        switch (cursor.getType(i)) {
+                            case Cursor.FIELD_TYPE_NULL:
+                                json.nullValue();
+                                break;
+                            case Cursor.FIELD_TYPE_INTEGER:
+                                json.value(cursor.getLong(i));
+                                break;
+                            case Cursor.FIELD_TYPE_FLOAT:
+                                json.value(cursor.getDouble(i));
+                                break;
+                            default:
+                                json.value(cursor.getString(i));
+                                break;
+                        }
+                    }
+                    json.endObject();
+                    lastId = cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+        } while (rows == PAGE_SIZE);
+        json.endArray();
+    }
+
+    /**
+     * Write the rows of the table as CSV, after a header row with the column names.
+     */
+    private void writeCsv(Writer writer, String table) throws IOException {
+        String[] columns = columnsOf(table);
+        writer.write(TextUtils.join(",", columns));
+        writer.write("\r\n");
+        long lastId = 0;
+        int rows;
+        do {
+            Cursor cursor = queryPage(table, lastId);
+            try {
+                rows = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    for (int i = 0; i < columns.length; i++) {
+                        if (i > 0) {
+                            writer.write(',');
+                        }
+                        if (!cursor.isNull(i)) {
+                            writeCsvField(writer, cursor.getString(i));
+                        }
+                    }
+                    writer.write("\r\n");
+                    lastId = cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+        } while (rows == PAGE_SIZE);
+    }
+
+    /**
+     * Write a CSV field, quoted if it holds a comma, quote or line break.
+     */
+    private static void writeCsvField(Writer writer, String value) throws IOException {
+        if (value.indexOf(',') == -1 && value.indexOf('"') == -1 && value.indexOf('\n') == -1
+                && value.indexOf('\r') == -1) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    /**
+     * Read the page of rows of the table that comes after the row with _id lastId.
+     */
+    private Cursor queryPage(String table, long lastId) {
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        String selection = BaseColumns._ID + " > ?";
+        String tableName;
+        if (ExportEntry.TABLE_TASKS.equals(table)) {
+            tableName = TaskEntry.TABLE_NAME;
+            // Deleted tasks are on their way out, and archived ones are in the archive
+            selection += " AND " + WorkDbHelper.LIVE_TASKS;
+        } else if (ExportEntry.TABLE_ARCHIVE.equals(table)) {
+            tableName = ArchiveEntry.TABLE_NAME;
+        } else {
+            tableName = ReminderEntry.TABLE_NAME;
+        }
+        return database.query(tableName, columnsOf(table), selection, new String[] { String.valueOf(lastId) },
+                null, null, BaseColumns._ID, String.valueOf(PAGE_SIZE));
+    }
+
+    private static String[] columnsOf(String table) {
+        if (ExportEntry.TABLE_TASKS.equals(table)) {
+            return TASK_COLUMNS;
+        } else if (ExportEntry.TABLE_ARCHIVE.equals(table)) {
+            return ARCHIVE_COLUMNS;
+        }
+        return REMINDER_COLUMNS;
+    }
+}
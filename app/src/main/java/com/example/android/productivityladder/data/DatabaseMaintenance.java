@@ -0,0 +1,238 @@
+package com.example.android.productivityladder.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.productivityladder.data.WorkContract.ChangeEntry;
+
+import java.io.File;
+
+/**
+ * Keeps the work database compact and healthy. A run goes through these steps:
+ * <ol>
+ * <li>schedule the archiver, since tasks may have got old enough to archive since the last run</li>
+ * <li>trim the change records every consumer has seen, a chunk per transaction</li>
+ * <li>switch the file to incremental auto-vacuum, with a full VACUUM, if it predates it</li>
+ * <li>give free pages back to the file system, a few pages per transaction</li>
+ * <li>ANALYZE, so the query planner picks indexes from up to date statistics</li>
+ * <li>quick_check the database, and checkpoint the write-ahead log so the file actually shrinks</li>
+ * </ol>
+ * The work is done in slices: {@link #run} stops once its time budget is used up and the next
+ * call picks up where it stopped. Every run logs the file size and free page count from before
+ * and after it.
+ */
+class DatabaseMaintenance {
+
+    private static final String LOG_TAG = DatabaseMaintenance.class.getSimpleName();
+
+    /** PRAGMA auto_vacuum value of incremental auto-vacuum */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /** Free pages given back per transaction */
+    private static final int VACUUM_PAGES_PER_SLICE = 64;
+
+    /** Change records deleted per transaction */
+    private static final int TRIM_CHANGES_PER_SLICE = 500;
+
+    /**
+     * Sequence number up to which change records can go: the lowest one a consumer has seen,
+     * or the newest record if there are no consumers.
+     */
+    private static final String TRIM_BOUND_SQL = "SELECT IFNULL((SELECT MIN(" + ChangeEntry.COLUMN_SEEN
+            + ") FROM " + ChangeEntry.CONSUMERS_TABLE_NAME + "), (SELECT IFNULL(MAX(" + ChangeEntry.COLUMN_SEQUENCE
+            + "), 0) FROM " + ChangeEntry.TABLE_NAME + "))";
+    /** Deletes the oldest chunk of the change records up to the bound */
+    private static final String TRIM_CHUNK_SQL = "DELETE FROM " + ChangeEntry.TABLE_NAME + " WHERE "
+            + ChangeEntry.COLUMN_SEQUENCE + " IN (SELECT " + ChangeEntry.COLUMN_SEQUENCE + " FROM "
+            + ChangeEntry.TABLE_NAME + " WHERE " + ChangeEntry.COLUMN_SEQUENCE + " <= ? ORDER BY "
+            + ChangeEntry.COLUMN_SEQUENCE + " LIMIT " + TRIM_CHANGES_PER_SLICE + ")";
+
+    private static final int STEP_START = 0;
+    private static final int STEP_TRIM_CHANGES = 1;
+    private static final int STEP_VACUUM = 2;
+    private static final int STEP_ANALYZE = 3;
+    private static final int STEP_CHECK = 4;
+
+    private final WorkDbHelper mDbHelper;
+
+    private final TaskArchiver mArchiver;
+
+    /** Next step of the current run; guarded by this */
+    private int mStep = STEP_START;
+
+    /** Size of the database when the current run started; guarded by this */
+    private String mSizeBefore;
+
+    /** Sequence number up to which the current run trims change records; guarded by this */
+    private long mTrimBound;
+
+    /** Result of the last complete run, for dumpsys; guarded by this */
+    private String mLastReport = "never run";
+
+    DatabaseMaintenance(WorkDbHelper dbHelper, TaskArchiver archiver) {
+        mDbHelper = dbHelper;
+        mArchiver = archiver;
+    }
+
+    /**
+     * Carry on with the current run for about budgetMillis. A single step that can't be split,
+     * like the one-off VACUUM, may take longer. Returns true once the run is complete.
+     */
+    synchronized boolean run(long budgetMillis) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long deadline = SystemClock.elapsedRealtime() + budgetMillis;
+        do {
+            switch (mStep) {
+                case STEP_START:
+                    mSizeBefore = describeSize(database);
+                    // The daily maintenance is also when tasks get old enough to archive
+                    mArchiver.schedule();
+                    // Records written during the run are left for the next one, so the trim ends
+                    mTrimBound = queryLong(database, TRIM_BOUND_SQL);
+                    mStep = STEP_TRIM_CHANGES;
+                    break;
+                case STEP_TRIM_CHANGES:
+                    if (trimSlice(database, mTrimBound) < TRIM_CHANGES_PER_SLICE) {
+                        // Done trimming; the full VACUUM below now compacts what the trim freed
+                        if (queryLong(database, "PRAGMA auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+                            // WorkDbHelper asks for incremental auto-vacuum on every open, but a file
+                            // created before that only switches over with a full VACUUM
+                            database.execSQL("VACUUM");
+                        }
+                        mStep = STEP_VACUUM;
+                    }
+                    break;
+                case STEP_VACUUM:
+                    long freePages = queryLong(database, "PRAGMA freelist_count");
+                    if (freePages > 0) {
+                        vacuumSlice(database);
+                    }
+                    // Move on once nothing is left, or if a slice freed nothing (the VACUUM
+                    // that turns on auto-vacuum hasn't been able to run)
+                    if (freePages == 0 || queryLong(database, "PRAGMA freelist_count") >= freePages) {
+                        mStep = STEP_ANALYZE;
+                    }
+                    break;
+                case STEP_ANALYZE:
+                    database.execSQL("ANALYZE");
+                    mStep = STEP_CHECK;
+                    break;
+                case STEP_CHECK:
+                    String check = quickCheck(database);
+                    checkpoint(database);
+                    mLastReport = "before: " + mSizeBefore + "; after: " + describeSize(database)
+                            + "; quick_check: " + check;
+                    Log.i(LOG_TAG, "Database maintenance done, " + mLastReport);
+                    mStep = STEP_START;
+                    return true;
+                default:
+                    throw new IllegalStateException("Unknown maintenance step " + mStep);
+            }
+        } while (SystemClock.elapsedRealtime() < deadline);
+        return false;
+    }
+
+    /**
+     * Delete up to {@link #TRIM_CHANGES_PER_SLICE} of the oldest change records up to bound, in
+     * a transaction of their own so writers aren't held up for long. Returns how many went.
+     */
+    private static int trimSlice(SQLiteDatabase database, long bound) {
+        database.beginTransactionNonExclusive();
+        try {
+            SQLiteStatement statement = database.compileStatement(TRIM_CHUNK_SQL);
+            int deleted;
+            try {
+                statement.bindLong(1, bound);
+                deleted = statement.executeUpdateDelete();
+            } finally {
+                statement.close();
+            }
+            database.setTransactionSuccessful();
+            return deleted;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Free up to {@link #VACUUM_PAGES_PER_SLICE} pages. incremental_vacuum returns a row per page
+     * it frees, so it has to be read through a cursor for all of them to be freed.
+     */
+    private static void vacuumSlice(SQLiteDatabase database) {
+        // The transaction keeps the pragma on the primary connection, which is the one that writes
+        database.beginTransactionNonExclusive();
+        try {
+            Cursor cursor = database.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_PAGES_PER_SLICE + ")", null);
+            try {
+                cursor.getCount();
+            } finally {
+                cursor.close();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Returns "ok", or the problems quick_check found.
+     */
+    private static String quickCheck(SQLiteDatabase database) {
+        Cursor cursor = database.rawQuery("PRAGMA quick_check", null);
+        try {
+            StringBuilder result = new StringBuilder();
+            while (cursor.moveToNext()) {
+                if (result.length() > 0) {
+                    result.append("; ");
+                }
+                result.append(cursor.getString(0));
+            }
+            if (!"ok".equals(result.toString())) {
+                Log.e(LOG_TAG, "Database quick_check failed: " + result);
+            }
+            return result.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Copy the write-ahead log back into the database file. Pages freed by the vacuum are only
+     * cut off the end of the file once this happens.
+     */
+    private static void checkpoint(SQLiteDatabase database) {
+        try {
+            Cursor cursor = database.rawQuery("PRAGMA wal_checkpoint", null);
+            try {
+                cursor.getCount();
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            // A reader still on an old snapshot; the next automatic checkpoint gets it
+            Log.w(LOG_TAG, "Checkpoint after maintenance failed", e);
+        }
+    }
+
+    private static String describeSize(SQLiteDatabase database) {
+        File file = new File(database.getPath());
+        File wal = new File(database.getPath() + "-wal");
+        return "file=" + file.length() + "B wal=" + wal.length() + "B"
+                + " pages=" + queryLong(database, "PRAGMA page_count")
+                + " free=" + queryLong(database, "PRAGMA freelist_count");
+    }
+
+    private static long queryLong(SQLiteDatabase database, String sql) {
+        return DatabaseUtils.longForQuery(database, sql, null);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Database maintenance: " + mLastReport;
+    }
+}
@@ -0,0 +1,184 @@
+package com.example.android.productivityladder.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the change notifications of {@link WorkProvider}. A change is held for a short window,
+ * and further changes to the same URI within that window are merged into one notification, so a
+ * burst of writes makes every open cursor re-query once instead of once per write.
+ */
+class NotificationDispatcher {
+
+    /**
+     * Most URIs under one parent that are notified one by one; beyond this the parent is
+     * notified instead.
+     */
+    private static final int MAX_SIBLING_NOTIFICATIONS = 3;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+    private final long mWindowMillis;
+
+    /** URIs changed since the last flush; guarded by this */
+    private final Set<Uri> mPending = new HashSet<>();
+    private boolean mFlushScheduled;
+
+    /** Changes reported to the dispatcher, and notifications actually sent */
+    private final AtomicLong mRequestedCount = new AtomicLong();
+    private final AtomicLong mDeliveredCount = new AtomicLong();
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param looper       looper of the thread that sends the delayed notifications
+     * @param windowMillis how long a change is held for more changes to merge with it
+     */
+    NotificationDispatcher(ContentResolver resolver, Looper looper, long windowMillis) {
+        mResolver = resolver;
+        mHandler = new Handler(looper);
+        mWindowMillis = windowMillis;
+    }
+
+    /**
+     * Report a change to the data at the given URI. The notification is sent at the end of the
+     * current window, together with every other change reported in it.
+     */
+    void notifyChange(Uri uri) {
+        mRequestedCount.incrementAndGet();
+        synchronized (this) {
+            mPending.add(uri);
+            scheduleFlushLocked();
+        }
+    }
+
+    /**
+     * Report changes to several URIs at once, e.g. the URIs a batch changed.
+     */
+    void notifyChange(Collection<Uri> uris) {
+        mRequestedCount.addAndGet(uris.size());
+        synchronized (this) {
+            mPending.addAll(uris);
+            scheduleFlushLocked();
+        }
+    }
+
+    /**
+     * Send every held notification now, e.g. at the end of a transaction.
+     */
+    void flush() {
+        Set<Uri> uris;
+        synchronized (this) {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            uris = coalesceUris(mPending);
+            mPending.clear();
+            mHandler.removeCallbacks(mFlushRunnable);
+            mFlushScheduled = false;
+        }
+        for (Uri uri : uris) {
+            mResolver.notifyChange(uri, null);
+        }
+        mDeliveredCount.addAndGet(uris.size());
+    }
+
+    /** Number of changes reported to the dispatcher */
+    long getRequestedCount() {
+        return mRequestedCount.get();
+    }
+
+    /** Number of notifications sent to the content resolver */
+    long getDeliveredCount() {
+        return mDeliveredCount.get();
+    }
+
+    private void scheduleFlushLocked() {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, mWindowMillis);
+        }
+    }
+
+    /**
+     * Reduce a set of changed URIs to the fewest notifications that still reach every listener.
+     * A notification on a URI also reaches observers of its descendants, so many rows changed
+     * under the same parent (e.g. tasks/3, tasks/7, ...) are reported once on the parent (tasks).
+     * A few siblings, like the lists of two task statuses, are still notified one by one, so the
+     * lists of the other statuses don't reload.
+     */
+    private static Set<Uri> coalesceUris(Set<Uri> uris) {
+        if (uris.size() < 2) {
+            return new HashSet<>(uris);
+        }
+
+        // Group every URI under its parent
+        Map<Uri, List<Uri>> byParent = new HashMap<>();
+        for (Uri uri : uris) {
+            Uri parent = parentOf(uri);
+            List<Uri> siblings = byParent.get(parent);
+            if (siblings == null) {
+                siblings = new ArrayList<>();
+                byParent.put(parent, siblings);
+            }
+            siblings.add(uri);
+        }
+
+        Set<Uri> coalesced = new HashSet<>();
+        for (Map.Entry<Uri, List<Uri>> entry : byParent.entrySet()) {
+            if (entry.getValue().size() > MAX_SIBLING_NOTIFICATIONS && entry.getKey() != null) {
+                coalesced.add(entry.getKey());
+            } else {
+                coalesced.addAll(entry.getValue());
+            }
+        }
+
+        // Drop any URI that is already covered by a notification on one of its ancestors
+        Set<Uri> result = new HashSet<>();
+        for (Uri uri : coalesced) {
+            boolean covered = false;
+            for (Uri ancestor = parentOf(uri); ancestor != null; ancestor = parentOf(ancestor)) {
+                if (coalesced.contains(ancestor)) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                result.add(uri);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the given content URI with its last path segment removed, or null if the URI
+     * is the authority root.
+     */
+    private static Uri parentOf(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.isEmpty()) {
+            return null;
+        }
+        Uri.Builder builder = new Uri.Builder().scheme(uri.getScheme()).authority(uri.getAuthority());
+        for (int i = 0; i < segments.size() - 1; i++) {
+            builder.appendPath(segments.get(i));
+        }
+        return builder.build();
+    }
+}
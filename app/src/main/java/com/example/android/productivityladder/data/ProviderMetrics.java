@@ -0,0 +1,167 @@
+package com.example.android.productivityladder.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import com.example.android.productivityladder.data.WorkContract.MetricsEntry;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Call counts, row counts and latency histograms of {@link WorkProvider}, per operation and URI
+ * match code. Recording is lock-free: every number is a slot of one {@link AtomicLongArray}, so
+ * the provider's binder threads never wait on each other to record.
+ *
+ * Latencies go into log2 buckets of microseconds; bucket i holds the calls that took less than
+ * 2^i us and at least half that. Percentiles are read off the buckets, so they are upper bounds
+ * within a factor of two, which is enough to spot a regression.
+ */
+class ProviderMetrics {
+
+    static final int OP_QUERY = 0;
+    static final int OP_INSERT = 1;
+    static final int OP_BULK_INSERT = 2;
+    static final int OP_UPDATE = 3;
+    static final int OP_DELETE = 4;
+    private static final String[] OP_NAMES = { "query", "insert", "bulkInsert", "update", "delete" };
+
+    /** Latency buckets; the last one also takes every call slower than it */
+    private static final int BUCKETS = 24;
+
+    // Slots of each (operation, match code) pair
+    private static final int CALLS = 0;
+    private static final int ROWS = 1;
+    private static final int TOTAL_MICROS = 2;
+    private static final int MAX_MICROS = 3;
+    private static final int FIRST_BUCKET = 4;
+    private static final int SLOTS = FIRST_BUCKET + BUCKETS;
+
+    private final String[] mMatchNames;
+    private final AtomicLongArray mValues;
+
+    /**
+     * @param matchNames URI pattern of each match code, by code
+     */
+    ProviderMetrics(String[] matchNames) {
+        mMatchNames = matchNames;
+        mValues = new AtomicLongArray(OP_NAMES.length * matchNames.length * SLOTS);
+    }
+
+    /** Returns the name of an OP_ constant, e.g. "query" */
+    static String nameOf(int op) {
+        return OP_NAMES[op];
+    }
+
+    /**
+     * Record a call that started at startNanos (from {@link System#nanoTime()}) and has just
+     * finished, having returned or changed the given number of rows.
+     */
+    void record(int op, int match, long rows, long startNanos) {
+        if (match < 0 || match >= mMatchNames.length) {
+            return;
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        int base = (op * mMatchNames.length + match) * SLOTS;
+        mValues.incrementAndGet(base + CALLS);
+        mValues.addAndGet(base + ROWS, rows);
+        mValues.addAndGet(base + TOTAL_MICROS, micros);
+        mValues.incrementAndGet(base + FIRST_BUCKET + bucketOf(micros));
+        long max;
+        do {
+            max = mValues.get(base + MAX_MICROS);
+        } while (micros > max && !mValues.compareAndSet(base + MAX_MICROS, max, micros));
+    }
+
+    /**
+     * Returns a row per operation and URI that has been called, with the columns of
+     * {@link MetricsEntry}.
+     */
+    Cursor toCursor(String[] projection) {
+        MatrixCursor cursor = new MatrixCursor(MetricsEntry.COLUMNS);
+        for (int op = 0; op < OP_NAMES.length; op++) {
+            for (int match = 0; match < mMatchNames.length; match++) {
+                long[] values = snapshot(op, match);
+                if (values[CALLS] == 0) {
+                    continue;
+                }
+                cursor.addRow(new Object[] {
+                        cursor.getCount() + 1, OP_NAMES[op], mMatchNames[match],
+                        values[CALLS], values[ROWS], values[TOTAL_MICROS], values[MAX_MICROS],
+                        percentile(values, 50), percentile(values, 90), percentile(values, 99) });
+            }
+        }
+        if (projection == null) {
+            return cursor;
+        }
+        // Pick the requested columns out of the full rows
+        MatrixCursor projected = new MatrixCursor(projection, cursor.getCount());
+        int[] columns = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columns[i] = cursor.getColumnIndexOrThrow(projection[i]);
+        }
+        while (cursor.moveToNext()) {
+            MatrixCursor.RowBuilder row = projected.newRow();
+            for (int column : columns) {
+                row.add(cursor.getType(column) == Cursor.FIELD_TYPE_STRING
+                        ? cursor.getString(column) : (Object) cursor.getLong(column));
+            }
+        }
+        cursor.close();
+        return projected;
+    }
+
+    /**
+     * Print a line per operation and URI that has been called.
+     */
+    void dump(PrintWriter writer) {
+        writer.println("Provider calls (latencies in us):");
+        for (int op = 0; op < OP_NAMES.length; op++) {
+            for (int match = 0; match < mMatchNames.length; match++) {
+                long[] values = snapshot(op, match);
+                if (values[CALLS] == 0) {
+                    continue;
+                }
+                writer.println("  " + OP_NAMES[op] + " " + mMatchNames[match]
+                        + ": calls=" + values[CALLS] + " rows=" + values[ROWS]
+                        + " avg=" + values[TOTAL_MICROS] / values[CALLS]
+                        + " p50<=" + percentile(values, 50) + " p90<=" + percentile(values, 90)
+                        + " p99<=" + percentile(values, 99) + " max=" + values[MAX_MICROS]);
+            }
+        }
+    }
+
+    private long[] snapshot(int op, int match) {
+        int base = (op * mMatchNames.length + match) * SLOTS;
+        long[] values = new long[SLOTS];
+        for (int i = 0; i < SLOTS; i++) {
+            values[i] = mValues.get(base + i);
+        }
+        return values;
+    }
+
+    /**
+     * Returns the upper bound in microseconds of the bucket holding the given percentile.
+     */
+    private static long percentile(long[] values, int percentile) {
+        long calls = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            calls += values[FIRST_BUCKET + i];
+        }
+        long rank = (calls * percentile + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += values[FIRST_BUCKET + i];
+            if (seen >= rank) {
+                // The slowest bucket has no upper bound; the max is the best bound there is
+                return i == BUCKETS - 1 ? values[MAX_MICROS] : 1L << i;
+            }
+        }
+        return values[MAX_MICROS];
+    }
+
+    private static int bucketOf(long micros) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+}
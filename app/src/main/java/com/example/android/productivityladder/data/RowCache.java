@@ -0,0 +1,190 @@
+package com.example.android.productivityladder.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of whole task and reminder rows, keyed by table and _id, serving the
+ * provider's single-row lookups from memory. The provider's write paths invalidate the rows
+ * they change.
+ *
+ * A row read from the database is only cached if nothing was invalidated while it was being
+ * read, so a lookup racing with a write can't put the old row back into the cache.
+ */
+class RowCache {
+
+    /**
+     * A cached row: every column of the table with its value, typed like the database returned it.
+     */
+    static final class Row {
+        private final String[] mColumns;
+        private final Object[] mValues;
+
+        /**
+         * Copy the current row of the cursor, which must have been queried with all columns.
+         */
+        Row(Cursor cursor) {
+            mColumns = cursor.getColumnNames();
+            mValues = new Object[mColumns.length];
+            for (int i = 0; i < mColumns.length; i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        mValues[i] = cursor.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        mValues[i] = cursor.getDouble(i);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        mValues[i] = cursor.getString(i);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        mValues[i] = cursor.getBlob(i);
+                        break;
+                    default:
+                        mValues[i] = null;
+                        break;
+                }
+            }
+        }
+
+        /**
+         * Returns true if {@link #toCursor} can serve the projection, i.e. it is null or only
+         * names columns of this row.
+         */
+        boolean hasColumns(String[] projection) {
+            return containsAll(mColumns, projection);
+        }
+
+        /**
+         * Returns a one-row cursor with the given columns of this row, or all of them if
+         * projection is null. See {@link #hasColumns}.
+         */
+        Cursor toCursor(String[] projection) {
+            if (projection == null) {
+                MatrixCursor cursor = new MatrixCursor(mColumns, 1);
+                cursor.addRow(mValues);
+                return cursor;
+            }
+            Object[] values = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                values[i] = mValues[indexOf(projection[i])];
+            }
+            MatrixCursor cursor = new MatrixCursor(projection, 1);
+            cursor.addRow(values);
+            return cursor;
+        }
+
+        private int indexOf(String column) {
+            for (int i = 0; i < mColumns.length; i++) {
+                if (mColumns[i].equals(column)) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("No such column: " + column);
+        }
+    }
+
+    /**
+     * Returns true if projection is null or every entry of it is one of the columns, rather
+     * than an expression or alias that only SQLite can evaluate.
+     */
+    static boolean containsAll(String[] columns, String[] projection) {
+        if (projection == null) {
+            return true;
+        }
+        for (String entry : projection) {
+            boolean found = false;
+            for (String column : columns) {
+                if (column.equals(entry)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private final LruCache<String, Row> mRows;
+
+    /** Bumped by every invalidation; guarded by this */
+    private long mGeneration;
+
+    RowCache(int maxRows) {
+        mRows = new LruCache<>(maxRows);
+    }
+
+    /**
+     * Returns the cached row, or null if it isn't cached.
+     */
+    Row get(String table, long id) {
+        return mRows.get(key(table, id));
+    }
+
+    /**
+     * Returns a token to read before looking a row up in the database and to pass to
+     * {@link #put} with the row that was read.
+     */
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Cache a row read from the database, unless something was invalidated since generation
+     * was read, as the row may then already be out of date.
+     */
+    synchronized void put(String table, long id, Row row, long generation) {
+        if (generation == mGeneration) {
+            mRows.put(key(table, id), row);
+        }
+    }
+
+    /**
+     * Drop one row, after it was updated or deleted.
+     */
+    synchronized void invalidate(String table, long id) {
+        mGeneration++;
+        mRows.remove(key(table, id));
+    }
+
+    /**
+     * Drop every row of a table, after a write whose rows aren't known by id.
+     */
+    synchronized void invalidateTable(String table) {
+        mGeneration++;
+        String prefix = table + "/";
+        for (Map.Entry<String, Row> entry : mRows.snapshot().entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                mRows.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Drop every row.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        // Remove rather than evictAll(), which would count the rows as evictions
+        for (String key : mRows.snapshot().keySet()) {
+            mRows.remove(key);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Row cache: size=" + mRows.size() + "/" + mRows.maxSize()
+                + " hits=" + mRows.hitCount()
+                + " misses=" + mRows.missCount()
+                + " evictions=" + mRows.evictionCount();
+    }
+
+    private static String key(String table, long id) {
+        return table + "/" + id;
+    }
+}
@@ -0,0 +1,209 @@
+package com.example.android.productivityladder.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteQuery;
+import android.util.Log;
+
+import com.example.android.productivityladder.data.WorkContract.SlowQueryEntry;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The most recent provider calls that took longer than a threshold, with the SQL that ran, the
+ * kinds of its arguments and the plan SQLite chose for it. It shows whether a slow tab scanned
+ * a whole table, and so which index would help.
+ *
+ * Only calls above the threshold cost anything more than a time comparison: EXPLAIN QUERY PLAN
+ * is run for them, on the caller's thread, and they go into a small ring buffer.
+ */
+class SlowQueryLog {
+
+    private static final String LOG_TAG = SlowQueryLog.class.getSimpleName();
+
+    /** Number of slow calls kept; older ones are overwritten */
+    private static final int CAPACITY = 32;
+
+    /** Threshold used until another one is set */
+    private static final long DEFAULT_THRESHOLD_MILLIS = 50;
+
+    /** Prefix of SQLiteQuery.toString() in front of the SQL */
+    private static final String QUERY_PREFIX = "SQLiteQuery: ";
+
+    /** The last query run on each thread through {@link #CURSOR_FACTORY} */
+    private static final ThreadLocal<SQLiteQuery> sLastQuery = new ThreadLocal<>();
+
+    /**
+     * Cursor factory of the work database, keeping the query behind the last cursor created on
+     * each thread. The query's SQL is only read if the call turns out to be slow.
+     */
+    static final SQLiteDatabase.CursorFactory CURSOR_FACTORY = new SQLiteDatabase.CursorFactory() {
+        @Override
+        public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver driver, String editTable, SQLiteQuery query) {
+            sLastQuery.set(query);
+            return new SQLiteCursor(driver, editTable, query);
+        }
+    };
+
+    private static final class Entry {
+        long time;
+        String operation;
+        String uri;
+        long durationMicros;
+        String sql;
+        String args;
+        String plan;
+    }
+
+    private volatile long mThresholdNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_THRESHOLD_MILLIS);
+
+    /** Ring buffer of the slow calls; guarded by this */
+    private final Entry[] mEntries = new Entry[CAPACITY];
+    private long mRecordedCount;
+
+    /**
+     * Forget the last query of this thread, at the start of a provider call, so a call served
+     * without a query isn't logged with the SQL of an earlier one.
+     */
+    static void clearLastQuery() {
+        sLastQuery.remove();
+    }
+
+    /**
+     * Returns the SQL of the last query run on this thread since {@link #clearLastQuery}, or null.
+     */
+    static String takeLastQuerySql() {
+        SQLiteQuery query = sLastQuery.get();
+        sLastQuery.remove();
+        if (query == null) {
+            return null;
+        }
+        String sql = query.toString();
+        return sql.startsWith(QUERY_PREFIX) ? sql.substring(QUERY_PREFIX.length()) : sql;
+    }
+
+    void setThresholdMillis(long millis) {
+        mThresholdNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    boolean isSlow(long durationNanos) {
+        return durationNanos >= mThresholdNanos;
+    }
+
+    /**
+     * Record a slow call.
+     *
+     * @param sql         the SQL that ran, or null if it isn't known
+     * @param explainSql  the statement to get the query plan of, or null for none
+     * @param args        the selection arguments; only their kinds are kept
+     */
+    void record(SQLiteDatabase database, String operation, String uri, long durationNanos,
+                String sql, String explainSql, String[] args) {
+        Entry entry = new Entry();
+        entry.time = System.currentTimeMillis();
+        entry.operation = operation;
+        entry.uri = uri;
+        entry.durationMicros = TimeUnit.NANOSECONDS.toMicros(durationNanos);
+        entry.sql = sql;
+        entry.args = describeArgs(args);
+        entry.plan = explainSql == null ? null : explain(database, explainSql);
+        synchronized (this) {
+            mEntries[(int) (mRecordedCount++ % CAPACITY)] = entry;
+        }
+        Log.w(LOG_TAG, "Slow " + operation + " on " + uri + " took " + entry.durationMicros / 1000
+                + "ms: " + sql + " " + entry.args + " plan: " + entry.plan);
+    }
+
+    /**
+     * Returns the recorded calls, newest first, with the columns of {@link SlowQueryEntry}.
+     */
+    synchronized Cursor toCursor(String[] projection) {
+        MatrixCursor cursor = new MatrixCursor(SlowQueryEntry.COLUMNS);
+        for (long i = mRecordedCount - 1; i >= 0 && i >= mRecordedCount - CAPACITY; i--) {
+            Entry entry = mEntries[(int) (i % CAPACITY)];
+            cursor.addRow(new Object[] { i + 1, entry.time, entry.operation, entry.uri,
+                    entry.durationMicros, entry.sql, entry.args, entry.plan });
+        }
+        if (projection == null) {
+            return cursor;
+        }
+        // Pick the requested columns out of the full rows
+        MatrixCursor projected = new MatrixCursor(projection, cursor.getCount());
+        int[] columns = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columns[i] = cursor.getColumnIndexOrThrow(projection[i]);
+        }
+        while (cursor.moveToNext()) {
+            MatrixCursor.RowBuilder row = projected.newRow();
+            for (int column : columns) {
+                row.add(cursor.getType(column) == Cursor.FIELD_TYPE_INTEGER
+                        ? (Object) cursor.getLong(column) : cursor.getString(column));
+            }
+        }
+        cursor.close();
+        return projected;
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("Slow calls (threshold " + TimeUnit.NANOSECONDS.toMillis(mThresholdNanos)
+                + "ms, " + mRecordedCount + " so far):");
+        for (long i = mRecordedCount - 1; i >= 0 && i >= mRecordedCount - CAPACITY; i--) {
+            Entry entry = mEntries[(int) (i % CAPACITY)];
+            writer.println("  " + entry.operation + " " + entry.uri + " " + entry.durationMicros + "us: "
+                    + entry.sql + " " + entry.args);
+            if (entry.plan != null) {
+                writer.println("    plan: " + entry.plan.replace("\n", "; "));
+            }
+        }
+    }
+
+    private static String explain(SQLiteDatabase database, String sql) {
+        // The arguments are left unbound; SQLite picks the plan from the SQL alone
+        try {
+            Cursor cursor = database.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+            try {
+                StringBuilder plan = new StringBuilder();
+                int detailColumn = cursor.getColumnIndexOrThrow("detail");
+                while (cursor.moveToNext()) {
+                    if (plan.length() > 0) {
+                        plan.append('\n');
+                    }
+                    plan.append(cursor.getString(detailColumn));
+                }
+                return plan.toString();
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException | IllegalArgumentException e) {
+            return "unavailable: " + e.getMessage();
+        }
+    }
+
+    private static String describeArgs(String[] args) {
+        if (args == null) {
+            return "[]";
+        }
+        StringBuilder kinds = new StringBuilder("[");
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0) {
+                kinds.append(", ");
+            }
+            kinds.append(args[i] == null ? "null" : isNumber(args[i]) ? "num" : "text");
+        }
+        return kinds.append(']').toString();
+    }
+
+    private static boolean isNumber(String value) {
+        try {
+            Double.parseDouble(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.android.productivityladder.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps compiled statements for the provider's frequent single-row writes, so SQLite parses
+ * and prepares their SQL once instead of on every call.
+ *
+ * A statement holds its bindings until it is executed, so it is only ever used by one thread:
+ * {@link #acquire} hands out an idle statement (or compiles a new one if they are all in use)
+ * and {@link #release} gives it back.
+ */
+class StatementPool {
+
+    /** Most idle statements kept for one SQL string; more than that are closed when released */
+    private static final int MAX_IDLE_PER_SQL = 2;
+
+    /** Idle statements by their SQL; guarded by this */
+    private final Map<String, ArrayDeque<SQLiteStatement>> mIdle = new HashMap<>();
+
+    /** The database the idle statements were compiled against; guarded by this */
+    private SQLiteDatabase mDatabase;
+
+    /** Statements compiled, and statements handed out again without compiling; guarded by this */
+    private long mCompiledCount;
+    private long mReusedCount;
+
+    /**
+     * Returns a statement for the given SQL, with no bindings. It must be given back with
+     * {@link #release} once it has been executed.
+     */
+    SQLiteStatement acquire(SQLiteDatabase database, String sql) {
+        synchronized (this) {
+            if (database != mDatabase) {
+                // The helper opened a new database; statements of the old one can't be used
+                closeIdleLocked();
+                mDatabase = database;
+            }
+            ArrayDeque<SQLiteStatement> idle = mIdle.get(sql);
+            if (idle != null && !idle.isEmpty()) {
+                mReusedCount++;
+                return idle.pop();
+            }
+            mCompiledCount++;
+        }
+        return database.compileStatement(sql);
+    }
+
+    /**
+     * Give back a statement that was acquired for the given database and SQL.
+     */
+    void release(SQLiteDatabase database, String sql, SQLiteStatement statement) {
+        statement.clearBindings();
+        synchronized (this) {
+            if (database == mDatabase) {
+                ArrayDeque<SQLiteStatement> idle = mIdle.get(sql);
+                if (idle == null) {
+                    idle = new ArrayDeque<>(MAX_IDLE_PER_SQL);
+                    mIdle.put(sql, idle);
+                }
+                if (idle.size() < MAX_IDLE_PER_SQL) {
+                    idle.push(statement);
+                    return;
+                }
+            }
+        }
+        statement.close();
+    }
+
+    /**
+     * Close every idle statement.
+     */
+    synchronized void close() {
+        closeIdleLocked();
+        mDatabase = null;
+    }
+
+    private void closeIdleLocked() {
+        for (ArrayDeque<SQLiteStatement> idle : mIdle.values()) {
+            for (SQLiteStatement statement : idle) {
+                statement.close();
+            }
+        }
+        mIdle.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Statement pool: compiled=" + mCompiledCount + " reused=" + mReusedCount;
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.android.productivityladder.data;
+
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.android.productivityladder.data.WorkContract.ArchiveEntry;
+import com.example.android.productivityladder.data.WorkContract.TaskEntry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves the tasks that have been in Done for longer than the archive age into the archive
+ * table, in the background. The tasks are found through the completed time index, oldest first,
+ * and moved a chunk at a time, each chunk in its own short transaction. A moved task is copied
+ * to the archive and marked as archived in the tasks table, so {@link TaskPurger} removes it
+ * later and the task counts drop with it, but the sync doesn't take it for a deletion.
+ *
+ * All the archiving runs on the thread of the given looper.
+ */
+class TaskArchiver {
+
+    private static final String LOG_TAG = TaskArchiver.class.getSimpleName();
+
+    /** Preference holding the archive age in days */
+    static final String PREF_ARCHIVE_AGE_DAYS = "archive_age_days";
+    static final long DEFAULT_ARCHIVE_AGE_DAYS = 30;
+
+    /** Most tasks moved in one transaction */
+    private static final int CHUNK_SIZE = 200;
+
+    /** How long to wait before archiving, so it doesn't compete with the app starting up */
+    private static final long ARCHIVE_DELAY_MILLIS = 5000;
+
+    private static final String FIND_OLD_SQL = "SELECT " + TaskEntry._ID + " FROM " + TaskEntry.TABLE_NAME
+            + " WHERE " + TaskEntry.COLUMN_TASK_COMPLETED + " > 0 AND " + TaskEntry.COLUMN_TASK_COMPLETED + " < ?"
+            + " AND " + TaskEntry.COLUMN_TASK_STATUS + " = " + TaskEntry.STATUS_COMPLETED
+            + " AND " + WorkDbHelper.LIVE_TASKS
+            + " ORDER BY " + TaskEntry.COLUMN_TASK_COMPLETED + " LIMIT " + CHUNK_SIZE;
+    private static final String COPY_SQL = "INSERT INTO " + ArchiveEntry.TABLE_NAME + " ("
+            + ArchiveEntry._ID + ", " + ArchiveEntry.COLUMN_TITLE + ", " + ArchiveEntry.COLUMN_DETAILS + ", "
+            + ArchiveEntry.COLUMN_CREATED + ", " + ArchiveEntry.COLUMN_COMPLETED + ") SELECT "
+            + TaskEntry._ID + ", " + TaskEntry.COLUMN_TASK_TITLE + ", " + TaskEntry.COLUMN_TASK_DETAILS + ", "
+            + TaskEntry.COLUMN_TASK_CREATED + ", " + TaskEntry.COLUMN_TASK_COMPLETED
+            + " FROM " + TaskEntry.TABLE_NAME + " WHERE " + TaskEntry._ID + " = ?";
+    private static final String MARK_SQL = "UPDATE " + TaskEntry.TABLE_NAME + " SET "
+            + WorkDbHelper.COLUMN_TASK_DELETED + " = " + WorkDbHelper.TASK_ARCHIVED + " WHERE " + TaskEntry._ID + " = ?";
+
+    /** Told after every chunk, so cached rows and open lists can be refreshed */
+    interface Listener {
+        void onArchived(int count);
+    }
+
+    private final WorkDbHelper mDbHelper;
+    private final Handler mHandler;
+    private final SharedPreferences mPreferences;
+    private final Listener mListener;
+
+    /** Completed time below which tasks are archived in the current pass; only used on the archive thread */
+    private long mCutoff;
+
+    /** Number of tasks archived so far, for dumpsys */
+    private volatile long mArchivedCount;
+
+    private final Runnable mStartRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mHandler.removeCallbacks(mChunkRunnable);
+            long ageDays = mPreferences.getLong(PREF_ARCHIVE_AGE_DAYS, DEFAULT_ARCHIVE_AGE_DAYS);
+            mCutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(ageDays);
+            mChunkRunnable.run();
+        }
+    };
+
+    private final Runnable mChunkRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (archiveChunk()) {
+                // Post the next chunk rather than looping, so a new pass can cut in
+                mHandler.post(this);
+            }
+        }
+    };
+
+    TaskArchiver(WorkDbHelper dbHelper, Looper looper, SharedPreferences preferences, Listener listener) {
+        mDbHelper = dbHelper;
+        mHandler = new Handler(looper);
+        mPreferences = preferences;
+        mListener = listener;
+    }
+
+    /**
+     * Archive the tasks that are old enough a little later. Calls made before the pass starts
+     * are merged into one pass.
+     */
+    void schedule() {
+        mHandler.removeCallbacks(mStartRunnable);
+        mHandler.postDelayed(mStartRunnable, ARCHIVE_DELAY_MILLIS);
+    }
+
+    /**
+     * Archive the tasks completed before cutoff right away, on the calling thread, for tests.
+     */
+    void archiveNow(long cutoff) {
+        mCutoff = cutoff;
+        while (archiveChunk()) {
+            // Next chunk
+        }
+    }
+
+    /**
+     * Archive the next chunk of old tasks. Returns true if there may be more to archive.
+     */
+    private boolean archiveChunk() {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long[] ids = new long[CHUNK_SIZE];
+        int count = 0;
+
+        database.beginTransactionNonExclusive();
+        SQLiteStatement copy = database.compileStatement(COPY_SQL);
+        SQLiteStatement mark = database.compileStatement(MARK_SQL);
+        try {
+            Cursor cursor = database.rawQuery(FIND_OLD_SQL, new String[] { String.valueOf(mCutoff) });
+            try {
+                while (cursor.moveToNext()) {
+                    ids[count++] = cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+            for (int i = 0; i < count; i++) {
+                copy.bindLong(1, ids[i]);
+                copy.executeInsert();
+                mark.bindLong(1, ids[i]);
+                mark.executeUpdateDelete();
+            }
+            database.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            // Leave the tasks where they are; the next pass tries again
+            Log.e(LOG_TAG, "Failed to archive old tasks", e);
+            return false;
+        } finally {
+            copy.close();
+            mark.close();
+            database.endTransaction();
+        }
+
+        if (count > 0) {
+            mArchivedCount += count;
+            mListener.onArchived(count);
+        }
+        return count == CHUNK_SIZE;
+    }
+
+    @Override
+    public String toString() {
+        return "Task archive: archived=" + mArchivedCount;
+    }
+}
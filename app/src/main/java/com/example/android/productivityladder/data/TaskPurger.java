@@ -0,0 +1,164 @@
+package com.example.android.productivityladder.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.android.productivityladder.data.WorkContract.TaskEntry;
+
+/**
+ * Removes deleted tasks from the database in the background. Deleting a task only marks it
+ * (see {@link WorkDbHelper#COLUMN_TASK_DELETED}); the purger later goes through the marked rows,
+ * and the rows below the delete watermark, in _id order and removes them a chunk at a time.
+ * Each chunk is looked up outside of any transaction, from the index on the mark and the _id
+ * range below the watermark, and only its deletes run in a short transaction, so neither the
+ * UI nor other writers ever wait on one big delete or on a scan of the table.
+ *
+ * All the purging runs on the thread of the given looper.
+ */
+class TaskPurger {
+
+    private static final String LOG_TAG = TaskPurger.class.getSimpleName();
+
+    /** Most rows removed in one transaction */
+    private static final int CHUNK_SIZE = 500;
+
+    /** How long to wait after a delete before purging, so a burst of deletes is purged once */
+    private static final long PURGE_DELAY_MILLIS = 2000;
+
+    private static final String FIND_MARKED_SQL = "SELECT " + TaskEntry._ID + " FROM " + TaskEntry.TABLE_NAME
+            + " WHERE " + WorkDbHelper.COLUMN_TASK_DELETED + " > 0 AND " + TaskEntry._ID + " > ?"
+            + " ORDER BY " + TaskEntry._ID + " LIMIT " + CHUNK_SIZE;
+    private static final String FIND_BELOW_WATERMARK_SQL = "SELECT " + TaskEntry._ID + " FROM " + TaskEntry.TABLE_NAME
+            + " WHERE " + TaskEntry._ID + " > ? AND " + TaskEntry._ID + " <= (SELECT "
+            + WorkDbHelper.COLUMN_DELETED_THROUGH + " FROM " + WorkDbHelper.TABLE_TASK_WATERMARK + ")"
+            + " ORDER BY " + TaskEntry._ID + " LIMIT " + CHUNK_SIZE;
+    /** Checks the row is still deleted, as it was looked up outside of the transaction */
+    private static final String DELETE_SQL = "DELETE FROM " + TaskEntry.TABLE_NAME + " WHERE "
+            + TaskEntry._ID + " = ? AND NOT (" + WorkDbHelper.LIVE_TASKS + ")";
+
+    private final WorkDbHelper mDbHelper;
+    private final Handler mHandler;
+
+    /** Where the current pass has got to; only used on the purge thread */
+    private long mLastId;
+
+    /** Number of rows removed so far, for dumpsys */
+    private volatile long mPurgedCount;
+
+    private final Runnable mStartRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Start over from the beginning, as rows behind the current pass may have been marked
+            mHandler.removeCallbacks(mChunkRunnable);
+            mLastId = 0;
+            mChunkRunnable.run();
+        }
+    };
+
+    private final Runnable mChunkRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (purgeChunk()) {
+                // Post the next chunk rather than looping, so a new pass can cut in
+                mHandler.post(this);
+            }
+        }
+    };
+
+    TaskPurger(WorkDbHelper dbHelper, Looper looper) {
+        mDbHelper = dbHelper;
+        mHandler = new Handler(looper);
+    }
+
+    /**
+     * Purge the deleted tasks a little later. Calls made before the purge starts are merged
+     * into one pass.
+     */
+    void schedule() {
+        mHandler.removeCallbacks(mStartRunnable);
+        mHandler.postDelayed(mStartRunnable, PURGE_DELAY_MILLIS);
+    }
+
+    /**
+     * Remove the next chunk of deleted tasks. Returns true if there may be more to remove.
+     */
+    private boolean purgeChunk() {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long[] marked;
+        long[] belowWatermark;
+        try {
+            marked = findIds(database, FIND_MARKED_SQL);
+            belowWatermark = findIds(database, FIND_BELOW_WATERMARK_SQL);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to find deleted tasks", e);
+            return false;
+        }
+
+        // Merge the two sorted lists, and keep the lowest CHUNK_SIZE ids
+        long[] ids = new long[CHUNK_SIZE];
+        int count = 0;
+        int m = 0;
+        int w = 0;
+        while (count < CHUNK_SIZE && (m < marked.length || w < belowWatermark.length)) {
+            long id;
+            if (w == belowWatermark.length || (m < marked.length && marked[m] < belowWatermark[w])) {
+                id = marked[m++];
+            } else if (m == marked.length || belowWatermark[w] < marked[m]) {
+                id = belowWatermark[w++];
+            } else {
+                id = marked[m++];
+                w++;
+            }
+            ids[count++] = id;
+        }
+
+        database.beginTransactionNonExclusive();
+        SQLiteStatement delete = database.compileStatement(DELETE_SQL);
+        try {
+            for (int i = 0; i < count; i++) {
+                delete.bindLong(1, ids[i]);
+                delete.executeUpdateDelete();
+            }
+            database.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            // Leave the rows marked; the next delete schedules another pass
+            Log.e(LOG_TAG, "Failed to purge deleted tasks", e);
+            return false;
+        } finally {
+            delete.close();
+            database.endTransaction();
+        }
+
+        if (count > 0) {
+            mLastId = ids[count - 1];
+            mPurgedCount += count;
+        }
+        return count == CHUNK_SIZE;
+    }
+
+    /**
+     * Returns the ids the query finds after the current pass, in _id order. Runs outside of any
+     * transaction, so with write-ahead logging it doesn't hold up writers.
+     */
+    private long[] findIds(SQLiteDatabase database, String sql) {
+        Cursor cursor = database.rawQuery(sql, new String[] { String.valueOf(mLastId) });
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Task purge: purged=" + mPurgedCount;
+    }
+}
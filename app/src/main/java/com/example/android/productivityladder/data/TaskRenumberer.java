@@ -0,0 +1,204 @@
+package com.example.android.productivityladder.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.android.productivityladder.data.WorkContract.TaskEntry;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Spreads the positions of the tasks in a status out again, once moves have used up the gap
+ * between some of them. The list is walked from its last task to its first, a chunk per
+ * transaction, and every task gets a new position {@link WorkDbHelper#POSITION_GAP} apart from
+ * its neighbours, above all the old positions. Tasks keep their order throughout: the ones done
+ * so far are all above the ones still to do, so the list reads the same between chunks.
+ *
+ * All the renumbering runs on the thread of the given looper.
+ */
+class TaskRenumberer {
+
+    private static final String LOG_TAG = TaskRenumberer.class.getSimpleName();
+
+    /** Most tasks renumbered in one transaction */
+    private static final int CHUNK_SIZE = 200;
+
+    /** How long to wait after a crowded move, so a series of drags is renumbered once */
+    private static final long RENUMBER_DELAY_MILLIS = 1000;
+
+    private static final String FIND_CHUNK_SQL = "SELECT " + TaskEntry._ID + ", " + TaskEntry.COLUMN_TASK_POSITION
+            + " FROM " + TaskEntry.TABLE_NAME + " WHERE " + TaskEntry.COLUMN_TASK_STATUS + " = ?"
+            + " AND " + TaskEntry.COLUMN_TASK_POSITION + " <= ? AND (" + TaskEntry.COLUMN_TASK_POSITION + " < ?"
+            + " OR " + TaskEntry._ID + " < ?) AND " + WorkDbHelper.LIVE_TASKS
+            + " ORDER BY " + TaskEntry.COLUMN_TASK_POSITION + " DESC, " + TaskEntry._ID + " DESC LIMIT " + CHUNK_SIZE;
+    private static final String COUNT_SQL = "SELECT COUNT(*) FROM " + TaskEntry.TABLE_NAME
+            + " WHERE " + TaskEntry.COLUMN_TASK_STATUS + " = ? AND " + WorkDbHelper.LIVE_TASKS;
+    private static final String UPDATE_SQL = "UPDATE " + TaskEntry.TABLE_NAME + " SET "
+            + TaskEntry.COLUMN_TASK_POSITION + " = ? WHERE " + TaskEntry._ID + " = ?";
+
+    /** Told when a status has been renumbered, so cached rows and open lists can be refreshed */
+    interface Listener {
+        void onRenumbered(int status);
+    }
+
+    /** Where the renumbering of one status has got to */
+    private final class Pass implements Runnable {
+        final int mStatus;
+        boolean mStarted;
+        /** The highest position before the pass; every new position is above it */
+        long mOldLast;
+        /** Next position to hand out, going down */
+        long mNextPosition;
+        /** Old position and _id of the last task renumbered */
+        long mLastPosition;
+        long mLastId;
+
+        Pass(int status) {
+            mStatus = status;
+        }
+
+        @Override
+        public void run() {
+            if (renumberChunk(this)) {
+                // Post the next chunk rather than looping, so writers on other threads get a turn
+                mHandler.post(this);
+            } else {
+                mPasses.remove(mStatus);
+                mListener.onRenumbered(mStatus);
+            }
+        }
+    }
+
+    private final WorkDbHelper mDbHelper;
+    private final Handler mHandler;
+    private final Listener mListener;
+
+    /** Statuses waiting for their pass to start; guarded by itself */
+    private final Set<Integer> mPending = new HashSet<>();
+
+    /** The running pass of each status; only used on the renumber thread */
+    private final Map<Integer, Pass> mPasses = new HashMap<>();
+
+    /** Number of passes completed so far, for dumpsys */
+    private volatile long mPassCount;
+
+    private final Runnable mStartRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Set<Integer> statuses;
+            synchronized (mPending) {
+                statuses = new HashSet<>(mPending);
+                mPending.clear();
+            }
+            for (int status : statuses) {
+                // Start over, as tasks may have been moved behind a pass that is still running
+                Pass running = mPasses.get(status);
+                if (running != null) {
+                    mHandler.removeCallbacks(running);
+                }
+                Pass pass = new Pass(status);
+                mPasses.put(status, pass);
+                mHandler.post(pass);
+            }
+        }
+    };
+
+    TaskRenumberer(WorkDbHelper dbHelper, Looper looper, Listener listener) {
+        mDbHelper = dbHelper;
+        mHandler = new Handler(looper);
+        mListener = listener;
+    }
+
+    /**
+     * Renumber the tasks of the given status a little later. Calls made before the pass starts
+     * are merged into one pass.
+     */
+    void schedule(int status) {
+        synchronized (mPending) {
+            mPending.add(status);
+        }
+        mHandler.removeCallbacks(mStartRunnable);
+        mHandler.postDelayed(mStartRunnable, RENUMBER_DELAY_MILLIS);
+    }
+
+    /**
+     * Renumber the next chunk of the pass. Returns true if there may be more to renumber.
+     */
+    private boolean renumberChunk(Pass pass) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        String status = String.valueOf(pass.mStatus);
+        long[] ids = new long[CHUNK_SIZE];
+        long[] positions = new long[CHUNK_SIZE];
+        int count = 0;
+
+        database.beginTransactionNonExclusive();
+        SQLiteStatement update = database.compileStatement(UPDATE_SQL);
+        try {
+            if (!pass.mStarted) {
+                // Read where to start in the same transaction as the first chunk, so no task can be
+                // appended above the old positions before the new ones are handed out
+                pass.mOldLast = DatabaseUtils.longForQuery(database,
+                        "SELECT " + WorkDbHelper.lastPosition("?"), new String[] { status });
+                long live = DatabaseUtils.longForQuery(database, COUNT_SQL, new String[] { status });
+                pass.mNextPosition = pass.mOldLast + live * WorkDbHelper.POSITION_GAP;
+                pass.mLastPosition = pass.mOldLast;
+                pass.mLastId = Long.MAX_VALUE;
+                pass.mStarted = true;
+            }
+            Cursor cursor = database.rawQuery(FIND_CHUNK_SQL, new String[] { status,
+                    String.valueOf(pass.mLastPosition), String.valueOf(pass.mLastPosition),
+                    String.valueOf(pass.mLastId) });
+            try {
+                while (cursor.moveToNext()) {
+                    ids[count] = cursor.getLong(0);
+                    positions[count] = cursor.getLong(1);
+                    count++;
+                }
+            } finally {
+                cursor.close();
+            }
+            for (int i = 0; i < count; i++) {
+                if (pass.mNextPosition <= pass.mOldLast) {
+                    // Tasks were moved in among the old positions during the pass, and the new
+                    // ones would now run into them; stop here and renumber again from the top
+                    database.setTransactionSuccessful();
+                    schedule(pass.mStatus);
+                    return false;
+                }
+                update.bindLong(1, pass.mNextPosition);
+                update.bindLong(2, ids[i]);
+                update.executeUpdateDelete();
+                pass.mNextPosition -= WorkDbHelper.POSITION_GAP;
+                pass.mLastPosition = positions[i];
+                pass.mLastId = ids[i];
+            }
+            database.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            // Keep the positions as they are; the next crowded move schedules another pass
+            Log.e(LOG_TAG, "Failed to renumber the tasks of status " + status, e);
+            return false;
+        } finally {
+            update.close();
+            database.endTransaction();
+        }
+
+        if (count < CHUNK_SIZE) {
+            mPassCount++;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "Task renumbering: passes=" + mPassCount;
+    }
+}
@@ -0,0 +1,576 @@
+package com.example.android.productivityladder.data;
+
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.example.android.productivityladder.data.WorkContract.TaskEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Syncs the tasks with a server, sending and receiving only what changed since the last sync.
+ * A sync has two steps:
+ * <ol>
+ * <li>push: the dirty tasks and the pending deletions (see {@link WorkDbHelper#COLUMN_TASK_DIRTY})
+ * are POSTed to {@code <server>/push} in batches. The server stores each change as the newest
+ * version of its task and answers with the versions, and a task stops being dirty unless it was
+ * changed again while the batch was under way.</li>
+ * <li>pull: {@code <server>/changes?since=<token>} returns the tasks changed on the server after
+ * the sync token, a page at a time, with the token to ask from next. A change is applied unless
+ * the local task has changes of its own, which win and go out with the next push.</li>
+ * </ol>
+ * Requests and responses are gzipped JSON; a change is an object with the task's "id" (its sync
+ * id), "title", "details", "status", "created" and "deleted", and "version" from the server.
+ *
+ * A sync does network I/O, so never run it on the main thread.
+ */
+class TaskSyncer {
+
+    private static final String LOG_TAG = TaskSyncer.class.getSimpleName();
+
+    /** Tasks sent or received per request, and applied per transaction */
+    static final int BATCH_SIZE = 200;
+
+    private static final int TIMEOUT_MILLIS = 30000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Preference holding the sync token of a server, with the server's URL appended */
+    private static final String PREF_SYNC_TOKEN = "sync_token:";
+
+    private static final String DIRTY_TASKS_SQL = "SELECT " + TaskEntry._ID + ", "
+            + WorkDbHelper.COLUMN_TASK_SYNC_ID + ", " + TaskEntry.COLUMN_TASK_TITLE + ", "
+            + TaskEntry.COLUMN_TASK_DETAILS + ", " + TaskEntry.COLUMN_TASK_STATUS + ", "
+            + TaskEntry.COLUMN_TASK_CREATED + ", NOT (" + WorkDbHelper.LIVE_TASKS + ") AND "
+            + WorkDbHelper.COLUMN_TASK_DELETED + " <> " + WorkDbHelper.TASK_ARCHIVED + ", "
+            + WorkDbHelper.COLUMN_TASK_VERSION + ", " + WorkDbHelper.COLUMN_TASK_DIRTY
+            + " FROM " + TaskEntry.TABLE_NAME + " WHERE " + WorkDbHelper.COLUMN_TASK_DIRTY + " > 0"
+            + " AND " + TaskEntry._ID + " > ?"
+            // Tasks deleted before the server ever had them have nothing to send
+            + " AND (" + WorkDbHelper.COLUMN_TASK_VERSION + " > 0 OR " + WorkDbHelper.LIVE_TASKS + ")"
+            + " ORDER BY " + TaskEntry._ID + " LIMIT " + BATCH_SIZE;
+    private static final String PENDING_DELETES_SQL = "SELECT rowid, " + WorkDbHelper.COLUMN_TASK_SYNC_ID + ", "
+            + WorkDbHelper.COLUMN_TASK_VERSION + " FROM " + WorkDbHelper.TABLE_TASK_SYNC_DELETES
+            + " WHERE rowid > ? ORDER BY rowid LIMIT " + BATCH_SIZE;
+    private static final String SENT_SQL = "UPDATE " + TaskEntry.TABLE_NAME + " SET "
+            + WorkDbHelper.COLUMN_TASK_VERSION + " = ?, " + WorkDbHelper.COLUMN_TASK_DIRTY + " = 0"
+            + " WHERE " + TaskEntry._ID + " = ? AND " + WorkDbHelper.COLUMN_TASK_DIRTY + " = ?";
+    private static final String DELETE_SENT_SQL = "DELETE FROM " + WorkDbHelper.TABLE_TASK_SYNC_DELETES
+            + " WHERE " + WorkDbHelper.COLUMN_TASK_SYNC_ID + " = ?";
+    private static final String FIND_SQL = "SELECT " + TaskEntry._ID + ", " + WorkDbHelper.COLUMN_TASK_VERSION
+            + ", " + WorkDbHelper.COLUMN_TASK_DIRTY + " FROM " + TaskEntry.TABLE_NAME
+            + " WHERE " + WorkDbHelper.COLUMN_TASK_SYNC_ID + " = ?";
+    private static final String INSERT_SQL = "INSERT INTO " + TaskEntry.TABLE_NAME + " ("
+            + WorkDbHelper.COLUMN_TASK_SYNC_ID + ", " + TaskEntry.COLUMN_TASK_TITLE + ", "
+            + TaskEntry.COLUMN_TASK_DETAILS + ", " + TaskEntry.COLUMN_TASK_STATUS + ", "
+            + TaskEntry.COLUMN_TASK_POSITION + ", " + TaskEntry.COLUMN_TASK_CREATED + ", "
+            + WorkDbHelper.COLUMN_TASK_VERSION + ", " + WorkDbHelper.COLUMN_TASK_DIRTY
+            + ") VALUES (?1, ?2, ?3, ?4, " + WorkDbHelper.lastPosition("?4") + " + " + WorkDbHelper.POSITION_GAP
+            + ", ?5, ?6, 0)";
+    private static final String UPDATE_SQL = "UPDATE " + TaskEntry.TABLE_NAME + " SET "
+            + TaskEntry.COLUMN_TASK_TITLE + " = ?, " + TaskEntry.COLUMN_TASK_DETAILS + " = ?, "
+            + TaskEntry.COLUMN_TASK_STATUS + " = ?, " + WorkDbHelper.COLUMN_TASK_VERSION + " = ?"
+            + " WHERE " + TaskEntry._ID + " = ?";
+    private static final String DELETE_SQL = "UPDATE " + TaskEntry.TABLE_NAME + " SET "
+            + WorkDbHelper.COLUMN_TASK_DELETED + " = " + WorkDbHelper.TASK_DELETED + ", "
+            + WorkDbHelper.COLUMN_TASK_VERSION + " = ? WHERE " + TaskEntry._ID + " = ?";
+
+    /** Told after changes from the server were applied, so cached rows and open lists can be refreshed */
+    interface Listener {
+        void onTasksReceived();
+    }
+
+    /** What a sync moved, in rows and in compressed bytes on the wire */
+    static final class Result {
+        int rowsSent;
+        int rowsReceived;
+        long bytesSent;
+        long bytesReceived;
+
+        @Override
+        public String toString() {
+            return "sent=" + rowsSent + " rows/" + bytesSent + " bytes"
+                    + " received=" + rowsReceived + " rows/" + bytesReceived + " bytes";
+        }
+    }
+
+    /** A change read from the database or the server */
+    private static final class Change {
+        long mId;
+        String mSyncId;
+        String mTitle;
+        String mDetails;
+        int mStatus;
+        long mCreated;
+        boolean mDeleted;
+        long mVersion;
+        long mDirty;
+    }
+
+    private final WorkDbHelper mDbHelper;
+    private final SharedPreferences mPreferences;
+    private final Listener mListener;
+
+    /** Totals of every sync so far, for dumpsys; guarded by this */
+    private final Result mTotals = new Result();
+    private int mSyncCount;
+
+    TaskSyncer(WorkDbHelper dbHelper, SharedPreferences preferences, Listener listener) {
+        mDbHelper = dbHelper;
+        mPreferences = preferences;
+        mListener = listener;
+    }
+
+    /**
+     * Sync the tasks with the server at the given base URL. Syncs run one at a time.
+     */
+    synchronized Result sync(String server) throws IOException {
+        Result result = new Result();
+        push(server, result);
+        pull(server, result);
+
+        mSyncCount++;
+        mTotals.rowsSent += result.rowsSent;
+        mTotals.rowsReceived += result.rowsReceived;
+        mTotals.bytesSent += result.bytesSent;
+        mTotals.bytesReceived += result.bytesReceived;
+        Log.i(LOG_TAG, "Synced with " + server + ": " + result);
+        return result;
+    }
+
+    /**
+     * Send the dirty tasks, then the pending deletions, a batch per request.
+     */
+    private void push(String server, Result result) throws IOException {
+        URL url = new URL(server + "/push");
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        long lastId = 0;
+        List<Change> batch;
+        do {
+            batch = new ArrayList<>();
+            Cursor cursor = database.rawQuery(DIRTY_TASKS_SQL, new String[] { String.valueOf(lastId) });
+            try {
+                while (cursor.moveToNext()) {
+                    Change change = new Change();
+                    change.mId = cursor.getLong(0);
+                    change.mSyncId = cursor.getString(1);
+                    change.mTitle = cursor.getString(2);
+                    change.mDetails = cursor.getString(3);
+                    change.mStatus = cursor.getInt(4);
+                    change.mCreated = cursor.getLong(5);
+                    change.mDeleted = cursor.getInt(6) != 0;
+                    change.mVersion = cursor.getLong(7);
+                    change.mDirty = cursor.getLong(8);
+                    batch.add(change);
+                    lastId = change.mId;
+                }
+            } finally {
+                cursor.close();
+            }
+            pushBatch(url, batch, result);
+        } while (batch.size() == BATCH_SIZE);
+
+        long lastRowId = 0;
+        do {
+            batch = new ArrayList<>();
+            Cursor cursor = database.rawQuery(PENDING_DELETES_SQL, new String[] { String.valueOf(lastRowId) });
+            try {
+                while (cursor.moveToNext()) {
+                    lastRowId = cursor.getLong(0);
+                    Change change = new Change();
+                    change.mSyncId = cursor.getString(1);
+                    change.mVersion = cursor.getLong(2);
+                    change.mDeleted = true;
+                    batch.add(change);
+                }
+            } finally {
+                cursor.close();
+            }
+            pushBatch(url, batch, result);
+        } while (batch.size() == BATCH_SIZE);
+    }
+
+    /**
+     * POST a batch of changes and record the versions the server gave them.
+     */
+    private void pushBatch(URL url, List<Change> batch, Result result) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        HttpURLConnection connection = open(url);
+        try {
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(0);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            CountingOutputStream counter = new CountingOutputStream(connection.getOutputStream());
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(
+                    new GZIPOutputStream(new BufferedOutputStream(counter)), UTF_8));
+            try {
+                writer.beginObject();
+                writer.name("changes").beginArray();
+                for (Change change : batch) {
+                    writer.beginObject();
+                    writer.name("id").value(change.mSyncId);
+                    // The version the change was made to, so the server can spot conflicts
+                    writer.name("base_version").value(change.mVersion);
+                    writer.name("deleted").value(change.mDeleted);
+                    if (!change.mDeleted) {
+                        writer.name("title").value(change.mTitle);
+                        writer.name("details").value(change.mDetails);
+                        writer.name("status").value(change.mStatus);
+                        writer.name("created").value(change.mCreated);
+                    }
+                    writer.endObject();
+                }
+                writer.endArray();
+                writer.endObject();
+            } finally {
+                writer.close();
+            }
+            result.bytesSent += counter.mCount;
+
+            CountingInputStream in = response(connection);
+            Map<String, Long> versions = new HashMap<>();
+            JsonReader reader = new JsonReader(new InputStreamReader(new GZIPInputStream(in), UTF_8));
+            try {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (!"versions".equals(reader.nextName())) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        Change version = readChange(reader);
+                        versions.put(version.mSyncId, version.mVersion);
+                    }
+                    reader.endArray();
+                }
+                reader.endObject();
+            } finally {
+                reader.close();
+            }
+            result.bytesReceived += in.mCount;
+            markSent(batch, versions);
+            result.rowsSent += batch.size();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Record the server's versions of the sent changes, in one transaction. A task changed
+     * again since it was read stays dirty, and goes out again with the next push.
+     */
+    private void markSent(List<Change> batch, Map<String, Long> versions) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        database.beginTransactionNonExclusive();
+        SQLiteStatement sent = database.compileStatement(SENT_SQL);
+        SQLiteStatement deleteSent = database.compileStatement(DELETE_SENT_SQL);
+        try {
+            for (Change change : batch) {
+                Long version = versions.get(change.mSyncId);
+                if (version == null) {
+                    // Not taken by the server; try again next time
+                    continue;
+                }
+                if (change.mId == 0) {
+                    deleteSent.bindString(1, change.mSyncId);
+                    deleteSent.executeUpdateDelete();
+                } else {
+                    sent.bindLong(1, version);
+                    sent.bindLong(2, change.mId);
+                    sent.bindLong(3, change.mDirty);
+                    sent.executeUpdateDelete();
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            sent.close();
+            deleteSent.close();
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Fetch and apply the changes after the sync token, a page at a time, saving the token
+     * after every page.
+     */
+    private void pull(String server, Result result) throws IOException {
+        String tokenKey = PREF_SYNC_TOKEN + server;
+        boolean more = true;
+        while (more) {
+            String token = mPreferences.getString(tokenKey, null);
+            Uri.Builder uri = Uri.parse(server + "/changes").buildUpon()
+                    .appendQueryParameter("limit", String.valueOf(BATCH_SIZE));
+            if (token != null) {
+                uri.appendQueryParameter("since", token);
+            }
+
+            HttpURLConnection connection = open(new URL(uri.build().toString()));
+            List<Change> changes = new ArrayList<>();
+            String nextToken = token;
+            try {
+                CountingInputStream in = response(connection);
+                JsonReader reader = new JsonReader(new InputStreamReader(new GZIPInputStream(in), UTF_8));
+                try {
+                    more = false;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        if ("changes".equals(name)) {
+                            reader.beginArray();
+                            while (reader.hasNext()) {
+                                changes.add(readChange(reader));
+                            }
+                            reader.endArray();
+                        } else if ("token".equals(name)) {
+                            nextToken = reader.nextString();
+                        } else if ("more".equals(name)) {
+                            more = reader.nextBoolean();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } finally {
+                    reader.close();
+                }
+                result.bytesReceived += in.mCount;
+            } finally {
+                connection.disconnect();
+            }
+
+            if (!changes.isEmpty()) {
+                result.rowsReceived += apply(changes);
+            }
+            // Only move the token past changes that are applied, so a failed sync fetches them again
+            mPreferences.edit().putString(tokenKey, nextToken).commit();
+            if (changes.isEmpty()) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Apply a page of changes from the server in one transaction. Returns the number of tasks
+     * changed, leaving out the echoes of this device's own pushes and the changes that lost.
+     */
+    private int apply(List<Change> changes) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        database.beginTransactionNonExclusive();
+        SQLiteStatement insert = database.compileStatement(INSERT_SQL);
+        SQLiteStatement update = database.compileStatement(UPDATE_SQL);
+        SQLiteStatement delete = database.compileStatement(DELETE_SQL);
+        int applied = 0;
+        try {
+            for (Change change : changes) {
+                Cursor cursor = database.rawQuery(FIND_SQL, new String[] { change.mSyncId });
+                long id = 0;
+                long version = 0;
+                long dirty = 0;
+                try {
+                    if (cursor.moveToFirst()) {
+                        id = cursor.getLong(0);
+                        version = cursor.getLong(1);
+                        dirty = cursor.getLong(2);
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                if (id == 0) {
+                    if (change.mDeleted || change.mTitle == null || !TaskEntry.isValidStatus(change.mStatus)) {
+                        continue;
+                    }
+                    insert.bindString(1, change.mSyncId);
+                    insert.bindString(2, change.mTitle);
+                    bindStringOrNull(insert, 3, change.mDetails);
+                    insert.bindLong(4, change.mStatus);
+                    insert.bindLong(5, change.mCreated);
+                    insert.bindLong(6, change.mVersion);
+                    insert.executeInsert();
+                } else if (dirty > 0 || change.mVersion <= version) {
+                    // Local changes win, and stale or echoed changes have nothing new
+                    continue;
+                } else if (change.mDeleted) {
+                    delete.bindLong(1, change.mVersion);
+                    delete.bindLong(2, id);
+                    delete.executeUpdateDelete();
+                } else {
+                    if (change.mTitle == null || !TaskEntry.isValidStatus(change.mStatus)) {
+                        continue;
+                    }
+                    update.bindString(1, change.mTitle);
+                    bindStringOrNull(update, 2, change.mDetails);
+                    update.bindLong(3, change.mStatus);
+                    update.bindLong(4, change.mVersion);
+                    update.bindLong(5, id);
+                    update.executeUpdateDelete();
+                }
+                applied++;
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            insert.close();
+            update.close();
+            delete.close();
+            database.endTransaction();
+        }
+        if (applied > 0) {
+            mListener.onTasksReceived();
+        }
+        return applied;
+    }
+
+    private static Change readChange(JsonReader reader) throws IOException {
+        Change change = new Change();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "id":
+                    change.mSyncId = reader.nextString();
+                    break;
+                case "title":
+                    change.mTitle = reader.nextString();
+                    break;
+                case "details":
+                    change.mDetails = reader.nextString();
+                    break;
+                case "status":
+                    change.mStatus = reader.nextInt();
+                    break;
+                case "created":
+                    change.mCreated = reader.nextLong();
+                    break;
+                case "deleted":
+                    change.mDeleted = reader.nextBoolean();
+                    break;
+                case "version":
+                    change.mVersion = reader.nextLong();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        if (change.mSyncId == null) {
+            throw new IOException("Change without an id");
+        }
+        return change;
+    }
+
+    private static HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        // Asked for explicitly, so the response isn't unzipped before its bytes are counted
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        return connection;
+    }
+
+    /**
+     * Returns the gzipped body of a successful response, counting its bytes.
+     */
+    private static CountingInputStream response(HttpURLConnection connection) throws IOException {
+        int code = connection.getResponseCode();
+        if (code != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Sync request to " + connection.getURL() + " failed with HTTP " + code);
+        }
+        if (!"gzip".equals(connection.getContentEncoding())) {
+            throw new IOException("Sync response from " + connection.getURL() + " isn't gzipped");
+        }
+        return new CountingInputStream(new BufferedInputStream(connection.getInputStream()));
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Task sync: syncs=" + mSyncCount + " " + mTotals;
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCount += len;
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+    }
+}
@@ -27,6 +27,143 @@ public final class WorkContract {
      */
     public static final String PATH_REMINDERS = "reminders";
     public static final String PATH_TASKS = "tasks";
+    public static final String PATH_SEARCH = "search";
+    public static final String PATH_COUNTS = "counts";
+    public static final String PATH_EVENTS = "events";
+    public static final String PATH_STATS = "stats";
+    public static final String PATH_WEEKS = "weeks";
+    public static final String PATH_ARCHIVE = "archive";
+    public static final String PATH_EXPORT = "export";
+    public static final String PATH_IMPORTS = "imports";
+    public static final String PATH_CHANGES = "changes";
+    public static final String PATH_CONSUMERS = "consumers";
+    public static final String PATH_STATUS = "status";
+    public static final String PATH_METRICS = "metrics";
+    public static final String PATH_SLOW_QUERIES = "slow_queries";
+
+    /**
+     * Query parameters for reading the reminders or tasks list one page at a time. Pages are
+     * ordered by _id and start right after the row whose _id is given in {@link #QUERY_AFTER_ID},
+     * so reading a page costs the same however deep into the list it is.
+     */
+    public static final String QUERY_AFTER_ID = "after_id";
+    public static final String QUERY_LIMIT = "limit";
+
+    /**
+     * Query parameter making an update of a single task or reminder conditional: it only applies
+     * if the row's revision is still the given one (see {@link TaskEntry#COLUMN_TASK_REVISION}).
+     * If the row was changed in the meantime, the update throws a {@link WriteConflictException}
+     * and changes nothing.
+     */
+    public static final String QUERY_REVISION = "revision";
+
+    /**
+     * Build the URI to update the task or reminder at itemUri only if it is still at the given
+     * revision, e.g. the one read when it was opened in an editor.
+     */
+    public static Uri buildRevisionUri(Uri itemUri, long revision) {
+        return itemUri.buildUpon().appendQueryParameter(QUERY_REVISION, String.valueOf(revision)).build();
+    }
+
+    /**
+     * Build the URI for a page of at most limit rows of the given list URI, starting after the
+     * row with the given _id. Use 0 as afterId for the first page.
+     */
+    public static Uri buildPageUri(Uri contentUri, long afterId, int limit) {
+        return contentUri.buildUpon()
+                .appendQueryParameter(QUERY_AFTER_ID, String.valueOf(afterId))
+                .appendQueryParameter(QUERY_LIMIT, String.valueOf(limit))
+                .build();
+    }
+
+    /**
+     * Query parameter for reading the tasks of one status (see {@link TaskEntry#buildStatusUri})
+     * one page at a time. Those lists are in the user's order, by position and then _id, so a
+     * page after the first one starts right after the row with the given position and the
+     * _id given in {@link #QUERY_AFTER_ID}.
+     */
+    public static final String QUERY_AFTER_POSITION = "after_position";
+
+    /**
+     * Build the URI for a page of at most limit rows of a task status URI, starting after the
+     * row with the given position and _id. Use {@link #buildPageUri(Uri, long, int)} with 0 as
+     * afterId for the first page.
+     */
+    public static Uri buildPageUri(Uri contentUri, long afterPosition, long afterId, int limit) {
+        return contentUri.buildUpon()
+                .appendQueryParameter(QUERY_AFTER_POSITION, String.valueOf(afterPosition))
+                .appendQueryParameter(QUERY_AFTER_ID, String.valueOf(afterId))
+                .appendQueryParameter(QUERY_LIMIT, String.valueOf(limit))
+                .build();
+    }
+
+    /**
+     * Provider method (see {@link ContentResolver#call}) running database maintenance: scheduling
+     * the archiver, trimming the change records every consumer has seen, freeing unused pages, refreshing the query planner statistics and checking the database. Each call
+     * does as much as fits in {@link #EXTRA_TIME_BUDGET_MILLIS} and carries on from there the next
+     * time; the returned Bundle has {@link #EXTRA_MAINTENANCE_DONE} set once a whole run is done.
+     */
+    public static final String METHOD_MAINTENANCE = "maintenance";
+    public static final String EXTRA_TIME_BUDGET_MILLIS = "time_budget_millis";
+    public static final String EXTRA_MAINTENANCE_DONE = "maintenance_done";
+
+    /**
+     * Provider method setting the duration, in milliseconds, above which a query or write is
+     * recorded in the slow query log (see {@link SlowQueryEntry}). The threshold is passed as
+     * the arg of {@link ContentResolver#call}, so it can also be set from adb:
+     * "adb shell content call --uri content://com.example.android.productivityladder
+     * --method set_slow_query_threshold --arg 20".
+     */
+    public static final String METHOD_SET_SLOW_QUERY_THRESHOLD = "set_slow_query_threshold";
+
+    /**
+     * Provider method moving a task within the list of its status, e.g. after it was dragged to
+     * another place. The arg of {@link ContentResolver#call} is the _id of the task to move, and
+     * {@link #EXTRA_AFTER_ID} the _id of the task it should now follow, or 0 to move it to the top.
+     * Only the moved task is written.
+     */
+    public static final String METHOD_MOVE_TASK = "move_task";
+    public static final String EXTRA_AFTER_ID = "after_id";
+
+    /**
+     * Provider method setting how many days a task stays in Done before it is moved to the
+     * archive (see {@link ArchiveEntry}). The number of days is the arg of
+     * {@link ContentResolver#call}; it is kept across restarts and defaults to 30.
+     */
+    public static final String METHOD_SET_ARCHIVE_AGE = "set_archive_age";
+
+    /**
+     * Provider method moving an archived task back to the end of the Done list. The arg of
+     * {@link ContentResolver#call} is the _id of the archived task; the returned Bundle has the
+     * new _id of the task in {@link #EXTRA_TASK_ID}, or no Bundle is returned if there was no
+     * such archived task.
+     */
+    public static final String METHOD_RESTORE_TASK = "restore_task";
+    public static final String EXTRA_TASK_ID = "task_id";
+
+    /**
+     * Provider methods writing a binary snapshot of the tasks and reminders to a file, and
+     * replacing every task and reminder with the ones in a snapshot. The arg of
+     * {@link ContentResolver#call} is the absolute path of the file; the returned Bundle has
+     * the number of rows written or restored in {@link #EXTRA_ROW_COUNT}. A snapshot is much
+     * faster to write and restore than an export, but only this app can read it.
+     */
+    public static final String METHOD_WRITE_SNAPSHOT = "write_snapshot";
+    public static final String METHOD_RESTORE_SNAPSHOT = "restore_snapshot";
+    public static final String EXTRA_ROW_COUNT = "row_count";
+
+    /**
+     * Provider method syncing the tasks with a server, sending and receiving only what changed
+     * since the last sync. The arg of {@link ContentResolver#call} is the base URL of the server.
+     * The call waits on the network, so never make it from the main thread. The returned Bundle
+     * has the rows and the compressed bytes the sync moved each way. A failed sync throws an
+     * IllegalStateException; what it got through is kept, and the next sync carries on from there.
+     */
+    public static final String METHOD_SYNC = "sync";
+    public static final String EXTRA_SYNC_ROWS_SENT = "rows_sent";
+    public static final String EXTRA_SYNC_ROWS_RECEIVED = "rows_received";
+    public static final String EXTRA_SYNC_BYTES_SENT = "bytes_sent";
+    public static final String EXTRA_SYNC_BYTES_RECEIVED = "bytes_received";
 
     /**
      * Inner class that defines constant values for the reminders database table.
@@ -55,6 +192,12 @@ public final class WorkContract {
         public final static String COLUMN_REMINDER_DETAILS = "details";
         public final static String COLUMN_TIME_HOURS = "hours";
         public final static String COLUMN_TIME_MINUTES = "minutes";
+
+        /**
+         * Revision of the reminder, which goes up with every change to it; kept up to date by
+         * the database and read only. See {@link #QUERY_REVISION}.
+         */
+        public final static String COLUMN_REMINDER_REVISION = "revision";
     }
 
     /**
@@ -84,10 +227,46 @@ public final class WorkContract {
         public final static String COLUMN_TASK_DETAILS = "details";
         public final static String COLUMN_TASK_STATUS = "status";
 
+        /**
+         * Place of the task in the list of its status, which is sorted by it. Positions are
+         * spread out, so a task can be moved between two others by giving it a position in the
+         * gap between theirs, without renumbering the rest of the list. New tasks, and tasks moved
+         * to another status, go to the end of the list.
+         */
+        public final static String COLUMN_TASK_POSITION = "position";
+
+        /**
+         * When the task was added, in milliseconds since the epoch; set by the provider. 0 for
+         * tasks added before it was recorded.
+         */
+        public final static String COLUMN_TASK_CREATED = "created";
+
+        /**
+         * When the task was moved to Done, in milliseconds since the epoch, or 0 while it isn't
+         * done; kept up to date by the database. Done tasks are archived some time after it.
+         */
+        public final static String COLUMN_TASK_COMPLETED = "completed";
+
+        /**
+         * Revision of the task, which goes up with every change to its title, details or status,
+         * whoever makes it; kept up to date by the database and read only. Passing the revision a
+         * task was read at in {@link #QUERY_REVISION} keeps an update from overwriting a change
+         * made since.
+         */
+        public final static String COLUMN_TASK_REVISION = "revision";
+
         public static final int STATUS_NOT_STARTED = 0;
         public static final int STATUS_IN_PROGRESS = 1;
         public static final int STATUS_COMPLETED = 2;
 
+        /**
+         * Build the content URI for the tasks with the given status. Cursors read from it are
+         * only notified of changes to tasks that enter, leave or change within that status.
+         */
+        public static Uri buildStatusUri(int status) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_STATUS).appendPath(String.valueOf(status)).build();
+        }
+
         public static boolean isValidStatus(int status) {
             if (status == STATUS_NOT_STARTED || status == STATUS_IN_PROGRESS || status == STATUS_COMPLETED) {
                 return true;
@@ -95,5 +274,417 @@ public final class WorkContract {
             return false;
         }
     }
-}
 
+    /**
+     * Inner class that defines constant values for the full-text search index over the titles
+     * and details of both tasks and reminders. Each entry in the index represents one task or
+     * one reminder, and is kept up to date by triggers on the tasks and reminders tables.
+     */
+    public static final class SearchEntry implements BaseColumns {
+
+        /** The content URI to search tasks and reminders; append the search text with {@link #buildSearchUri} */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SEARCH);
+        /**
+         * The MIME type of a search URI, for a list of matching tasks and reminders.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SEARCH;
+
+        /** Name of the FTS4 virtual table holding the index */
+        public final static String TABLE_NAME = "work_search";
+
+        /**
+         * Columns of a search result. {@link #_ID} is unique within a result; {@link #COLUMN_ITEM_ID}
+         * is the _id of the task or reminder, and {@link #COLUMN_KIND} tells which one it is.
+         */
+        public final static String _ID = BaseColumns._ID;
+        public final static String COLUMN_KIND = "kind";
+        public final static String COLUMN_ITEM_ID = "item_id";
+        public final static String COLUMN_TITLE = "title";
+        public final static String COLUMN_DETAILS = "details";
+        /** Status of a matching task, null for reminders */
+        public final static String COLUMN_TASK_STATUS = "status";
+
+        public static final int KIND_TASK = 0;
+        public static final int KIND_REMINDER = 1;
+
+        /**
+         * Build the URI to search for the given text. Every word of the text has to appear in the
+         * title or details of a match, either as a whole word or as the start of one.
+         */
+        public static Uri buildSearchUri(String text) {
+            return CONTENT_URI.buildUpon().appendPath(text).build();
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for the archived tasks. Done tasks are moved to
+     * the archive in the background some time after they were completed (see
+     * {@link WorkContract#METHOD_SET_ARCHIVE_AGE}), so the tasks table and its indexes only hold
+     * the tasks in use. Archived tasks keep their _id, can be searched with
+     * {@link #buildSearchUri} and moved back with {@link WorkContract#METHOD_RESTORE_TASK}.
+     */
+    public static final class ArchiveEntry implements BaseColumns {
+
+        /** The content URI to access the archived tasks in the provider */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(TaskEntry.CONTENT_URI, PATH_ARCHIVE);
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of archived tasks.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_TASKS + "/" + PATH_ARCHIVE;
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a single archived task.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_TASKS + "/" + PATH_ARCHIVE;
+
+        /** Name of database table for archived tasks */
+        public final static String TABLE_NAME = "tasks_archive";
+
+        /** Name of the FTS4 virtual table indexing the archived tasks */
+        public final static String SEARCH_TABLE_NAME = "archive_search";
+
+        public final static String _ID = BaseColumns._ID;
+        public final static String COLUMN_TITLE = "title";
+        public final static String COLUMN_DETAILS = "details";
+        /** When the task was added and completed, in milliseconds since the epoch */
+        public final static String COLUMN_CREATED = "created";
+        public final static String COLUMN_COMPLETED = "completed";
+
+        /**
+         * Build the URI searching the titles and details of the archived tasks for the given text.
+         * Every word of the text has to match, as a whole word or as the start of one.
+         */
+        public static Uri buildSearchUri(String text) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SEARCH).appendPath(text).build();
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for exporting the database, for backups and
+     * analysis. Opening {@link #CONTENT_URI} with {@link ContentResolver#openInputStream} gives
+     * the tasks, the archived tasks and the reminders as one JSON object, with an array of rows
+     * per table under {@link #TABLE_TASKS}, {@link #TABLE_ARCHIVE} and {@link #TABLE_REMINDERS}.
+     * A URI from {@link #buildTableUri} gives a single table, as a JSON array or as CSV with a
+     * header row. The rows are written as they are read, so the stream can be read right away.
+     */
+    public static final class ExportEntry {
+
+        /** The content URI to export the whole database */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_EXPORT);
+
+        /** Query parameter with the format of the export, {@link #FORMAT_JSON} (the default) or {@link #FORMAT_CSV} */
+        public static final String QUERY_FORMAT = "format";
+        public static final String FORMAT_JSON = "json";
+        public static final String FORMAT_CSV = "csv";
+
+        /** The MIME types of an export in each format */
+        public static final String JSON_TYPE = "application/json";
+        public static final String CSV_TYPE = "text/csv";
+
+        /** The tables that can be exported */
+        public static final String TABLE_TASKS = PATH_TASKS;
+        public static final String TABLE_ARCHIVE = PATH_ARCHIVE;
+        public static final String TABLE_REMINDERS = PATH_REMINDERS;
+
+        /**
+         * Build the URI to export one table, e.g. {@link #TABLE_TASKS}, in the given format.
+         */
+        public static Uri buildTableUri(String table, String format) {
+            return CONTENT_URI.buildUpon().appendPath(table).appendQueryParameter(QUERY_FORMAT, format).build();
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for the import checkpoints table. It holds one
+     * row per imported file with the number of its records imported so far. A file is imported
+     * in batches, and each batch is a bulk insert through a URI from {@link #buildBatchUri}, which
+     * updates the checkpoint in the same transaction as the batch's rows. An interrupted import
+     * then carries on after its last committed batch, without adding any row twice.
+     */
+    public static final class ImportEntry {
+
+        /** The content URI to read, add and remove import checkpoints */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_IMPORTS);
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the list of import checkpoints.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_IMPORTS;
+
+        /** Name of database table for import checkpoints */
+        public final static String TABLE_NAME = "imports";
+
+        /** The importer's name for the file, e.g. its URI; unique */
+        public final static String COLUMN_SOURCE = "source";
+        /** Number of records of the file imported so far, counting the ones that were skipped */
+        public final static String COLUMN_RECORDS = "records";
+        /** Non-zero once the whole file has been imported */
+        public final static String COLUMN_FINISHED = "finished";
+
+        /** Query parameters of a batch URI, see {@link #buildBatchUri} */
+        public static final String QUERY_IMPORT_SOURCE = "import_source";
+        public static final String QUERY_IMPORT_RECORDS = "import_records";
+
+        /**
+         * Build the URI to bulk insert a batch of an import into the table at uri, e.g.
+         * {@link TaskEntry#CONTENT_URI}. Once the batch commits, the checkpoint of the source says
+         * records records of the file have been imported.
+         */
+        public static Uri buildBatchUri(Uri uri, String source, long records) {
+            return uri.buildUpon()
+                    .appendQueryParameter(QUERY_IMPORT_SOURCE, source)
+                    .appendQueryParameter(QUERY_IMPORT_RECORDS, String.valueOf(records))
+                    .build();
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for the change feed: a log with a record for
+     * every task, archived task and reminder that was added, changed or removed, numbered by a
+     * sequence that only ever goes up. Records are written by triggers in the transaction of the
+     * change itself, whichever way it was made, so the feed never misses one or shows one that
+     * was rolled back.
+     *
+     * A consumer, e.g. a widget or the statistics, registers under a name at
+     * {@link #CONSUMERS_URI}, reads the records after the last sequence number it has handled
+     * through {@link #buildSinceUri}, re-reads the rows they name, and then stores that sequence
+     * number in its {@link #COLUMN_SEEN}. Records every registered consumer has seen are
+     * trimmed. A record names a row, not its values, and a row changed several times may show up
+     * in several records.
+     */
+    public static final class ChangeEntry {
+
+        /** The content URI to read the change records */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_CHANGES);
+        /** The content URI to register, advance and remove the consumers of the feed */
+        public static final Uri CONSUMERS_URI = Uri.withAppendedPath(CONTENT_URI, PATH_CONSUMERS);
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the list of change records.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_CHANGES;
+        /**
+         * The MIME type of the {@link #CONSUMERS_URI} for the list of consumers.
+         */
+        public static final String CONSUMERS_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_CHANGES + "/" + PATH_CONSUMERS;
+
+        /** Query parameter of the sequence number to read the records after; 0 reads them all */
+        public static final String QUERY_SINCE = "since";
+
+        /** Name of database table for change records */
+        public final static String TABLE_NAME = "changes";
+
+        /** Sequence number of the record, higher than that of every record before it */
+        public final static String COLUMN_SEQUENCE = "seq";
+        /** What changed, one of the SOURCE_ constants */
+        public final static String COLUMN_SOURCE = "source";
+        /** _id of the row that changed; null for {@link #OP_RESET} */
+        public final static String COLUMN_ROW_ID = "row_id";
+        /** How it changed, one of the OP_ constants */
+        public final static String COLUMN_OP = "op";
+
+        /** Possible values of {@link #COLUMN_SOURCE} */
+        public static final int SOURCE_TASKS = 1;
+        public static final int SOURCE_ARCHIVE = 2;
+        public static final int SOURCE_REMINDERS = 3;
+
+        /** Possible values of {@link #COLUMN_OP} */
+        public static final int OP_INSERT = 1;
+        public static final int OP_UPDATE = 2;
+        public static final int OP_DELETE = 3;
+        /** Every task with an _id up to {@link #COLUMN_ROW_ID} was deleted, e.g. by "delete all" */
+        public static final int OP_DELETE_THROUGH = 4;
+        /** Every row of the source may have changed, e.g. after a snapshot was restored */
+        public static final int OP_RESET = 5;
+
+        /** Name of database table for the consumers of the feed */
+        public final static String CONSUMERS_TABLE_NAME = "change_consumers";
+
+        /** The consumer's name; unique */
+        public final static String COLUMN_CONSUMER = "consumer";
+        /**
+         * Sequence number of the last record the consumer has handled. It starts at the newest
+         * record when the consumer registers and can only move forward.
+         */
+        public final static String COLUMN_SEEN = "seen";
+
+        /**
+         * Build the URI to read at most limit change records after the given sequence number,
+         * oldest first.
+         */
+        public static Uri buildSinceUri(long since, int limit) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_SINCE, String.valueOf(since))
+                    .appendQueryParameter(QUERY_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for the task counts table. It holds one row
+     * per task status with the number of tasks in that status, kept up to date by triggers on
+     * the tasks table, so reading a count never has to count rows.
+     */
+    public static final class TaskCountEntry {
+
+        /** The content URI to read the number of tasks in each status */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(TaskEntry.CONTENT_URI, PATH_COUNTS);
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the list of task counts.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_TASKS + "/" + PATH_COUNTS;
+
+        /** Name of database table for task counts */
+        public final static String TABLE_NAME = "task_counts";
+
+        public final static String COLUMN_STATUS = "status";
+        public final static String COLUMN_COUNT = "count";
+    }
+
+    /**
+     * Inner class that defines constant values for the task events table: an append-only log
+     * with a row for every change of a task's status, e.g. from To Do to Doing. It is written in
+     * the same transaction as the change itself, so it never misses or invents one.
+     *
+     * Events are indexed by time; select a range with "time >= ? AND time < ?" and sort by time
+     * to read the history of a period without scanning the rest of it.
+     */
+    public static final class TaskEventEntry implements BaseColumns {
+
+        /** The content URI to read the task events */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(TaskEntry.CONTENT_URI, PATH_EVENTS);
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the list of task events.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_TASKS + "/" + PATH_EVENTS;
+
+        /** Name of database table for task events */
+        public final static String TABLE_NAME = "task_events";
+
+        public final static String _ID = BaseColumns._ID;
+        /** _id of the task that changed; the event outlives the task if it is deleted */
+        public final static String COLUMN_TASK_ID = "task_id";
+        /** Status before and after the change, one of the TaskEntry STATUS_ constants */
+        public final static String COLUMN_FROM_STATUS = "from_status";
+        public final static String COLUMN_TO_STATUS = "to_status";
+        /** When the change happened, in milliseconds since the epoch */
+        public final static String COLUMN_TIME = "time";
+    }
+
+    /**
+     * Inner class that defines constant values for the productivity statistics: one row per
+     * local day on which tasks were completed, with the number of tasks completed that day and
+     * how long they took from entering To Do to being done. The rows are kept up to date whenever
+     * the provider moves a task to or from Done, so reading them never goes through the tasks or
+     * their history. A task moved out of Done again no longer counts on the day it was completed;
+     * if it is done again, it counts on that day.
+     *
+     * {@link #CONTENT_URI} has a row per day, {@link #WEEKS_URI} a row per week starting on a
+     * Monday. Select a range with "day >= ? AND day < ?".
+     */
+    public static final class StatsEntry {
+
+        /** The content URI to read the statistics per day */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_STATS);
+        /** The content URI to read the statistics per week */
+        public static final Uri WEEKS_URI = Uri.withAppendedPath(CONTENT_URI, PATH_WEEKS);
+        /**
+         * The MIME type of {@link #CONTENT_URI} and {@link #WEEKS_URI}.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STATS;
+
+        /** Name of database table for the daily statistics */
+        public final static String TABLE_NAME = "daily_stats";
+
+        /**
+         * The day, in the time zone the tasks were completed in, as days since 1970-01-01. For
+         * the weeks, the Monday the week starts on.
+         */
+        public final static String COLUMN_DAY = "day";
+        /** Number of tasks moved to Done */
+        public final static String COLUMN_COMPLETED = "completed";
+        /**
+         * Number of those tasks whose time to completion is known, and their total time. The
+         * time counts from the task's latest move to To Do, or from when it was added in To Do;
+         * tasks that were never in To Do aren't timed.
+         */
+        public final static String COLUMN_TIMED_COUNT = "timed_count";
+        public final static String COLUMN_TOTAL_MILLIS = "total_millis";
+        /** Average time from entering To Do to being done, or null if none is known */
+        public final static String COLUMN_AVERAGE_MILLIS = "average_millis";
+    }
+
+    /**
+     * Inner class that defines the provider's own call metrics: one row per operation and URI
+     * pattern that has been called since the process started. Also printed by
+     * "adb shell dumpsys activity provider".
+     */
+    public static final class MetricsEntry implements BaseColumns {
+
+        /** The content URI to read the metrics */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_METRICS);
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the list of metrics.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_METRICS;
+
+        /** query, insert, bulkInsert, update or delete */
+        public final static String COLUMN_OPERATION = "operation";
+        /** URI pattern the calls were made on, e.g. "tasks/#" */
+        public final static String COLUMN_URI = "uri";
+        public final static String COLUMN_CALLS = "calls";
+        /** Rows returned by the queries, or rows changed by the writes */
+        public final static String COLUMN_ROWS = "rows";
+        public final static String COLUMN_TOTAL_MICROS = "total_us";
+        public final static String COLUMN_MAX_MICROS = "max_us";
+        /** Upper bounds of the latency percentiles, within a factor of two */
+        public final static String COLUMN_P50_MICROS = "p50_us";
+        public final static String COLUMN_P90_MICROS = "p90_us";
+        public final static String COLUMN_P99_MICROS = "p99_us";
+
+        /** Every column, in order */
+        public static final String[] COLUMNS = { _ID, COLUMN_OPERATION, COLUMN_URI, COLUMN_CALLS, COLUMN_ROWS,
+                COLUMN_TOTAL_MICROS, COLUMN_MAX_MICROS, COLUMN_P50_MICROS, COLUMN_P90_MICROS, COLUMN_P99_MICROS };
+    }
+
+    /**
+     * Inner class that defines the slow query log: the most recent provider calls that took
+     * longer than the threshold, newest first, with the query plan SQLite chose for them.
+     * Also printed by "adb shell dumpsys activity provider".
+     */
+    public static final class SlowQueryEntry implements BaseColumns {
+
+        /** The content URI to read the slow query log */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SLOW_QUERIES);
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the list of slow queries.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SLOW_QUERIES;
+
+        /** When the call finished, in milliseconds since the epoch */
+        public final static String COLUMN_TIME = "time";
+        /** query, insert, bulkInsert, update or delete */
+        public final static String COLUMN_OPERATION = "operation";
+        /** URI pattern the call was made on, e.g. "tasks/status/#" */
+        public final static String COLUMN_URI = "uri";
+        public final static String COLUMN_DURATION_MICROS = "duration_us";
+        /** The SQL that ran, with ? in place of the arguments */
+        public final static String COLUMN_SQL = "sql";
+        /** The kind of each selection argument (num, text or null), without their values */
+        public final static String COLUMN_ARGS = "args";
+        /** Output of EXPLAIN QUERY PLAN for the SQL, one step per line */
+        public final static String COLUMN_PLAN = "plan";
+
+        /** Every column, in order */
+        public static final String[] COLUMNS = { _ID, COLUMN_TIME, COLUMN_OPERATION, COLUMN_URI,
+                COLUMN_DURATION_MICROS, COLUMN_SQL, COLUMN_ARGS, COLUMN_PLAN };
+    }
+}
@@ -1,17 +1,125 @@
 package com.example.android.productivityladder.data;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import com.example.android.productivityladder.data.WorkContract.ArchiveEntry;
+import com.example.android.productivityladder.data.WorkContract.ChangeEntry;
+import com.example.android.productivityladder.data.WorkContract.ImportEntry;
 import com.example.android.productivityladder.data.WorkContract.ReminderEntry;
+import com.example.android.productivityladder.data.WorkContract.SearchEntry;
+import com.example.android.productivityladder.data.WorkContract.StatsEntry;
+import com.example.android.productivityladder.data.WorkContract.TaskCountEntry;
 import com.example.android.productivityladder.data.WorkContract.TaskEntry;
+import com.example.android.productivityladder.data.WorkContract.TaskEventEntry;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 
 public class WorkDbHelper extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "work_manager.db";
-    private static final int DATABASE_VERSION = 4;
+
+    /**
+     * Version of the schema created by {@link #onCreate(SQLiteDatabase)} before any migration
+     * step runs. Databases older than this predate the migrations and can only be recreated.
+     */
+    private static final int BASE_VERSION = 4;
+    private static final int DATABASE_VERSION = 19;
+
+    /** Index serving the per-status task queries of the To Do, Doing and Done tabs */
+    private static final String INDEX_TASKS_STATUS = "tasks_status_idx";
+
+    /** Index serving the tab queries once they are sorted by the tasks' positions */
+    private static final String INDEX_TASKS_POSITION = "tasks_position_idx";
+
+    /** Index finding the Done tasks that are old enough to be archived */
+    private static final String INDEX_TASKS_COMPLETED = "tasks_completed_idx";
+
+    /** SQL expression for the current time in milliseconds since the epoch */
+    private static final String NOW_MILLIS = "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+
+    /** Indexes finding a task by its sync id, and the tasks with changes to send */
+    private static final String INDEX_TASKS_SYNC_ID = "tasks_sync_id_idx";
+    private static final String INDEX_TASKS_DIRTY = "tasks_dirty_idx";
+
+    /** Index finding the deleted and archived tasks for the purger */
+    private static final String INDEX_TASKS_DELETED = "tasks_deleted_idx";
+
+    /** Index serving the reads of the task history over a period of time */
+    private static final String INDEX_TASK_EVENTS_TIME = "task_events_time_idx";
+
+    /** Index finding the moves of one task, by the status it was moved to */
+    private static final String INDEX_TASK_EVENTS_TASK = "task_events_task_idx";
+
+    /**
+     * Distance between the positions of neighbouring tasks when they are appended or renumbered.
+     * A task moved between two others takes the middle of their gap, so about 16 moves can land
+     * in the same gap before {@link TaskRenumberer} has to spread the positions out again.
+     */
+    static final long POSITION_GAP = 1 << 16;
+
+    /**
+     * Tombstone of a deleted task: non-zero once the task is deleted. Deleted tasks stay in the
+     * table, hidden from every query, until {@link TaskPurger} removes them.
+     * {@link #TASK_ARCHIVED} marks a task that was moved to the archive rather than deleted.
+     */
+    static final String COLUMN_TASK_DELETED = "deleted";
+    static final int TASK_DELETED = 1;
+    static final int TASK_ARCHIVED = 2;
+
+    /**
+     * Sync state of a task (see {@link TaskSyncer}): the id of the task shared by every device,
+     * the server's version of the task as last sent or received, 0 if the server doesn't have it
+     * yet, and the number of local changes not yet sent, so a task is dirty while it is above 0.
+     */
+    static final String COLUMN_TASK_SYNC_ID = "sync_id";
+    static final String COLUMN_TASK_VERSION = "version";
+    static final String COLUMN_TASK_DIRTY = "dirty";
+
+    /** Sync ids of tasks the server knows about that were removed before their deletion was sent */
+    static final String TABLE_TASK_SYNC_DELETES = "task_sync_deletes";
+
+    /**
+     * One-row table holding the highest task _id covered by a "delete all". Every task up to it
+     * is deleted, without having to touch the task rows when the user clears the list.
+     */
+    static final String TABLE_TASK_WATERMARK = "task_delete_watermark";
+    static final String COLUMN_DELETED_THROUGH = "deleted_through";
+
+    /** Condition selecting the tasks that haven't been deleted */
+    static final String LIVE_TASKS = COLUMN_TASK_DELETED + " = 0 AND " + TaskEntry._ID + " > (SELECT "
+            + COLUMN_DELETED_THROUGH + " FROM " + TABLE_TASK_WATERMARK + ")";
 
     public WorkDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Open the work database under another file name. Used by tests and benchmarks, so they
+     * don't touch the user's data.
+     */
+    WorkDbHelper(Context context, String name) {
+        // The cursor factory lets the slow query log see which SQL a slow call ran
+        super(context, name, SlowQueryLog.CURSOR_FACTORY, DATABASE_VERSION);
+        // With write-ahead logging, readers work from their own pooled connections on the last
+        // committed snapshot, so the tab loaders never wait on a save in progress. The pool
+        // itself is sized by the platform once WAL is on.
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        // In WAL mode a commit only has to append to the log; NORMAL syncs at checkpoints
+        // instead of on every commit and still can't corrupt the database on power loss.
+        db.execSQL("PRAGMA synchronous = NORMAL");
+        // Let the maintenance job give the pages of deleted rows back to the file system. Only an
+        // empty file switches over right away; any other one does on its next VACUUM, which the
+        // maintenance job runs once for that.
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
     }
 
     @Override
@@ -31,12 +139,578 @@ public class WorkDbHelper extends SQLiteOpenHelper {
 
         db.execSQL(SQL_CREATE_REMINDERS_TABLE);
         db.execSQL(SQL_CREATE_TASKS_TABLE);
+
+        // Bring the base schema up to date with the same steps an existing install goes through
+        migrate(db, BASE_VERSION, DATABASE_VERSION);
     }
 
     @Override
-    public void onUpgrade(SQLiteDatabase db, int i, int i1) {
-        db.execSQL("DROP TABLE IF EXISTS '" + ReminderEntry.TABLE_NAME + "'");
-        db.execSQL("DROP TABLE IF EXISTS '" + TaskEntry.TABLE_NAME + "'");
-        onCreate(db);
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < BASE_VERSION) {
+            // There are no migration steps for schemas this old, so start over
+            db.execSQL("DROP TABLE IF EXISTS '" + ReminderEntry.TABLE_NAME + "'");
+            db.execSQL("DROP TABLE IF EXISTS '" + TaskEntry.TABLE_NAME + "'");
+            onCreate(db);
+            return;
+        }
+        migrate(db, oldVersion, newVersion);
+    }
+
+    /**
+     * Apply the migration steps one version at a time, from oldVersion up to newVersion.
+     * Every step keeps the existing rows. SQLiteOpenHelper already runs this inside a
+     * transaction, so a failing step leaves the database at its old version.
+     */
+    private static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            switch (version) {
+                case 5:
+                    upgradeToVersion5(db);
+                    break;
+                case 6:
+                    upgradeToVersion6(db);
+                    break;
+                case 7:
+                    upgradeToVersion7(db);
+                    break;
+                case 8:
+                    upgradeToVersion8(db);
+                    break;
+                case 9:
+                    upgradeToVersion9(db);
+                    break;
+                case 10:
+                    upgradeToVersion10(db);
+                    break;
+                case 11:
+                    upgradeToVersion11(db);
+                    break;
+                case 12:
+                    upgradeToVersion12(db);
+                    break;
+                case 13:
+                    upgradeToVersion13(db);
+                    break;
+                case 14:
+                    upgradeToVersion14(db);
+                    break;
+                case 15:
+                    upgradeToVersion15(db);
+                    break;
+                case 16:
+                    upgradeToVersion16(db);
+                    break;
+                case 17:
+                    upgradeToVersion17(db);
+                    break;
+                case 18:
+                    upgradeToVersion18(db);
+                    break;
+                case 19:
+                    upgradeToVersion19(db);
+                    break;
+                default:
+                    throw new IllegalStateException("No migration to database version " + version);
+            }
+        }
+    }
+
+    /**
+     * Version 5: index tasks by (status, _id), so each tab's "status = ?" query is a range
+     * scan instead of a full table scan, already in _id order.
+     */
+    private static void upgradeToVersion5(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_TASKS_STATUS + " ON " + TaskEntry.TABLE_NAME + "("
+                + TaskEntry.COLUMN_TASK_STATUS + ", " + TaskEntry._ID + ");");
+    }
+
+    /**
+     * Version 6: full-text index over the titles and details of tasks and reminders. The index
+     * docid encodes both the row and its table (_id * 2 for tasks, _id * 2 + 1 for reminders),
+     * and triggers keep it in step with every insert, edit and delete of either table.
+     */
+    private static void upgradeToVersion6(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE " + SearchEntry.TABLE_NAME + " USING fts4("
+                + SearchEntry.COLUMN_TITLE + ", " + SearchEntry.COLUMN_DETAILS + ");");
+
+        createSearchTriggers(db, TaskEntry.TABLE_NAME, TaskEntry.COLUMN_TASK_TITLE,
+                TaskEntry.COLUMN_TASK_DETAILS, SearchEntry.KIND_TASK);
+        createSearchTriggers(db, ReminderEntry.TABLE_NAME, ReminderEntry.COLUMN_REMINDER_NAME,
+                ReminderEntry.COLUMN_REMINDER_DETAILS, SearchEntry.KIND_REMINDER);
+
+        // Index the rows that are already there
+        db.execSQL("INSERT INTO " + SearchEntry.TABLE_NAME + "(docid, " + SearchEntry.COLUMN_TITLE + ", "
+                + SearchEntry.COLUMN_DETAILS + ") SELECT " + TaskEntry._ID + " * 2 + " + SearchEntry.KIND_TASK + ", "
+                + TaskEntry.COLUMN_TASK_TITLE + ", " + TaskEntry.COLUMN_TASK_DETAILS
+                + " FROM " + TaskEntry.TABLE_NAME + ";");
+        db.execSQL("INSERT INTO " + SearchEntry.TABLE_NAME + "(docid, " + SearchEntry.COLUMN_TITLE + ", "
+                + SearchEntry.COLUMN_DETAILS + ") SELECT " + ReminderEntry._ID + " * 2 + " + SearchEntry.KIND_REMINDER + ", "
+                + ReminderEntry.COLUMN_REMINDER_NAME + ", " + ReminderEntry.COLUMN_REMINDER_DETAILS
+                + " FROM " + ReminderEntry.TABLE_NAME + ";");
+    }
+
+    private static void createSearchTriggers(SQLiteDatabase db, String table, String titleColumn,
+                                             String detailsColumn, int kind) {
+        String docid = " * 2 + " + kind;
+        db.execSQL("CREATE TRIGGER " + table + "_search_insert AFTER INSERT ON " + table + " BEGIN "
+                + "INSERT INTO " + SearchEntry.TABLE_NAME + "(docid, " + SearchEntry.COLUMN_TITLE + ", "
+                + SearchEntry.COLUMN_DETAILS + ") VALUES (new._id" + docid + ", new." + titleColumn
+                + ", new." + detailsColumn + "); END;");
+        db.execSQL("CREATE TRIGGER " + table + "_search_update AFTER UPDATE OF " + titleColumn + ", "
+                + detailsColumn + " ON " + table + " BEGIN "
+                + "UPDATE " + SearchEntry.TABLE_NAME + " SET " + SearchEntry.COLUMN_TITLE + " = new." + titleColumn
+                + ", " + SearchEntry.COLUMN_DETAILS + " = new." + detailsColumn
+                + " WHERE docid = old._id" + docid + "; END;");
+        db.execSQL("CREATE TRIGGER " + table + "_search_delete AFTER DELETE ON " + table + " BEGIN "
+                + "DELETE FROM " + SearchEntry.TABLE_NAME + " WHERE docid = old._id" + docid + "; END;");
+    }
+
+    /**
+     * Version 7: one row per task status holding the number of tasks in it. Triggers adjust
+     * the counts on every insert, delete and status change, so the tab badges read three rows
+     * instead of counting the tasks table.
+     */
+    private static void upgradeToVersion7(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TaskCountEntry.TABLE_NAME + "("
+                + TaskCountEntry.COLUMN_STATUS + " INTEGER PRIMARY KEY, "
+                + TaskCountEntry.COLUMN_COUNT + " INTEGER NOT NULL DEFAULT 0);");
+        for (int status : new int[] {
+                TaskEntry.STATUS_NOT_STARTED, TaskEntry.STATUS_IN_PROGRESS, TaskEntry.STATUS_COMPLETED }) {
+            db.execSQL("INSERT INTO " + TaskCountEntry.TABLE_NAME + "(" + TaskCountEntry.COLUMN_STATUS + ", "
+                    + TaskCountEntry.COLUMN_COUNT + ") SELECT " + status + ", COUNT(*) FROM " + TaskEntry.TABLE_NAME
+                    + " WHERE " + TaskEntry.COLUMN_TASK_STATUS + " = " + status + ";");
+        }
+
+        db.execSQL("CREATE TRIGGER tasks_count_insert AFTER INSERT ON " + TaskEntry.TABLE_NAME + " BEGIN "
+                + adjustTaskCount("new", "+ 1") + " END;");
+        db.execSQL("CREATE TRIGGER tasks_count_delete AFTER DELETE ON " + TaskEntry.TABLE_NAME + " BEGIN "
+                + adjustTaskCount("old", "- 1") + " END;");
+        db.execSQL("CREATE TRIGGER tasks_count_update AFTER UPDATE OF " + TaskEntry.COLUMN_TASK_STATUS
+                + " ON " + TaskEntry.TABLE_NAME
+                + " WHEN old." + TaskEntry.COLUMN_TASK_STATUS + " <> new." + TaskEntry.COLUMN_TASK_STATUS + " BEGIN "
+                + adjustTaskCount("old", "- 1") + " "
+                + adjustTaskCount("new", "+ 1") + " END;");
+    }
+
+    /**
+     * Version 8: deleting tasks marks them instead of removing them, so a delete costs an update
+     * of the matched rows, and clearing every task only moves the watermark. The task counts
+     * now drop when a task is marked; the rows are removed in the background later on.
+     */
+    private static void upgradeToVersion8(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TaskEntry.TABLE_NAME + " ADD COLUMN "
+                + COLUMN_TASK_DELETED + " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("CREATE TABLE " + TABLE_TASK_WATERMARK + "("
+                + COLUMN_DELETED_THROUGH + " INTEGER NOT NULL);");
+        db.execSQL("INSERT INTO " + TABLE_TASK_WATERMARK + "(" + COLUMN_DELETED_THROUGH + ") VALUES (0);");
+
+        // Removing a row is now only the purge of a task that was already counted out
+        db.execSQL("DROP TRIGGER IF EXISTS tasks_count_delete;");
+        db.execSQL("CREATE TRIGGER tasks_count_tombstone AFTER UPDATE OF " + COLUMN_TASK_DELETED
+                + " ON " + TaskEntry.TABLE_NAME
+                + " WHEN old." + COLUMN_TASK_DELETED + " = 0 AND new." + COLUMN_TASK_DELETED + " <> 0 BEGIN "
+                + adjustTaskCount("old", "- 1") + " END;");
+
+        // Only live tasks are counted, so only their moves change the counts
+        db.execSQL("DROP TRIGGER IF EXISTS tasks_count_update;");
+        db.execSQL("CREATE TRIGGER tasks_count_update AFTER UPDATE OF " + TaskEntry.COLUMN_TASK_STATUS
+                + " ON " + TaskEntry.TABLE_NAME
+                + " WHEN old." + TaskEntry.COLUMN_TASK_STATUS + " <> new." + TaskEntry.COLUMN_TASK_STATUS
+                + " AND new." + COLUMN_TASK_DELETED + " = 0 BEGIN "
+                + adjustTaskCount("old", "- 1") + " "
+                + adjustTaskCount("new", "+ 1") + " END;");
+    }
+
+    /**
+     * Version 9: tasks have a position in the list of their status, which the tabs are sorted
+     * by. The existing tasks keep their _id order. The (status, position, _id) index serves the
+     * sorted tab queries and every lookup the (status, _id) index did, so that one is dropped.
+     * A task moved to another status is put at the end of its new list by a trigger.
+     */
+    private static void upgradeToVersion9(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TaskEntry.TABLE_NAME + " ADD COLUMN "
+                + TaskEntry.COLUMN_TASK_POSITION + " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("UPDATE " + TaskEntry.TABLE_NAME + " SET " + TaskEntry.COLUMN_TASK_POSITION + " = "
+                + TaskEntry._ID + " * " + POSITION_GAP + ";");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_TASKS_POSITION + " ON " + TaskEntry.TABLE_NAME + "("
+                + TaskEntry.COLUMN_TASK_STATUS + ", " + TaskEntry.COLUMN_TASK_POSITION + ", " + TaskEntry._ID + ");");
+        db.execSQL("DROP INDEX IF EXISTS " + INDEX_TASKS_STATUS + ";");
+
+        db.execSQL("CREATE TRIGGER tasks_position_status AFTER UPDATE OF " + TaskEntry.COLUMN_TASK_STATUS
+                + " ON " + TaskEntry.TABLE_NAME
+                + " WHEN old." + TaskEntry.COLUMN_TASK_STATUS + " <> new." + TaskEntry.COLUMN_TASK_STATUS + " BEGIN "
+                + "UPDATE " + TaskEntry.TABLE_NAME + " SET " + TaskEntry.COLUMN_TASK_POSITION + " = "
+                + lastPosition("new." + TaskEntry.COLUMN_TASK_STATUS) + " + " + POSITION_GAP
+                + " WHERE " + TaskEntry._ID + " = new." + TaskEntry._ID + "; END;");
+    }
+
+    /**
+     * Version 10: the task events log. Rows are a handful of integers keyed by their rowid, so
+     * appending one is a single short write at the end of the table; the time index keeps range
+     * reads over any period cheap however long the history gets.
+     */
+    private static void upgradeToVersion10(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TaskEventEntry.TABLE_NAME + "("
+                + TaskEventEntry._ID + " INTEGER PRIMARY KEY, "
+                + TaskEventEntry.COLUMN_TASK_ID + " INTEGER NOT NULL, "
+                + TaskEventEntry.COLUMN_FROM_STATUS + " INTEGER NOT NULL, "
+                + TaskEventEntry.COLUMN_TO_STATUS + " INTEGER NOT NULL, "
+                + TaskEventEntry.COLUMN_TIME + " INTEGER NOT NULL);");
+        db.execSQL("CREATE INDEX " + INDEX_TASK_EVENTS_TIME + " ON " + TaskEventEntry.TABLE_NAME + "("
+                + TaskEventEntry.COLUMN_TIME + ");");
+    }
+
+    /**
+     * Version 11: daily productivity statistics, and the time each task was added so its time to
+     * completion can be counted. The statistics are filled from the completions already in the
+     * task events log; those tasks have no time added, so they aren't timed.
+     */
+    private static void upgradeToVersion11(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TaskEntry.TABLE_NAME + " ADD COLUMN "
+                + TaskEntry.COLUMN_TASK_CREATED + " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("CREATE TABLE " + StatsEntry.TABLE_NAME + "("
+                + StatsEntry.COLUMN_DAY + " INTEGER PRIMARY KEY, "
+                + StatsEntry.COLUMN_COMPLETED + " INTEGER NOT NULL DEFAULT 0, "
+                + StatsEntry.COLUMN_TIMED_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+                + StatsEntry.COLUMN_TOTAL_MILLIS + " INTEGER NOT NULL DEFAULT 0);");
+
+        // Days are local, so they are worked out here rather than in SQL
+        Map<Long, Integer> completedByDay = new HashMap<>();
+        Cursor cursor = db.query(TaskEventEntry.TABLE_NAME, new String[] { TaskEventEntry.COLUMN_TIME },
+                TaskEventEntry.COLUMN_TO_STATUS + " = " + TaskEntry.STATUS_COMPLETED, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                long day = localDay(cursor.getLong(0));
+                Integer completed = completedByDay.get(day);
+                completedByDay.put(day, completed == null ? 1 : completed + 1);
+            }
+        } finally {
+            cursor.close();
+        }
+        for (Map.Entry<Long, Integer> entry : completedByDay.entrySet()) {
+            db.execSQL("INSERT INTO " + StatsEntry.TABLE_NAME + "(" + StatsEntry.COLUMN_DAY + ", "
+                    + StatsEntry.COLUMN_COMPLETED + ") VALUES (" + entry.getKey() + ", " + entry.getValue() + ");");
+        }
+    }
+
+    /**
+     * Version 12: the archive of old Done tasks. Tasks record when they were completed, set by
+     * triggers whenever a task enters or leaves Done; the tasks that are already done count as
+     * completed now, as that time wasn't kept before. The archive has its own full-text index,
+     * which reads the text from the archive table instead of keeping a copy of it.
+     */
+    private static void upgradeToVersion12(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TaskEntry.TABLE_NAME + " ADD COLUMN "
+                + TaskEntry.COLUMN_TASK_COMPLETED + " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("UPDATE " + TaskEntry.TABLE_NAME + " SET " + TaskEntry.COLUMN_TASK_COMPLETED + " = " + NOW_MILLIS
+                + " WHERE " + TaskEntry.COLUMN_TASK_STATUS + " = " + TaskEntry.STATUS_COMPLETED + ";");
+        // Tasks that aren't done have 0, so the archiver's range scan skips over them
+        db.execSQL("CREATE INDEX " + INDEX_TASKS_COMPLETED + " ON " + TaskEntry.TABLE_NAME + "("
+                + TaskEntry.COLUMN_TASK_COMPLETED + ");");
+        db.execSQL("CREATE TRIGGER tasks_completed_insert AFTER INSERT ON " + TaskEntry.TABLE_NAME
+                + " WHEN new." + TaskEntry.COLUMN_TASK_STATUS + " = " + TaskEntry.STATUS_COMPLETED
+                + " AND new." + TaskEntry.COLUMN_TASK_COMPLETED + " = 0 BEGIN "
+                + "UPDATE " + TaskEntry.TABLE_NAME + " SET " + TaskEntry.COLUMN_TASK_COMPLETED + " = " + NOW_MILLIS
+                + " WHERE " + TaskEntry._ID + " = new." + TaskEntry._ID + "; END;");
+        db.execSQL("CREATE TRIGGER tasks_completed_status AFTER UPDATE OF " + TaskEntry.COLUMN_TASK_STATUS
+                + " ON " + TaskEntry.TABLE_NAME
+                + " WHEN old." + TaskEntry.COLUMN_TASK_STATUS + " <> new." + TaskEntry.COLUMN_TASK_STATUS + " BEGIN "
+                + "UPDATE " + TaskEntry.TABLE_NAME + " SET " + TaskEntry.COLUMN_TASK_COMPLETED + " = CASE WHEN new."
+                + TaskEntry.COLUMN_TASK_STATUS + " = " + TaskEntry.STATUS_COMPLETED + " THEN " + NOW_MILLIS + " ELSE 0 END"
+                + " WHERE " + TaskEntry._ID + " = new." + TaskEntry._ID + "; END;");
+
+        db.execSQL("CREATE TABLE " + ArchiveEntry.TABLE_NAME + "("
+                + ArchiveEntry._ID + " INTEGER PRIMARY KEY, "
+                + ArchiveEntry.COLUMN_TITLE + " TEXT NOT NULL, "
+                + ArchiveEntry.COLUMN_DETAILS + " TEXT, "
+                + ArchiveEntry.COLUMN_CREATED + " INTEGER NOT NULL, "
+                + ArchiveEntry.COLUMN_COMPLETED + " INTEGER NOT NULL);");
+        db.execSQL("CREATE VIRTUAL TABLE " + ArchiveEntry.SEARCH_TABLE_NAME + " USING fts4(content=\""
+                + ArchiveEntry.TABLE_NAME + "\", " + ArchiveEntry.COLUMN_TITLE + ", " + ArchiveEntry.COLUMN_DETAILS + ");");
+        // An index over external content has to be told about every row added and removed.
+        // Archived tasks are never edited, only restored or deleted.
+        db.execSQL("CREATE TRIGGER " + ArchiveEntry.TABLE_NAME + "_search_insert AFTER INSERT ON "
+                + ArchiveEntry.TABLE_NAME + " BEGIN INSERT INTO " + ArchiveEntry.SEARCH_TABLE_NAME + "(docid, "
+                + ArchiveEntry.COLUMN_TITLE + ", " + ArchiveEntry.COLUMN_DETAILS + ") VALUES (new." + ArchiveEntry._ID
+                + ", new." + ArchiveEntry.COLUMN_TITLE + ", new." + ArchiveEntry.COLUMN_DETAILS + "); END;");
+        db.execSQL("CREATE TRIGGER " + ArchiveEntry.TABLE_NAME + "_search_delete BEFORE DELETE ON "
+                + ArchiveEntry.TABLE_NAME + " BEGIN INSERT INTO " + ArchiveEntry.SEARCH_TABLE_NAME + "("
+                + ArchiveEntry.SEARCH_TABLE_NAME + ", docid, " + ArchiveEntry.COLUMN_TITLE + ", "
+                + ArchiveEntry.COLUMN_DETAILS + ") VALUES ('delete', old." + ArchiveEntry._ID
+                + ", old." + ArchiveEntry.COLUMN_TITLE + ", old." + ArchiveEntry.COLUMN_DETAILS + "); END;");
+    }
+
+    /**
+     * Version 13: add the checkpoints of interrupted imports, one row per imported file.
+     */
+    private static void upgradeToVersion13(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + ImportEntry.TABLE_NAME + "("
+                + ImportEntry.COLUMN_SOURCE + " TEXT PRIMARY KEY, "
+                + ImportEntry.COLUMN_RECORDS + " INTEGER NOT NULL, "
+                + ImportEntry.COLUMN_FINISHED + " INTEGER NOT NULL DEFAULT 0);");
+    }
+
+    /**
+     * Version 14: keep track of what to sync. Every task gets a random sync id, and starts out
+     * dirty so the first sync sends it. A trigger counts every local change to a synced column;
+     * changes applied by the sync itself set the version as well, which the trigger leaves alone.
+     * A task the server knows about that is removed while its deletion is unsent, e.g. by a
+     * "delete all" and the purge after it, leaves its sync id behind to be sent as a deletion.
+     */
+    private static void upgradeToVersion14(SQLiteDatabase db) {
+        String randomId = "lower(hex(randomblob(16)))";
+        db.execSQL("ALTER TABLE " + TaskEntry.TABLE_NAME + " ADD COLUMN " + COLUMN_TASK_SYNC_ID + " TEXT;");
+        db.execSQL("ALTER TABLE " + TaskEntry.TABLE_NAME + " ADD COLUMN "
+                + COLUMN_TASK_VERSION + " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("ALTER TABLE " + TaskEntry.TABLE_NAME + " ADD COLUMN "
+                + COLUMN_TASK_DIRTY + " INTEGER NOT NULL DEFAULT 1;");
+        db.execSQL("UPDATE " + TaskEntry.TABLE_NAME + " SET " + COLUMN_TASK_SYNC_ID + " = " + randomId + ";");
+        db.execSQL("CREATE UNIQUE INDEX " + INDEX_TASKS_SYNC_ID + " ON " + TaskEntry.TABLE_NAME + "("
+                + COLUMN_TASK_SYNC_ID + ");");
+        // Few tasks are dirty at any time, so the sync finds them with a short range scan
+        db.execSQL("CREATE INDEX " + INDEX_TASKS_DIRTY + " ON " + TaskEntry.TABLE_NAME + "("
+                + COLUMN_TASK_DIRTY + ");");
+        db.execSQL("CREATE TABLE " + TABLE_TASK_SYNC_DELETES + "("
+                + COLUMN_TASK_SYNC_ID + " TEXT PRIMARY KEY, "
+                + COLUMN_TASK_VERSION + " INTEGER NOT NULL);");
+
+        db.execSQL("CREATE TRIGGER tasks_sync_id AFTER INSERT ON " + TaskEntry.TABLE_NAME
+                + " WHEN new." + COLUMN_TASK_SYNC_ID + " IS NULL BEGIN "
+                + "UPDATE " + TaskEntry.TABLE_NAME + " SET " + COLUMN_TASK_SYNC_ID + " = " + randomId
+                + " WHERE " + TaskEntry._ID + " = new." + TaskEntry._ID + "; END;");
+        // Positions aren't synced: every device keeps its own order. Neither is archiving.
+        db.execSQL("CREATE TRIGGER tasks_sync_dirty AFTER UPDATE OF " + TaskEntry.COLUMN_TASK_TITLE + ", "
+                + TaskEntry.COLUMN_TASK_DETAILS + ", " + TaskEntry.COLUMN_TASK_STATUS + ", " + COLUMN_TASK_DELETED
+                + " ON " + TaskEntry.TABLE_NAME
+                + " WHEN new." + COLUMN_TASK_VERSION + " = old." + COLUMN_TASK_VERSION
+                + " AND new." + COLUMN_TASK_DELETED + " <> " + TASK_ARCHIVED + " BEGIN "
+                + "UPDATE " + TaskEntry.TABLE_NAME + " SET " + COLUMN_TASK_DIRTY + " = " + COLUMN_TASK_DIRTY + " + 1"
+                + " WHERE " + TaskEntry._ID + " = new." + TaskEntry._ID + "; END;");
+        db.execSQL("CREATE TRIGGER tasks_sync_delete AFTER DELETE ON " + TaskEntry.TABLE_NAME
+                + " WHEN old." + COLUMN_TASK_VERSION + " > 0 AND old." + COLUMN_TASK_DELETED + " <> " + TASK_ARCHIVED
+                + " AND (old." + COLUMN_TASK_DIRTY + " > 0 OR old." + COLUMN_TASK_DELETED + " = 0) BEGIN "
+                + "INSERT OR REPLACE INTO " + TABLE_TASK_SYNC_DELETES + "(" + COLUMN_TASK_SYNC_ID + ", "
+                + COLUMN_TASK_VERSION + ") VALUES (old." + COLUMN_TASK_SYNC_ID + ", old." + COLUMN_TASK_VERSION
+                + "); END;");
+    }
+
+    /**
+     * Version 15: the change feed. AUTOINCREMENT keeps the sequence going up even after every
+     * record has been trimmed. Triggers on the tasks, archive and reminders tables record each
+     * change; of the task columns, only those a list shows count as a change, so the sync and
+     * completion bookkeeping don't add records. A tombstoned task is recorded as deleted when it
+     * is marked, so its purge later on adds nothing, and a "delete all" is a single record.
+     */
+    private static void upgradeToVersion15(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + ChangeEntry.TABLE_NAME + "("
+                + ChangeEntry.COLUMN_SEQUENCE + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + ChangeEntry.COLUMN_SOURCE + " INTEGER NOT NULL, "
+                + ChangeEntry.COLUMN_ROW_ID + " INTEGER, "
+                + ChangeEntry.COLUMN_OP + " INTEGER NOT NULL);");
+        db.execSQL("CREATE TABLE " + ChangeEntry.CONSUMERS_TABLE_NAME + "("
+                + ChangeEntry.COLUMN_CONSUMER + " TEXT PRIMARY KEY, "
+                + ChangeEntry.COLUMN_SEEN + " INTEGER NOT NULL);");
+
+        String tasks = TaskEntry.TABLE_NAME;
+        db.execSQL("CREATE TRIGGER tasks_change_insert AFTER INSERT ON " + tasks + " BEGIN "
+                + recordChange(ChangeEntry.SOURCE_TASKS, "new." + TaskEntry._ID, ChangeEntry.OP_INSERT) + " END;");
+        db.execSQL("CREATE TRIGGER tasks_change_update AFTER UPDATE OF " + TaskEntry.COLUMN_TASK_TITLE + ", "
+                + TaskEntry.COLUMN_TASK_DETAILS + ", " + TaskEntry.COLUMN_TASK_STATUS + ", "
+                + TaskEntry.COLUMN_TASK_POSITION + " ON " + tasks
+                + " WHEN new." + COLUMN_TASK_DELETED + " = 0 BEGIN "
+                + recordChange(ChangeEntry.SOURCE_TASKS, "new." + TaskEntry._ID, ChangeEntry.OP_UPDATE) + " END;");
+        db.execSQL("CREATE TRIGGER tasks_change_tombstone AFTER UPDATE OF " + COLUMN_TASK_DELETED + " ON " + tasks
+                + " WHEN old." + COLUMN_TASK_DELETED + " = 0 AND new." + COLUMN_TASK_DELETED + " <> 0 BEGIN "
+                + recordChange(ChangeEntry.SOURCE_TASKS, "new." + TaskEntry._ID, ChangeEntry.OP_DELETE) + " END;");
+        db.execSQL("CREATE TRIGGER tasks_change_delete AFTER DELETE ON " + tasks
+                + " WHEN old." + COLUMN_TASK_DELETED + " = 0 AND old." + TaskEntry._ID + " > (SELECT "
+                + COLUMN_DELETED_THROUGH + " FROM " + TABLE_TASK_WATERMARK + ") BEGIN "
+                + recordChange(ChangeEntry.SOURCE_TASKS, "old." + TaskEntry._ID, ChangeEntry.OP_DELETE) + " END;");
+        db.execSQL("CREATE TRIGGER tasks_change_watermark AFTER UPDATE OF " + COLUMN_DELETED_THROUGH
+                + " ON " + TABLE_TASK_WATERMARK
+                + " WHEN new." + COLUMN_DELETED_THROUGH + " > old." + COLUMN_DELETED_THROUGH + " BEGIN "
+                + recordChange(ChangeEntry.SOURCE_TASKS, "new." + COLUMN_DELETED_THROUGH,
+                        ChangeEntry.OP_DELETE_THROUGH) + " END;");
+
+        // Archived tasks are never edited, only added, restored or deleted
+        String archive = ArchiveEntry.TABLE_NAME;
+        db.execSQL("CREATE TRIGGER archive_change_insert AFTER INSERT ON " + archive + " BEGIN "
+                + recordChange(ChangeEntry.SOURCE_ARCHIVE, "new." + ArchiveEntry._ID, ChangeEntry.OP_INSERT) + " END;");
+        db.execSQL("CREATE TRIGGER archive_change_delete AFTER DELETE ON " + archive + " BEGIN "
+                + recordChange(ChangeEntry.SOURCE_ARCHIVE, "old." + ArchiveEntry._ID, ChangeEntry.OP_DELETE) + " END;");
+
+        String reminders = ReminderEntry.TABLE_NAME;
+        db.execSQL("CREATE TRIGGER reminders_change_insert AFTER INSERT ON " + reminders + " BEGIN "
+                + recordChange(ChangeEntry.SOURCE_REMINDERS, "new." + ReminderEntry._ID, ChangeEntry.OP_INSERT)
+                + " END;");
+        db.execSQL("CREATE TRIGGER reminders_change_update AFTER UPDATE ON " + reminders + " BEGIN "
+                + recordChange(ChangeEntry.SOURCE_REMINDERS, "new." + ReminderEntry._ID, ChangeEntry.OP_UPDATE)
+                + " END;");
+        db.execSQL("CREATE TRIGGER reminders_change_delete AFTER DELETE ON " + reminders + " BEGIN "
+                + recordChange(ChangeEntry.SOURCE_REMINDERS, "old." + ReminderEntry._ID, ChangeEntry.OP_DELETE)
+                + " END;");
+    }
+
+    /**
+     * Version 16: revisions of tasks and reminders for conditional updates. Triggers bump the
+     * revision on every change of a column the editors show, unless the update set it itself,
+     * so changes made by the sync and other background jobs count as well. The change feed now
+     * only records reminder updates of those columns, so the bump doesn't add a second record.
+     */
+    private static void upgradeToVersion16(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TaskEntry.TABLE_NAME + " ADD COLUMN "
+                + TaskEntry.COLUMN_TASK_REVISION + " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("ALTER TABLE " + ReminderEntry.TABLE_NAME + " ADD COLUMN "
+                + ReminderEntry.COLUMN_REMINDER_REVISION + " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("CREATE TRIGGER tasks_revision AFTER UPDATE OF " + TaskEntry.COLUMN_TASK_TITLE + ", "
+                + TaskEntry.COLUMN_TASK_DETAILS + ", " + TaskEntry.COLUMN_TASK_STATUS + " ON " + TaskEntry.TABLE_NAME
+                + " WHEN new." + TaskEntry.COLUMN_TASK_REVISION + " = old." + TaskEntry.COLUMN_TASK_REVISION + " BEGIN "
+                + "UPDATE " + TaskEntry.TABLE_NAME + " SET " + TaskEntry.COLUMN_TASK_REVISION + " = "
+                + TaskEntry.COLUMN_TASK_REVISION + " + 1 WHERE " + TaskEntry._ID + " = new." + TaskEntry._ID + "; END;");
+        db.execSQL("CREATE TRIGGER reminders_revision AFTER UPDATE OF " + ReminderEntry.COLUMN_REMINDER_NAME + ", "
+                + ReminderEntry.COLUMN_REMINDER_DETAILS + ", " + ReminderEntry.COLUMN_TIME_HOURS + ", "
+                + ReminderEntry.COLUMN_TIME_MINUTES + " ON " + ReminderEntry.TABLE_NAME
+                + " WHEN new." + ReminderEntry.COLUMN_REMINDER_REVISION + " = old."
+                + ReminderEntry.COLUMN_REMINDER_REVISION + " BEGIN "
+                + "UPDATE " + ReminderEntry.TABLE_NAME + " SET " + ReminderEntry.COLUMN_REMINDER_REVISION + " = "
+                + ReminderEntry.COLUMN_REMINDER_REVISION + " + 1 WHERE " + ReminderEntry._ID + " = new."
+                + ReminderEntry._ID + "; END;");
+
+        db.execSQL("DROP TRIGGER IF EXISTS reminders_change_update;");
+        db.execSQL("CREATE TRIGGER reminders_change_update AFTER UPDATE OF " + ReminderEntry.COLUMN_REMINDER_NAME
+                + ", " + ReminderEntry.COLUMN_REMINDER_DETAILS + ", " + ReminderEntry.COLUMN_TIME_HOURS + ", "
+                + ReminderEntry.COLUMN_TIME_MINUTES + " ON " + ReminderEntry.TABLE_NAME + " BEGIN "
+                + recordChange(ChangeEntry.SOURCE_REMINDERS, "new." + ReminderEntry._ID, ChangeEntry.OP_UPDATE)
+                + " END;");
+    }
+
+    /**
+     * Version 17: a status change records one task update in the change feed instead of two.
+     * The tasks_position_status trigger follows every status change with an update of the
+     * task's position, so the feed now skips the status change itself and records that
+     * update, in which the status is already the new one.
+     */
+    private static void upgradeToVersion17(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS tasks_change_update;");
+        db.execSQL("CREATE TRIGGER tasks_change_update AFTER UPDATE OF " + TaskEntry.COLUMN_TASK_TITLE + ", "
+                + TaskEntry.COLUMN_TASK_DETAILS + ", " + TaskEntry.COLUMN_TASK_STATUS + ", "
+                + TaskEntry.COLUMN_TASK_POSITION + " ON " + TaskEntry.TABLE_NAME
+                + " WHEN new." + COLUMN_TASK_DELETED + " = 0"
+                + " AND old." + TaskEntry.COLUMN_TASK_STATUS + " = new." + TaskEntry.COLUMN_TASK_STATUS + " BEGIN "
+                + recordChange(ChangeEntry.SOURCE_TASKS, "new." + TaskEntry._ID, ChangeEntry.OP_UPDATE) + " END;");
+    }
+
+    /**
+     * Version 18: index tasks by (deleted, _id), so the purger finds the few marked tasks with a
+     * range scan instead of walking every live task.
+     */
+    private static void upgradeToVersion18(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + INDEX_TASKS_DELETED + " ON " + TaskEntry.TABLE_NAME + "("
+                + COLUMN_TASK_DELETED + ", " + TaskEntry._ID + ");");
+    }
+
+    /**
+     * Version 19: a task's time to completion counts from when it last entered To Do rather
+     * than from when it was added, and a task moved out of Done is no longer counted as
+     * completed. The statistics are rebuilt from the task events log on that basis: every move
+     * to Done that the task didn't leave again counts, on the day of the move.
+     */
+    private static void upgradeToVersion19(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + INDEX_TASK_EVENTS_TASK + " ON " + TaskEventEntry.TABLE_NAME + "("
+                + TaskEventEntry.COLUMN_TASK_ID + ", " + TaskEventEntry.COLUMN_TO_STATUS + ", "
+                + TaskEventEntry.COLUMN_TIME + ");");
+        db.execSQL("DELETE FROM " + StatsEntry.TABLE_NAME + ";");
+
+        // Days are local, so they are worked out here rather than in SQL; per day, the number
+        // completed, the number of them timed and their total time
+        Map<Long, long[]> statsByDay = new HashMap<>();
+        Cursor cursor = db.rawQuery("SELECT d." + TaskEventEntry.COLUMN_TIME + ", "
+                + startTime("d." + TaskEventEntry.COLUMN_TASK_ID, "IFNULL(t." + TaskEntry.COLUMN_TASK_CREATED
+                        + ", a." + ArchiveEntry.COLUMN_CREATED + ")", "NULL", "d." + TaskEventEntry._ID)
+                + " FROM " + TaskEventEntry.TABLE_NAME + " d"
+                + " LEFT JOIN " + TaskEntry.TABLE_NAME + " t ON t." + TaskEntry._ID + " = d." + TaskEventEntry.COLUMN_TASK_ID
+                + " LEFT JOIN " + ArchiveEntry.TABLE_NAME + " a ON a." + ArchiveEntry._ID + " = d."
+                + TaskEventEntry.COLUMN_TASK_ID
+                + " WHERE d." + TaskEventEntry.COLUMN_TO_STATUS + " = " + TaskEntry.STATUS_COMPLETED
+                + " AND NOT EXISTS (SELECT 1 FROM " + TaskEventEntry.TABLE_NAME + " l WHERE l."
+                + TaskEventEntry.COLUMN_TASK_ID + " = d." + TaskEventEntry.COLUMN_TASK_ID + " AND l."
+                + TaskEventEntry.COLUMN_FROM_STATUS + " = " + TaskEntry.STATUS_COMPLETED + " AND l."
+                + TaskEventEntry._ID + " > d." + TaskEventEntry._ID + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                long time = cursor.getLong(0);
+                long day = localDay(time);
+                long[] stats = statsByDay.get(day);
+                if (stats == null) {
+                    stats = new long[3];
+                    statsByDay.put(day, stats);
+                }
+                stats[0]++;
+                if (!cursor.isNull(1)) {
+                    stats[1]++;
+                    stats[2] += Math.max(time - cursor.getLong(1), 0);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        for (Map.Entry<Long, long[]> entry : statsByDay.entrySet()) {
+            long[] stats = entry.getValue();
+            db.execSQL("INSERT INTO " + StatsEntry.TABLE_NAME + "(" + StatsEntry.COLUMN_DAY + ", "
+                    + StatsEntry.COLUMN_COMPLETED + ", " + StatsEntry.COLUMN_TIMED_COUNT + ", "
+                    + StatsEntry.COLUMN_TOTAL_MILLIS + ") VALUES (" + entry.getKey() + ", " + stats[0] + ", "
+                    + stats[1] + ", " + stats[2] + ");");
+        }
+    }
+
+    /**
+     * Expression for when a task's time to completion starts: the time of its latest move to
+     * To Do in the task events log (before the event with the given _id, if that isn't null),
+     * or else the time it was added, if it was added in To Do. It was added in the status its
+     * first event moved it from, or currentStatus if it has none. Null if the task was never in
+     * To Do, or if created is 0, i.e. the task predates the time added being kept.
+     */
+    static String startTime(String taskId, String created, String currentStatus, String beforeEventId) {
+        String events = " FROM " + TaskEventEntry.TABLE_NAME + " e WHERE e." + TaskEventEntry.COLUMN_TASK_ID
+                + " = " + taskId;
+        return "(CASE WHEN " + created + " > 0 THEN IFNULL((SELECT MAX(e." + TaskEventEntry.COLUMN_TIME + ")"
+                + events + " AND e." + TaskEventEntry.COLUMN_TO_STATUS + " = " + TaskEntry.STATUS_NOT_STARTED
+                + (beforeEventId == null ? "" : " AND e." + TaskEventEntry._ID + " < " + beforeEventId)
+                + "), CASE WHEN IFNULL((SELECT e." + TaskEventEntry.COLUMN_FROM_STATUS + events + " ORDER BY e."
+                + TaskEventEntry._ID + " LIMIT 1), " + currentStatus + ") = " + TaskEntry.STATUS_NOT_STARTED
+                + " THEN " + created + " END) END)";
+    }
+
+    /**
+     * Trigger statement appending a record to the change feed.
+     */
+    private static String recordChange(int source, String rowId, int op) {
+        return "INSERT INTO " + ChangeEntry.TABLE_NAME + "(" + ChangeEntry.COLUMN_SOURCE + ", "
+                + ChangeEntry.COLUMN_ROW_ID + ", " + ChangeEntry.COLUMN_OP + ") VALUES ("
+                + source + ", " + rowId + ", " + op + ");";
+    }
+
+    /**
+     * Returns the day of the given time in the current time zone, as days since 1970-01-01.
+     */
+    static long localDay(long millis) {
+        return (millis + TimeZone.getDefault().getOffset(millis)) / TimeUnit.DAYS.toMillis(1);
+    }
+
+    /**
+     * Expression for the highest position in use in the given status, or 0 if there is none.
+     */
+    static String lastPosition(String status) {
+        return "(SELECT IFNULL(MAX(" + TaskEntry.COLUMN_TASK_POSITION + "), 0) FROM " + TaskEntry.TABLE_NAME
+                + " WHERE " + TaskEntry.COLUMN_TASK_STATUS + " = " + status + ")";
+    }
+
+    /**
+     * Trigger statement adding delta to the count of the status of the "old" or "new" row.
+     */
+    private static String adjustTaskCount(String row, String delta) {
+        return "UPDATE " + TaskCountEntry.TABLE_NAME + " SET " + TaskCountEntry.COLUMN_COUNT + " = "
+                + TaskCountEntry.COLUMN_COUNT + " " + delta + " WHERE " + TaskCountEntry.COLUMN_STATUS
+                + " = " + row + "." + TaskEntry.COLUMN_TASK_STATUS + ";";
     }
-}
\ No newline at end of file
+}
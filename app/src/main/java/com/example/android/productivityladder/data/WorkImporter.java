@@ -0,0 +1,338 @@
+package com.example.android.productivityladder.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.example.android.productivityladder.data.WorkContract.ArchiveEntry;
+import com.example.android.productivityladder.data.WorkContract.ExportEntry;
+import com.example.android.productivityladder.data.WorkContract.ImportEntry;
+import com.example.android.productivityladder.data.WorkContract.ReminderEntry;
+import com.example.android.productivityladder.data.WorkContract.TaskEntry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Imports tasks and reminders from a file, e.g. one moved over from another to-do tool or an
+ * export of this app (see {@link ExportEntry}). The file is parsed as a stream, one record at a
+ * time, and the rows are bulk inserted in batches of {@link #BATCH_SIZE}, each in its own
+ * transaction, so memory use stays flat however big the file is.
+ *
+ * Every batch also moves the import's checkpoint forward (see {@link ImportEntry}). Importing the
+ * same source again after the app was stopped part way reads past the records that are already
+ * in and carries on from there; importing a source that has finished does nothing.
+ *
+ * A JSON file holds an object with an array of rows under "tasks", "archive" and "reminders",
+ * like an export. Archived tasks come back as Done tasks, which the archiver moves to the
+ * archive again once they are old enough. A CSV file holds the rows of one of those tables, after
+ * a header row with the column names. Columns the app doesn't know about are ignored, and so are
+ * rows that can't be imported: tasks without a title and reminders without a valid time.
+ *
+ * An import reads files and writes to the database for a long time, so run it off the main thread.
+ */
+public class WorkImporter {
+
+    /** Rows inserted per transaction */
+    public static final int BATCH_SIZE = 500;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ContentResolver mResolver;
+    private final String mSource;
+
+    /** Rows of the batch being filled, all for the table at mBatchUri */
+    private final ContentValues[] mBatch = new ContentValues[BATCH_SIZE];
+    private int mBatchCount;
+    private Uri mBatchUri;
+
+    /** Records read from the file so far, counting the ones skipped */
+    private long mRecords;
+
+    /** Records the checkpoint says were imported by an earlier run */
+    private long mCommittedRecords;
+
+    /** Rows inserted by this run */
+    private int mInserted;
+
+    /**
+     * Create an importer for the file named source, e.g. the file's URI. The name keys the
+     * checkpoint, so it has to be the same when an interrupted import is started again.
+     */
+    public WorkImporter(ContentResolver resolver, String source) {
+        mResolver = resolver;
+        mSource = source;
+    }
+
+    /**
+     * Import a JSON file. Returns the number of rows added by this call.
+     */
+    public int importJson(InputStream in) throws IOException {
+        if (!start()) {
+            return 0;
+        }
+        JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(in, UTF_8)));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String table = reader.nextName();
+            if (!isImportedTable(table)) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                addRecord(table, readJsonRecord(reader));
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+        finish();
+        return mInserted;
+    }
+
+    /**
+     * Import a CSV file holding the rows of table, one of {@link ExportEntry#TABLE_TASKS},
+     * {@link ExportEntry#TABLE_ARCHIVE} and {@link ExportEntry#TABLE_REMINDERS}. Returns the
+     * number of rows added by this call.
+     */
+    public int importCsv(InputStream in, String table) throws IOException {
+        if (!isImportedTable(table)) {
+            throw new IllegalArgumentException("Cannot import into " + table);
+        }
+        if (!start()) {
+            return 0;
+        }
+        Reader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        if (readCsvRecord(reader, fields, field)) {
+            String[] header = fields.toArray(new String[fields.size()]);
+            while (readCsvRecord(reader, fields, field)) {
+                if (fields.size() == 1 && fields.get(0).isEmpty()) {
+                    // A blank line
+                    continue;
+                }
+                ContentValues record = new ContentValues();
+                for (int i = 0; i < header.length && i < fields.size(); i++) {
+                    // Empty fields are how CSV writes a NULL
+                    if (!fields.get(i).isEmpty()) {
+                        record.put(header[i], fields.get(i));
+                    }
+                }
+                addRecord(table, record);
+            }
+        }
+        finish();
+        return mInserted;
+    }
+
+    /**
+     * Read the checkpoint of the source, adding it if this is the first run. Returns false if
+     * the source has already been imported.
+     */
+    private boolean start() {
+        String[] projection = { ImportEntry.COLUMN_RECORDS, ImportEntry.COLUMN_FINISHED };
+        Cursor cursor = mResolver.query(ImportEntry.CONTENT_URI, projection, ImportEntry.COLUMN_SOURCE + "=?",
+                new String[] { mSource }, null);
+        try {
+            if (cursor != null && cursor.moveToFirst()) {
+                if (cursor.getInt(1) != 0) {
+                    return false;
+                }
+                mCommittedRecords = cursor.getLong(0);
+                return true;
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        ContentValues values = new ContentValues();
+        values.put(ImportEntry.COLUMN_SOURCE, mSource);
+        mResolver.insert(ImportEntry.CONTENT_URI, values);
+        return true;
+    }
+
+    /**
+     * Insert the last batch and mark the source as imported.
+     */
+    private void finish() {
+        flush(mRecords);
+        ContentValues values = new ContentValues();
+        values.put(ImportEntry.COLUMN_RECORDS, mRecords);
+        values.put(ImportEntry.COLUMN_FINISHED, 1);
+        mResolver.update(ImportEntry.CONTENT_URI, values, ImportEntry.COLUMN_SOURCE + "=?", new String[] { mSource });
+    }
+
+    /**
+     * Add the next record of the file to the batch, unless an earlier run already imported it.
+     */
+    private void addRecord(String table, ContentValues record) {
+        mRecords++;
+        if (mRecords <= mCommittedRecords) {
+            return;
+        }
+        ContentValues row;
+        Uri uri;
+        if (ExportEntry.TABLE_REMINDERS.equals(table)) {
+            row = toReminder(record);
+            uri = ReminderEntry.CONTENT_URI;
+        } else {
+            row = toTask(record, ExportEntry.TABLE_ARCHIVE.equals(table));
+            uri = TaskEntry.CONTENT_URI;
+        }
+        if (row == null) {
+            return;
+        }
+        if (!uri.equals(mBatchUri)) {
+            // This record isn't part of the batch, so the checkpoint stops short of it
+            flush(mRecords - 1);
+            mBatchUri = uri;
+        }
+        mBatch[mBatchCount++] = row;
+        if (mBatchCount == BATCH_SIZE) {
+            flush(mRecords);
+        }
+    }
+
+    /**
+     * Insert the rows of the batch, together with the checkpoint saying records records of the
+     * file are now imported.
+     */
+    private void flush(long records) {
+        if (mBatchCount == 0) {
+            return;
+        }
+        ContentValues[] rows = mBatchCount == BATCH_SIZE ? mBatch : Arrays.copyOf(mBatch, mBatchCount);
+        mInserted += mResolver.bulkInsert(ImportEntry.buildBatchUri(mBatchUri, mSource, records), rows);
+        Arrays.fill(mBatch, null);
+        mBatchCount = 0;
+    }
+
+    /**
+     * Turn a record into the values of a new task, or return null if it has no title.
+     */
+    private static ContentValues toTask(ContentValues record, boolean archived) {
+        String title = record.getAsString(TaskEntry.COLUMN_TASK_TITLE);
+        if (title == null || title.trim().isEmpty()) {
+            return null;
+        }
+        ContentValues task = new ContentValues();
+        task.put(TaskEntry.COLUMN_TASK_TITLE, title);
+        task.put(TaskEntry.COLUMN_TASK_DETAILS, record.getAsString(TaskEntry.COLUMN_TASK_DETAILS));
+
+        int status = TaskEntry.STATUS_COMPLETED;
+        if (!archived) {
+            Integer value = record.getAsInteger(TaskEntry.COLUMN_TASK_STATUS);
+            status = value != null && TaskEntry.isValidStatus(value) ? value : TaskEntry.STATUS_NOT_STARTED;
+        }
+        task.put(TaskEntry.COLUMN_TASK_STATUS, status);
+
+        // Positions aren't kept: imported tasks go to the end of their list in file order
+        Long created = record.getAsLong(TaskEntry.COLUMN_TASK_CREATED);
+        if (created != null && created > 0) {
+            task.put(TaskEntry.COLUMN_TASK_CREATED, created);
+        }
+        Long completed = record.getAsLong(ArchiveEntry.COLUMN_COMPLETED);
+        if (status == TaskEntry.STATUS_COMPLETED && completed != null && completed > 0) {
+            task.put(TaskEntry.COLUMN_TASK_COMPLETED, completed);
+        }
+        return task;
+    }
+
+    /**
+     * Turn a record into the values of a new reminder, or return null if it has no name or
+     * no valid time.
+     */
+    private static ContentValues toReminder(ContentValues record) {
+        String name = record.getAsString(ReminderEntry.COLUMN_REMINDER_NAME);
+        Integer hours = record.getAsInteger(ReminderEntry.COLUMN_TIME_HOURS);
+        Integer minutes = record.getAsInteger(ReminderEntry.COLUMN_TIME_MINUTES);
+        if (name == null || name.trim().isEmpty() || hours == null || hours < 0 || hours > 23
+                || minutes == null || minutes < 0 || minutes > 59) {
+            return null;
+        }
+        ContentValues reminder = new ContentValues();
+        reminder.put(ReminderEntry.COLUMN_REMINDER_NAME, name);
+        reminder.put(ReminderEntry.COLUMN_REMINDER_DETAILS, record.getAsString(ReminderEntry.COLUMN_REMINDER_DETAILS));
+        reminder.put(ReminderEntry.COLUMN_TIME_HOURS, hours);
+        reminder.put(ReminderEntry.COLUMN_TIME_MINUTES, minutes);
+        return reminder;
+    }
+
+    private static boolean isImportedTable(String table) {
+        return ExportEntry.TABLE_TASKS.equals(table) || ExportEntry.TABLE_ARCHIVE.equals(table)
+                || ExportEntry.TABLE_REMINDERS.equals(table);
+    }
+
+    /**
+     * Read a JSON object into a record of strings. Nested values are skipped.
+     */
+    private static ContentValues readJsonRecord(JsonReader reader) throws IOException {
+        ContentValues record = new ContentValues();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            JsonToken token = reader.peek();
+            if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+                record.put(name, reader.nextString());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return record;
+    }
+
+    /**
+     * Read the next CSV record into fields, using field as scratch space. Quoted fields may hold
+     * commas, doubled quotes and line breaks. Returns false at the end of the file.
+     */
+    private static boolean readCsvRecord(Reader reader, List<String> fields, StringBuilder field)
+            throws IOException {
+        fields.clear();
+        field.setLength(0);
+        int c = reader.read();
+        if (c == -1) {
+            return false;
+        }
+        boolean quoted = false;
+        while (true) {
+            if (quoted) {
+                if (c == -1) {
+                    throw new IOException("Unterminated quoted field in CSV record " + fields);
+                }
+                if (c == '"') {
+                    c = reader.read();
+                    if (c != '"') {
+                        // The closing quote; c is the character after it
+                        quoted = false;
+                        continue;
+                    }
+                }
+                field.append((char) c);
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\n' || c == -1) {
+                fields.add(field.toString());
+                return true;
+            } else if (c != '\r') {
+                field.append((char) c);
+            }
+            c = reader.read();
+        }
+    }
+}
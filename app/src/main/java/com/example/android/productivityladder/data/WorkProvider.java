@@ -1,16 +1,52 @@
 package com.example.android.productivityladder.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.example.android.productivityladder.data.WorkContract.ArchiveEntry;
+import com.example.android.productivityladder.data.WorkContract.ChangeEntry;
+import com.example.android.productivityladder.data.WorkContract.ExportEntry;
+import com.example.android.productivityladder.data.WorkContract.ImportEntry;
+import com.example.android.productivityladder.data.WorkContract.MetricsEntry;
 import com.example.android.productivityladder.data.WorkContract.ReminderEntry;
+import com.example.android.productivityladder.data.WorkContract.SearchEntry;
+import com.example.android.productivityladder.data.WorkContract.SlowQueryEntry;
+import com.example.android.productivityladder.data.WorkContract.StatsEntry;
+import com.example.android.productivityladder.data.WorkContract.TaskCountEntry;
 import com.example.android.productivityladder.data.WorkContract.TaskEntry;
+import com.example.android.productivityladder.data.WorkContract.TaskEventEntry;
+
+import java.io.FileDescriptor;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * {@link ContentProvider} for ProductivityLadder app.
@@ -29,6 +65,57 @@ public class WorkProvider extends ContentProvider {
     /** URI matcher code for the content URI for a task in the tasks table */
     private static final int TASK_ID = 4;
 
+    /** URI matcher code for the content URI searching tasks and reminders */
+    private static final int SEARCH = 5;
+
+    /** URI matcher code for the content URI for the number of tasks in each status */
+    private static final int TASK_COUNTS = 6;
+
+    /** URI matcher code for the content URI for the tasks with one status */
+    private static final int TASKS_BY_STATUS = 7;
+
+    /** URI matcher code for the content URI for the provider's call metrics */
+    private static final int METRICS = 8;
+
+    /** URI matcher code for the content URI for the slow query log */
+    private static final int SLOW_QUERIES = 9;
+
+    /** URI matcher code for the content URI for the task events log */
+    private static final int TASK_EVENTS = 10;
+
+    /** URI matcher code for the content URI for the statistics per day */
+    private static final int STATS = 11;
+
+    /** URI matcher code for the content URI for the statistics per week */
+    private static final int STATS_WEEKS = 12;
+
+    /** URI matcher code for the content URI for the archived tasks */
+    private static final int ARCHIVE = 13;
+
+    /** URI matcher code for the content URI for a single archived task */
+    private static final int ARCHIVE_ID = 14;
+
+    /** URI matcher code for the content URI searching the archived tasks */
+    private static final int ARCHIVE_SEARCH = 15;
+
+    /** URI matcher code for the content URI exporting the whole database */
+    private static final int EXPORT = 16;
+
+    /** URI matcher code for the content URI exporting a single table */
+    private static final int EXPORT_TABLE = 17;
+
+    /** URI matcher code for the content URI for the import checkpoints */
+    private static final int IMPORTS = 18;
+
+    /** URI matcher code for the content URI for the change feed */
+    private static final int CHANGES = 19;
+
+    /** URI matcher code for the content URI for the consumers of the change feed */
+    private static final int CHANGE_CONSUMERS = 20;
+
+    /** One more than the highest URI matcher code */
+    private static final int MATCH_CODE_COUNT = 21;
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -36,22 +123,269 @@ public class WorkProvider extends ContentProvider {
      */
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
+    /** URI pattern of each matcher code, to label the metrics with */
+    private static final String[] sMatchPaths = new String[MATCH_CODE_COUNT];
+
     // Static initializer. This is run the first time anything is called from this class.
     static {
-        // The calls to addURI() go here, for all of the content URI patterns that the provider
+        // The calls to addUri() go here, for all of the content URI patterns that the provider
         // should recognize. All paths added to the UriMatcher have a corresponding code to return
         // when a match is found.
-        sUriMatcher.addURI(WorkContract.CONTENT_AUTHORITY, WorkContract.PATH_REMINDERS, REMINDERS);
-        sUriMatcher.addURI(WorkContract.CONTENT_AUTHORITY, WorkContract.PATH_REMINDERS + "/#", REMINDER_ID);
-        sUriMatcher.addURI(WorkContract.CONTENT_AUTHORITY, WorkContract.PATH_TASKS, TASKS);
-        sUriMatcher.addURI(WorkContract.CONTENT_AUTHORITY, WorkContract.PATH_TASKS + "/#", TASK_ID);
+        addUri(WorkContract.PATH_REMINDERS, REMINDERS);
+        addUri(WorkContract.PATH_REMINDERS + "/#", REMINDER_ID);
+        addUri(WorkContract.PATH_TASKS, TASKS);
+        addUri(WorkContract.PATH_TASKS + "/#", TASK_ID);
+        addUri(WorkContract.PATH_TASKS + "/" + WorkContract.PATH_COUNTS, TASK_COUNTS);
+        addUri(WorkContract.PATH_TASKS + "/" + WorkContract.PATH_EVENTS, TASK_EVENTS);
+        addUri(WorkContract.PATH_TASKS + "/" + WorkContract.PATH_ARCHIVE, ARCHIVE);
+        addUri(WorkContract.PATH_TASKS + "/" + WorkContract.PATH_ARCHIVE + "/#", ARCHIVE_ID);
+        addUri(WorkContract.PATH_TASKS + "/" + WorkContract.PATH_ARCHIVE + "/" + WorkContract.PATH_SEARCH + "/*",
+                ARCHIVE_SEARCH);
+        addUri(WorkContract.PATH_TASKS + "/" + WorkContract.PATH_STATUS + "/#", TASKS_BY_STATUS);
+        addUri(WorkContract.PATH_SEARCH + "/*", SEARCH);
+        addUri(WorkContract.PATH_EXPORT, EXPORT);
+        addUri(WorkContract.PATH_EXPORT + "/*", EXPORT_TABLE);
+        addUri(WorkContract.PATH_IMPORTS, IMPORTS);
+        addUri(WorkContract.PATH_CHANGES, CHANGES);
+        addUri(WorkContract.PATH_CHANGES + "/" + WorkContract.PATH_CONSUMERS, CHANGE_CONSUMERS);
+        addUri(WorkContract.PATH_METRICS, METRICS);
+        addUri(WorkContract.PATH_SLOW_QUERIES, SLOW_QUERIES);
+        addUri(WorkContract.PATH_STATS, STATS);
+        addUri(WorkContract.PATH_STATS + "/" + WorkContract.PATH_WEEKS, STATS_WEEKS);
+    }
+
+    private static void addUri(String path, int code) {
+        sUriMatcher.addURI(WorkContract.CONTENT_AUTHORITY, path, code);
+        sMatchPaths[code] = path;
     }
 
     /** Tag for the log messages */
     public static final String LOG_TAG = WorkProvider.class.getSimpleName();
 
+    /** Columns bound by the compiled insert statement in {@link #bulkInsert(Uri, ContentValues[])} */
+    private static final String[] REMINDER_INSERT_COLUMNS = {
+            ReminderEntry.COLUMN_REMINDER_NAME,
+            ReminderEntry.COLUMN_REMINDER_DETAILS,
+            ReminderEntry.COLUMN_TIME_HOURS,
+            ReminderEntry.COLUMN_TIME_MINUTES };
+    /** Columns of a search result when no projection is given */
+    private static final String[] SEARCH_COLUMNS = {
+            SearchEntry._ID,
+            SearchEntry.COLUMN_ITEM_ID,
+            SearchEntry.COLUMN_KIND,
+            SearchEntry.COLUMN_TITLE,
+            SearchEntry.COLUMN_DETAILS,
+            SearchEntry.COLUMN_TASK_STATUS };
+
+    /** Columns of an archive search result when no projection is given */
+    private static final String[] ARCHIVE_COLUMNS = {
+            ArchiveEntry._ID,
+            ArchiveEntry.COLUMN_TITLE,
+            ArchiveEntry.COLUMN_DETAILS,
+            ArchiveEntry.COLUMN_CREATED,
+            ArchiveEntry.COLUMN_COMPLETED };
+
+    private static final String[] TASK_INSERT_COLUMNS = {
+            TaskEntry.COLUMN_TASK_TITLE,
+            TaskEntry.COLUMN_TASK_DETAILS,
+            TaskEntry.COLUMN_TASK_STATUS,
+            TaskEntry.COLUMN_TASK_POSITION,
+            TaskEntry.COLUMN_TASK_CREATED };
+
+    /**
+     * Columns set by the single-task updates that run as pooled compiled statements: a move to
+     * another tab, an edit of the text, and a save from the editor.
+     */
+    private static final String[][] TASK_UPDATE_SHAPES = {
+            { TaskEntry.COLUMN_TASK_STATUS },
+            { TaskEntry.COLUMN_TASK_TITLE, TaskEntry.COLUMN_TASK_DETAILS },
+            { TaskEntry.COLUMN_TASK_TITLE, TaskEntry.COLUMN_TASK_DETAILS, TaskEntry.COLUMN_TASK_STATUS } };
+    private static final String[] TASK_UPDATE_SQL =
+            buildUpdateByIdSql(TaskEntry.TABLE_NAME, TASK_UPDATE_SHAPES, WorkDbHelper.LIVE_TASKS);
+    /** The same updates, applied only while the task is still at the revision bound after the _id */
+    private static final String[] TASK_UPDATE_REVISION_SQL = buildUpdateByIdSql(TaskEntry.TABLE_NAME,
+            TASK_UPDATE_SHAPES, WorkDbHelper.LIVE_TASKS + " AND " + TaskEntry.COLUMN_TASK_REVISION + " = ?");
+
+    /** Columns set by the single-reminder updates that run as pooled compiled statements */
+    private static final String[][] REMINDER_UPDATE_SHAPES = {
+            { ReminderEntry.COLUMN_REMINDER_NAME, ReminderEntry.COLUMN_REMINDER_DETAILS,
+                    ReminderEntry.COLUMN_TIME_HOURS, ReminderEntry.COLUMN_TIME_MINUTES } };
+    private static final String[] REMINDER_UPDATE_SQL =
+            buildUpdateByIdSql(ReminderEntry.TABLE_NAME, REMINDER_UPDATE_SHAPES, null);
+    private static final String[] REMINDER_UPDATE_REVISION_SQL = buildUpdateByIdSql(ReminderEntry.TABLE_NAME,
+            REMINDER_UPDATE_SHAPES, ReminderEntry.COLUMN_REMINDER_REVISION + " = ?");
+
+    private static final String TASK_REVISION_SQL = "SELECT " + TaskEntry.COLUMN_TASK_REVISION
+            + " FROM " + TaskEntry.TABLE_NAME + " WHERE " + TaskEntry._ID + " = ? AND " + WorkDbHelper.LIVE_TASKS;
+    private static final String REMINDER_REVISION_SQL = "SELECT " + ReminderEntry.COLUMN_REMINDER_REVISION
+            + " FROM " + ReminderEntry.TABLE_NAME + " WHERE " + ReminderEntry._ID + " = ?";
+
+    private static final String TASK_DELETE_SQL = "UPDATE " + TaskEntry.TABLE_NAME + " SET "
+            + WorkDbHelper.COLUMN_TASK_DELETED + " = 1 WHERE " + TaskEntry._ID + " = ? AND " + WorkDbHelper.LIVE_TASKS;
+    private static final String REMINDER_DELETE_SQL =
+            "DELETE FROM " + ReminderEntry.TABLE_NAME + " WHERE " + ReminderEntry._ID + " = ?";
+    private static final String TASK_STATUS_SQL = "SELECT " + TaskEntry.COLUMN_TASK_STATUS
+            + " FROM " + TaskEntry.TABLE_NAME + " WHERE " + TaskEntry._ID + " = ? AND " + WorkDbHelper.LIVE_TASKS;
+
+    private static final String TASK_EVENT_COLUMNS = TaskEventEntry.TABLE_NAME + " ("
+            + TaskEventEntry.COLUMN_TASK_ID + ", " + TaskEventEntry.COLUMN_FROM_STATUS + ", "
+            + TaskEventEntry.COLUMN_TO_STATUS + ", " + TaskEventEntry.COLUMN_TIME + ")";
+    private static final String TASK_EVENT_INSERT_SQL = "INSERT INTO " + TASK_EVENT_COLUMNS + " VALUES (?, ?, ?, ?)";
+    /** Logs the status change of every task selected by the WHERE clause appended to it */
+    private static final String TASK_EVENTS_INSERT_SQL = "INSERT INTO " + TASK_EVENT_COLUMNS + " SELECT "
+            + TaskEntry._ID + ", " + TaskEntry.COLUMN_TASK_STATUS + ", ?, ? FROM " + TaskEntry.TABLE_NAME + " WHERE ";
+
+    /** Sequence number of the newest change record ever written, even if it was trimmed since */
+    private static final String LAST_CHANGE_SQL = "SELECT IFNULL((SELECT seq FROM sqlite_sequence WHERE name = '"
+            + ChangeEntry.TABLE_NAME + "'), 0)";
+    private static final String CONSUMER_INSERT_SQL = "INSERT OR IGNORE INTO " + ChangeEntry.CONSUMERS_TABLE_NAME
+            + " (" + ChangeEntry.COLUMN_CONSUMER + ", " + ChangeEntry.COLUMN_SEEN + ") VALUES (?, (" + LAST_CHANGE_SQL + "))";
+    /** Moves the consumers selected by the WHERE clause appended to it forward, never back */
+    private static final String CONSUMERS_SEEN_SQL = "UPDATE " + ChangeEntry.CONSUMERS_TABLE_NAME + " SET "
+            + ChangeEntry.COLUMN_SEEN + " = MAX(" + ChangeEntry.COLUMN_SEEN + ", ?) WHERE ";
+    /**
+     * Removes the change records every consumer has seen, or all of them if there are no
+     * consumers. It's a range delete on the sequence, the table's primary key.
+     */
+    private static final String TRIM_CHANGES_SQL = "DELETE FROM " + ChangeEntry.TABLE_NAME + " WHERE "
+            + ChangeEntry.COLUMN_SEQUENCE + " <= IFNULL((SELECT MIN(" + ChangeEntry.COLUMN_SEEN + ") FROM "
+            + ChangeEntry.CONSUMERS_TABLE_NAME + "), (" + LAST_CHANGE_SQL + "))";
+
+    /** When each task selected by the WHERE clause appended to it started towards Done, see {@link WorkDbHelper#startTime} */
+    private static final String TASK_STARTS_SQL = "SELECT " + WorkDbHelper.startTime(
+            TaskEntry.TABLE_NAME + "." + TaskEntry._ID, TaskEntry.TABLE_NAME + "." + TaskEntry.COLUMN_TASK_CREATED,
+            TaskEntry.TABLE_NAME + "." + TaskEntry.COLUMN_TASK_STATUS, null) + " AS start";
+    /**
+     * Counts the tasks selected by the WHERE clause appended to it (and closed with a
+     * parenthesis), those of them with a known start, and the total time since they started,
+     * up to the time bound first
+     */
+    private static final String COMPLETIONS_SQL = "SELECT COUNT(*), COUNT(start), IFNULL(SUM(MAX(? - start, 0)), 0)"
+            + " FROM (" + TASK_STARTS_SQL + " FROM " + TaskEntry.TABLE_NAME + " WHERE ";
+    /**
+     * The time each task selected by the WHERE clause appended to it (and closed with a
+     * parenthesis) was last moved to Done, and its start. Null for a task the provider never
+     * moved to Done, which therefore wasn't counted.
+     */
+    private static final String UNCOMPLETIONS_SQL = "SELECT done, start FROM (" + TASK_STARTS_SQL + ", (SELECT MAX(e."
+            + TaskEventEntry.COLUMN_TIME + ") FROM " + TaskEventEntry.TABLE_NAME + " e WHERE e."
+            + TaskEventEntry.COLUMN_TASK_ID + " = " + TaskEntry.TABLE_NAME + "." + TaskEntry._ID + " AND e."
+            + TaskEventEntry.COLUMN_TO_STATUS + " = " + TaskEntry.STATUS_COMPLETED + ") AS done FROM "
+            + TaskEntry.TABLE_NAME + " WHERE ";
+    private static final String STATS_DAY_SQL = "INSERT OR IGNORE INTO " + StatsEntry.TABLE_NAME
+            + " (" + StatsEntry.COLUMN_DAY + ") VALUES (?)";
+    private static final String STATS_ADD_SQL = "UPDATE " + StatsEntry.TABLE_NAME + " SET "
+            + StatsEntry.COLUMN_COMPLETED + " = " + StatsEntry.COLUMN_COMPLETED + " + ?, "
+            + StatsEntry.COLUMN_TIMED_COUNT + " = " + StatsEntry.COLUMN_TIMED_COUNT + " + ?, "
+            + StatsEntry.COLUMN_TOTAL_MILLIS + " = " + StatsEntry.COLUMN_TOTAL_MILLIS + " + ?"
+            + " WHERE " + StatsEntry.COLUMN_DAY + " = ?";
+
+    /** The daily statistics with their averages, as a table to query */
+    private static final String STATS_DAYS = "(SELECT " + StatsEntry.COLUMN_DAY + ", "
+            + StatsEntry.COLUMN_COMPLETED + ", " + StatsEntry.COLUMN_TIMED_COUNT + ", " + StatsEntry.COLUMN_TOTAL_MILLIS
+            + ", " + StatsEntry.COLUMN_TOTAL_MILLIS + " / NULLIF(" + StatsEntry.COLUMN_TIMED_COUNT + ", 0) AS "
+            + StatsEntry.COLUMN_AVERAGE_MILLIS + " FROM " + StatsEntry.TABLE_NAME + ")";
+    /**
+     * The statistics summed up per week, as a table to query. Day 0 was a Thursday, so
+     * (day + 3) % 7 is the number of days since the Monday before.
+     */
+    private static final String STATS_WEEKS_TABLE = "(SELECT " + StatsEntry.COLUMN_DAY + " - ("
+            + StatsEntry.COLUMN_DAY + " + 3) % 7 AS " + StatsEntry.COLUMN_DAY + ", "
+            + "SUM(" + StatsEntry.COLUMN_COMPLETED + ") AS " + StatsEntry.COLUMN_COMPLETED + ", "
+            + "SUM(" + StatsEntry.COLUMN_TIMED_COUNT + ") AS " + StatsEntry.COLUMN_TIMED_COUNT + ", "
+            + "SUM(" + StatsEntry.COLUMN_TOTAL_MILLIS + ") AS " + StatsEntry.COLUMN_TOTAL_MILLIS + ", "
+            + "SUM(" + StatsEntry.COLUMN_TOTAL_MILLIS + ") / NULLIF(SUM(" + StatsEntry.COLUMN_TIMED_COUNT + "), 0) AS "
+            + StatsEntry.COLUMN_AVERAGE_MILLIS + " FROM " + StatsEntry.TABLE_NAME + " GROUP BY 1)";
+
+    /** Order of the task lists of one status, which is that of the tasks position index */
+    private static final String TASK_POSITION_ORDER =
+            TaskEntry.COLUMN_TASK_POSITION + " ASC, " + TaskEntry._ID + " ASC";
+    /** Condition selecting the rows after a given (position, _id), for paging and moving */
+    private static final String AFTER_POSITION = TaskEntry.COLUMN_TASK_POSITION + " >= ? AND ("
+            + TaskEntry.COLUMN_TASK_POSITION + " > ? OR " + TaskEntry._ID + " > ?)";
+
+    private static final String TASK_LAST_POSITION_SQL = "SELECT " + WorkDbHelper.lastPosition("?");
+    private static final String TASK_POSITION_SQL = "SELECT " + TaskEntry.COLUMN_TASK_POSITION
+            + " FROM " + TaskEntry.TABLE_NAME + " WHERE " + TaskEntry._ID + " = ? AND "
+            + TaskEntry.COLUMN_TASK_STATUS + " = ? AND " + WorkDbHelper.LIVE_TASKS;
+    private static final String TASK_FIRST_POSITION_SQL = "SELECT " + TaskEntry.COLUMN_TASK_POSITION
+            + " FROM " + TaskEntry.TABLE_NAME + " WHERE " + TaskEntry.COLUMN_TASK_STATUS + " = ? AND "
+            + TaskEntry._ID + " <> ? AND " + WorkDbHelper.LIVE_TASKS + " ORDER BY " + TASK_POSITION_ORDER + " LIMIT 1";
+    private static final String TASK_NEXT_POSITION_SQL = "SELECT " + TaskEntry.COLUMN_TASK_POSITION
+            + " FROM " + TaskEntry.TABLE_NAME + " WHERE " + TaskEntry.COLUMN_TASK_STATUS + " = ? AND "
+            + TaskEntry._ID + " <> ? AND " + AFTER_POSITION + " AND " + WorkDbHelper.LIVE_TASKS
+            + " ORDER BY " + TASK_POSITION_ORDER + " LIMIT 1";
+    private static final String TASK_MOVE_SQL = "UPDATE " + TaskEntry.TABLE_NAME + " SET "
+            + TaskEntry.COLUMN_TASK_POSITION + " = ? WHERE " + TaskEntry._ID + " = ?";
+    private static final String TASK_MAKE_ROOM_SQL = "UPDATE " + TaskEntry.TABLE_NAME + " SET "
+            + TaskEntry.COLUMN_TASK_POSITION + " = " + TaskEntry.COLUMN_TASK_POSITION + " + " + WorkDbHelper.POSITION_GAP
+            + " WHERE " + TaskEntry.COLUMN_TASK_STATUS + " = ? AND " + AFTER_POSITION;
+
+    /**
+     * Once a move leaves a gap smaller than this between two tasks, their list is renumbered
+     * in the background, before further moves into the gap run out of positions.
+     */
+    private static final long CROWDED_POSITION_GAP = 64;
+
+    /**
+     * How long a change notification is held so that further changes to the same URI can be
+     * merged into it.
+     */
+    private static final long NOTIFICATION_WINDOW_MILLIS = 50;
+
+    /** Time budget of a maintenance call that doesn't give one */
+    private static final long DEFAULT_MAINTENANCE_BUDGET_MILLIS = 500;
+
+    /** Name of the provider's preferences, e.g. the archive age */
+    private static final String PREFERENCES_NAME = "work_provider";
+
+    /** Number of task and reminder rows kept in memory for single-row lookups */
+    private static final int ROW_CACHE_SIZE = 256;
+
     private WorkDbHelper mDbHelper;
 
+    /** Recently read task and reminder rows, for the lookups of single rows by their URI */
+    private final RowCache mRowCache = new RowCache(ROW_CACHE_SIZE);
+
+    /** Compiled statements of the single-row writes */
+    private final StatementPool mStatements = new StatementPool();
+
+    /** Removes deleted tasks in the background */
+    private TaskPurger mPurger;
+
+    /** Spreads out the task positions in the background once moves have crowded them */
+    private TaskRenumberer mRenumberer;
+
+    /** Moves old Done tasks to the archive in the background */
+    private TaskArchiver mArchiver;
+
+    /** Provider settings kept across restarts */
+    private SharedPreferences mPreferences;
+
+    /** Syncs the tasks with a server */
+    private TaskSyncer mSyncer;
+
+    /** Latencies and row counts of the calls made to the provider */
+    private final ProviderMetrics mMetrics = new ProviderMetrics(sMatchPaths);
+
+    /** Calls that took longer than a threshold, with their query plans */
+    private final SlowQueryLog mSlowQueries = new SlowQueryLog();
+
+    /** Vacuums, analyzes and checks the database for {@link WorkContract#METHOD_MAINTENANCE} */
+    private DatabaseMaintenance mMaintenance;
+
+    /** Streams exports of the database into pipes */
+    private DatabaseExporter mExporter;
+
+    /** Sends the change notifications, merging bursts of changes to the same URI */
+    private NotificationDispatcher mNotifier;
+
+    /**
+     * URIs changed by the batch running on the current thread, or null when no batch is running.
+     * While a batch is running, change notifications are held here until it commits.
+     */
+    private final ThreadLocal<Set<Uri>> mPendingNotifications = new ThreadLocal<>();
+
     /**
      * Initialize the provider and the database helper object.
      */
@@ -60,6 +394,51 @@ public class WorkProvider extends ContentProvider {
         // Make sure the variable is a global variable, so it can be referenced from other
         // ContentProvider methods.
         mDbHelper = new WorkDbHelper(getContext());
+
+        HandlerThread notifierThread = new HandlerThread(LOG_TAG + "-notifications");
+        notifierThread.start();
+        mNotifier = new NotificationDispatcher(getContext().getContentResolver(),
+                notifierThread.getLooper(), NOTIFICATION_WINDOW_MILLIS);
+
+        HandlerThread backgroundThread = new HandlerThread(LOG_TAG + "-background", Process.THREAD_PRIORITY_BACKGROUND);
+        backgroundThread.start();
+        mPurger = new TaskPurger(mDbHelper, backgroundThread.getLooper());
+        mRenumberer = new TaskRenumberer(mDbHelper, backgroundThread.getLooper(), new TaskRenumberer.Listener() {
+            @Override
+            public void onRenumbered(int status) {
+                // The order is the same, but cached rows and the page starts of the list aren't
+                mRowCache.invalidateTable(TaskEntry.TABLE_NAME);
+                notifyChange(TaskEntry.buildStatusUri(status));
+            }
+        });
+        mPreferences = getContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mArchiver = new TaskArchiver(mDbHelper, backgroundThread.getLooper(), mPreferences,
+                new TaskArchiver.Listener() {
+                    @Override
+                    public void onArchived(int count) {
+                        // The archived tasks left the Done list, and are now deleted tasks to purge
+                        mRowCache.invalidateTable(TaskEntry.TABLE_NAME);
+                        notifyChange(TaskEntry.buildStatusUri(TaskEntry.STATUS_COMPLETED));
+                        notifyChange(TaskCountEntry.CONTENT_URI);
+                        notifyChange(ArchiveEntry.CONTENT_URI);
+                        mPurger.schedule();
+                    }
+                });
+        mSyncer = new TaskSyncer(mDbHelper, mPreferences, new TaskSyncer.Listener() {
+            @Override
+            public void onTasksReceived() {
+                mRowCache.invalidateTable(TaskEntry.TABLE_NAME);
+                notifyChange(TaskEntry.CONTENT_URI);
+                flushNotifications();
+                // Deletions from other devices leave tombstones here
+                mPurger.schedule();
+            }
+        });
+        mMaintenance = new DatabaseMaintenance(mDbHelper, mArchiver);
+        mExporter = new DatabaseExporter(mDbHelper);
+        // Finish any purge the last process didn't get to, and archive what has got old since
+        mPurger.schedule();
+        mArchiver.schedule();
         return true;
     }
 
@@ -69,52 +448,357 @@ public class WorkProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        long start = System.nanoTime();
+        SlowQueryLog.clearLastQuery();
         SQLiteDatabase database = mDbHelper.getReadableDatabase();
         Cursor cursor;
+        Uri notificationUri = uri;
         int match = sUriMatcher.match(uri);
         switch(match) {
             case REMINDERS:
-                cursor = database.query(ReminderEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                cursor = queryList(database, ReminderEntry.TABLE_NAME, uri, projection, selection, selectionArgs,
+                        sortOrder, false);
                 break;
             case REMINDER_ID:
-                selection = ReminderEntry._ID + "=?";
-                selectionArgs = new String[] {String.valueOf(ContentUris.parseId(uri))};
-                cursor = database.query(ReminderEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                cursor = queryRow(database, ReminderEntry.TABLE_NAME, ContentUris.parseId(uri), null, projection);
                 break;
             case TASKS:
-                cursor = database.query(TaskEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                selection = appendSelection(selection, WorkDbHelper.LIVE_TASKS);
+                cursor = queryList(database, TaskEntry.TABLE_NAME, uri, projection, selection, selectionArgs,
+                        sortOrder, false);
                 break;
             case TASK_ID:
-                selection = TaskEntry._ID + "=?";
-                selectionArgs = new String[] {String.valueOf(ContentUris.parseId(uri))};
-                cursor = database.query(TaskEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                cursor = queryRow(database, TaskEntry.TABLE_NAME, ContentUris.parseId(uri), WorkDbHelper.LIVE_TASKS,
+                        projection);
+                break;
+            case TASKS_BY_STATUS:
+                selection = appendSelection(selection, TaskEntry.COLUMN_TASK_STATUS + " = ?");
+                selectionArgs = appendSelectionArg(selectionArgs, String.valueOf(ContentUris.parseId(uri)));
+                selection = appendSelection(selection, WorkDbHelper.LIVE_TASKS);
+                // The tasks of a status are listed in the user's order
+                cursor = queryList(database, TaskEntry.TABLE_NAME, uri, projection, selection, selectionArgs,
+                        sortOrder, true);
+                break;
+            case TASK_COUNTS:
+                // Counts live under the tasks URI, so every task change notifies their cursor too
+                cursor = database.query(TaskCountEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                break;
+            case IMPORTS:
+                cursor = database.query(ImportEntry.TABLE_NAME, projection, selection, selectionArgs, null, null,
+                        sortOrder);
+                break;
+            case CHANGES:
+                cursor = queryChanges(database, uri, projection);
+                break;
+            case CHANGE_CONSUMERS:
+                cursor = database.query(ChangeEntry.CONSUMERS_TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder);
+                break;
+            case TASK_EVENTS:
+                cursor = database.query(TaskEventEntry.TABLE_NAME, projection, selection, selectionArgs, null, null,
+                        sortOrder != null ? sortOrder : TaskEventEntry.COLUMN_TIME + " ASC");
+                break;
+            case ARCHIVE:
+                cursor = queryList(database, ArchiveEntry.TABLE_NAME, uri, projection, selection, selectionArgs,
+                        sortOrder, false);
+                break;
+            case ARCHIVE_ID:
+                cursor = queryRow(database, ArchiveEntry.TABLE_NAME, ContentUris.parseId(uri), null, projection);
+                break;
+            case ARCHIVE_SEARCH:
+                cursor = searchArchive(database, uri, projection);
+                break;
+            case STATS:
+            case STATS_WEEKS:
+                // A row per day with completions, so a year is at most a few hundred rows
+                cursor = database.query(match == STATS ? STATS_DAYS : STATS_WEEKS_TABLE, projection, selection,
+                        selectionArgs, null, null, sortOrder != null ? sortOrder : StatsEntry.COLUMN_DAY + " ASC");
+                break;
+            case SEARCH:
+                cursor = search(database, uri, projection);
+                // Matches come from both tables, so watch for changes to either of them
+                notificationUri = WorkContract.BASE_CONTENT_URI;
+                break;
+            case METRICS:
+                cursor = mMetrics.toCursor(projection);
+                break;
+            case SLOW_QUERIES:
+                cursor = mSlowQueries.toCursor(projection);
                 break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
         // Set notification URI on the Cursor, so we know what content URI the Cursor was created for
         // If the data at this URI changes, then we know we need to update the Cursor
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
 
+        // getCount() runs the query, which the caller would do straight away anyway, so the
+        // recorded latency is that of the actual query and not only of preparing it
+        mMetrics.record(ProviderMetrics.OP_QUERY, match, cursor.getCount(), start);
+        long duration = System.nanoTime() - start;
+        if (mSlowQueries.isSlow(duration)) {
+            String sql = SlowQueryLog.takeLastQuerySql();
+            mSlowQueries.record(database, ProviderMetrics.nameOf(ProviderMetrics.OP_QUERY), sMatchPaths[match],
+                    duration, sql, sql, selectionArgs);
+        }
         return cursor;
     }
 
+    /**
+     * Query the row with the given _id, if it also matches the given selection (which can be
+     * null). Recently read rows are served from the row cache without going to the database;
+     * otherwise the whole row is read and cached. A projection with expressions or aliases is
+     * left to SQLite.
+     */
+    private Cursor queryRow(SQLiteDatabase database, String table, long id, String selection, String[] projection) {
+        selection = appendSelection(selection, BaseColumns._ID + "=?");
+        String[] selectionArgs = new String[] { String.valueOf(id) };
+        RowCache.Row row = mRowCache.get(table, id);
+        if (row == null) {
+            long generation = mRowCache.generation();
+            Cursor cursor = database.query(table, null, selection, selectionArgs, null, null, null);
+            try {
+                if (!cursor.moveToFirst()) {
+                    if (!RowCache.containsAll(cursor.getColumnNames(), projection)) {
+                        return database.query(table, projection, selection, selectionArgs, null, null, null);
+                    }
+                    // No such row; return an empty cursor with the requested columns
+                    return new MatrixCursor(projection == null ? cursor.getColumnNames() : projection, 0);
+                }
+                row = new RowCache.Row(cursor);
+            } finally {
+                cursor.close();
+            }
+            mRowCache.put(table, id, row, generation);
+        }
+        if (!row.hasColumns(projection)) {
+            return database.query(table, projection, selection, selectionArgs, null, null, null);
+        }
+        return row.toCursor(projection);
+    }
+
+    /**
+     * Query a whole table, or one page of it if the URI carries the
+     * {@link WorkContract#QUERY_AFTER_ID} and {@link WorkContract#QUERY_LIMIT} parameters.
+     * A page is a range scan on the list's key, so it doesn't have to skip over the rows of the
+     * pages before it like an OFFSET would. The key is _id (the primary key), or, for the task
+     * lists of one status (byPosition), the (position, _id) tail of the tasks position index.
+     */
+    private static Cursor queryList(SQLiteDatabase database, String table, Uri uri, String[] projection,
+                                    String selection, String[] selectionArgs, String sortOrder,
+                                    boolean byPosition) {
+        String afterPosition = uri.getQueryParameter(WorkContract.QUERY_AFTER_POSITION);
+        String afterId = uri.getQueryParameter(WorkContract.QUERY_AFTER_ID);
+        String limit = uri.getQueryParameter(WorkContract.QUERY_LIMIT);
+        String keyOrder = byPosition ? TASK_POSITION_ORDER : BaseColumns._ID + " ASC";
+        if (afterPosition == null && afterId == null && limit == null) {
+            return database.query(table, projection, selection, selectionArgs, null, null,
+                    sortOrder == null && byPosition ? keyOrder : sortOrder);
+        }
+
+        if (limit != null && !isPositiveNumber(limit)) {
+            throw new IllegalArgumentException("Invalid page limit in " + uri);
+        }
+        if (afterId != null && !isPositiveNumber(afterId) && !"0".equals(afterId)) {
+            throw new IllegalArgumentException("Invalid page start in " + uri);
+        }
+        if (afterPosition != null) {
+            if (!byPosition || afterId == null || !isNumber(afterPosition)) {
+                throw new IllegalArgumentException("Invalid page start in " + uri);
+            }
+            selection = appendSelection(selection, AFTER_POSITION);
+            selectionArgs = appendSelectionArg(selectionArgs, afterPosition);
+            selectionArgs = appendSelectionArg(selectionArgs, afterPosition);
+            selectionArgs = appendSelectionArg(selectionArgs, afterId);
+        } else if (afterId != null && !"0".equals(afterId)) {
+            if (byPosition) {
+                // Past the first page, a list in position order has to say which position it is at
+                throw new IllegalArgumentException("Page start without a position in " + uri);
+            }
+            selection = appendSelection(selection, BaseColumns._ID + " > ?");
+            selectionArgs = appendSelectionArg(selectionArgs, afterId);
+        }
+        // Pages only line up when they are read in key order
+        return database.query(table, projection, selection, selectionArgs, null, null, keyOrder, limit);
+    }
+
+    /**
+     * Query the change records after the sequence number in the {@link ChangeEntry#QUERY_SINCE}
+     * parameter, oldest first, up to the {@link WorkContract#QUERY_LIMIT} if there is one. The
+     * records are read off the sequence, the table's primary key, however long the feed is.
+     */
+    private static Cursor queryChanges(SQLiteDatabase database, Uri uri, String[] projection) {
+        String since = uri.getQueryParameter(ChangeEntry.QUERY_SINCE);
+        if (since == null) {
+            since = "0";
+        } else if (!isPositiveNumber(since) && !"0".equals(since)) {
+            throw new IllegalArgumentException("Invalid change sequence in " + uri);
+        }
+        String limit = uri.getQueryParameter(WorkContract.QUERY_LIMIT);
+        if (limit != null && !isPositiveNumber(limit)) {
+            throw new IllegalArgumentException("Invalid limit in " + uri);
+        }
+        return database.query(ChangeEntry.TABLE_NAME, projection, ChangeEntry.COLUMN_SEQUENCE + " > ?",
+                new String[] { since }, null, null, ChangeEntry.COLUMN_SEQUENCE + " ASC", limit);
+    }
+
+    /**
+     * Search the titles and details of tasks and reminders for the text in the last path segment
+     * of the URI. The lookup goes through the full-text index, so it doesn't read every row, and
+     * matches are ranked by how many times the words appear. Tasks of every status are included,
+     * but not deleted tasks that are still waiting to be purged.
+     */
+    private static Cursor search(SQLiteDatabase database, Uri uri, String[] projection) {
+        String columns = projection == null ? "*" : TextUtils.join(", ", projection);
+        String match = toMatchQuery(uri.getLastPathSegment());
+        if (match.isEmpty()) {
+            // Nothing to look for, e.g. only punctuation was typed
+            return new MatrixCursor(projection == null ? SEARCH_COLUMNS : projection);
+        }
+
+        String limit = uri.getQueryParameter(WorkContract.QUERY_LIMIT);
+        if (limit != null && !isPositiveNumber(limit)) {
+            throw new IllegalArgumentException("Invalid limit in " + uri);
+        }
+
+        String sql = "SELECT " + columns + " FROM (SELECT "
+                + SearchEntry.TABLE_NAME + ".docid AS " + SearchEntry._ID + ", "
+                + SearchEntry.TABLE_NAME + ".docid >> 1 AS " + SearchEntry.COLUMN_ITEM_ID + ", "
+                + SearchEntry.TABLE_NAME + ".docid & 1 AS " + SearchEntry.COLUMN_KIND + ", "
+                + SearchEntry.TABLE_NAME + "." + SearchEntry.COLUMN_TITLE + " AS " + SearchEntry.COLUMN_TITLE + ", "
+                + SearchEntry.TABLE_NAME + "." + SearchEntry.COLUMN_DETAILS + " AS " + SearchEntry.COLUMN_DETAILS + ", "
+                + TaskEntry.TABLE_NAME + "." + TaskEntry.COLUMN_TASK_STATUS + " AS " + SearchEntry.COLUMN_TASK_STATUS + ", "
+                // offsets() lists every matched term, so a longer result means more matches
+                + "length(offsets(" + SearchEntry.TABLE_NAME + ")) AS score"
+                + " FROM " + SearchEntry.TABLE_NAME + " LEFT JOIN " + TaskEntry.TABLE_NAME
+                + " ON " + TaskEntry.TABLE_NAME + "." + TaskEntry._ID + " = " + SearchEntry.TABLE_NAME + ".docid >> 1"
+                + " AND " + SearchEntry.TABLE_NAME + ".docid & 1 = " + SearchEntry.KIND_TASK
+                + " WHERE " + SearchEntry.TABLE_NAME + " MATCH ?"
+                + " AND (" + SearchEntry.TABLE_NAME + ".docid & 1 = " + SearchEntry.KIND_REMINDER
+                + " OR " + WorkDbHelper.LIVE_TASKS + "))"
+                + " ORDER BY score DESC, " + SearchEntry._ID + " DESC"
+                + (limit == null ? "" : " LIMIT " + limit);
+        return database.rawQuery(sql, new String[] { match });
+    }
+
+    /**
+     * Search the titles and details of the archived tasks for the text in the last path segment
+     * of the URI, through the archive's own full-text index. Matches are ranked like those of
+     * {@link #search}.
+     */
+    private static Cursor searchArchive(SQLiteDatabase database, Uri uri, String[] projection) {
+        String columns = projection == null ? "*" : TextUtils.join(", ", projection);
+        String match = toMatchQuery(uri.getLastPathSegment());
+        if (match.isEmpty()) {
+            return new MatrixCursor(projection == null ? ARCHIVE_COLUMNS : projection);
+        }
+
+        String limit = uri.getQueryParameter(WorkContract.QUERY_LIMIT);
+        if (limit != null && !isPositiveNumber(limit)) {
+            throw new IllegalArgumentException("Invalid limit in " + uri);
+        }
+
+        String archive = ArchiveEntry.TABLE_NAME;
+        String index = ArchiveEntry.SEARCH_TABLE_NAME;
+        String sql = "SELECT " + columns + " FROM (SELECT "
+                + archive + "." + ArchiveEntry._ID + " AS " + ArchiveEntry._ID + ", "
+                + archive + "." + ArchiveEntry.COLUMN_TITLE + " AS " + ArchiveEntry.COLUMN_TITLE + ", "
+                + archive + "." + ArchiveEntry.COLUMN_DETAILS + " AS " + ArchiveEntry.COLUMN_DETAILS + ", "
+                + archive + "." + ArchiveEntry.COLUMN_CREATED + " AS " + ArchiveEntry.COLUMN_CREATED + ", "
+                + archive + "." + ArchiveEntry.COLUMN_COMPLETED + " AS " + ArchiveEntry.COLUMN_COMPLETED + ", "
+                + "length(offsets(" + index + ")) AS score"
+                + " FROM " + index + " JOIN " + archive + " ON " + archive + "." + ArchiveEntry._ID + " = " + index + ".docid"
+                + " WHERE " + index + " MATCH ?)"
+                + " ORDER BY score DESC, " + ArchiveEntry._ID + " DESC"
+                + (limit == null ? "" : " LIMIT " + limit);
+        return database.rawQuery(sql, new String[] { match });
+    }
+
+    /**
+     * Turn the text typed by the user into an FTS match expression: every word must match,
+     * either in full or as a prefix. Anything but letters and digits is dropped, so the
+     * user can't type a malformed expression.
+     */
+    private static String toMatchQuery(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder match = new StringBuilder();
+        for (String word : text.split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append(word).append('*');
+            }
+        }
+        return match.toString();
+    }
+
+    private static boolean isPositiveNumber(String value) {
+        try {
+            return Long.parseLong(value) > 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static boolean isNumber(String value) {
+        try {
+            Long.parseLong(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Combine the caller's selection with another condition that must also hold.
+     */
+    private static String appendSelection(String selection, String condition) {
+        if (selection == null || selection.isEmpty()) {
+            return condition;
+        }
+        return "(" + selection + ") AND " + condition;
+    }
+
+    private static String[] appendSelectionArg(String[] selectionArgs, String arg) {
+        if (selectionArgs == null) {
+            return new String[] { arg };
+        }
+        String[] args = new String[selectionArgs.length + 1];
+        System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+        args[selectionArgs.length] = arg;
+        return args;
+    }
+
     /**
      * Insert new data into the provider with the given ContentValues.
      */
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
-
+        long start = System.nanoTime();
+        Uri itemUri;
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case REMINDERS:
-                return insertReminder(uri, contentValues);
+                itemUri = insertReminder(uri, contentValues);
+                break;
             case TASKS:
-                return insertTask(uri, contentValues);
+                itemUri = insertTask(uri, contentValues);
+                break;
+            case IMPORTS:
+                itemUri = insertImport(contentValues);
+                break;
+            case CHANGE_CONSUMERS:
+                itemUri = insertConsumer(contentValues);
+                break;
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
-        //return null;
+        mMetrics.record(ProviderMetrics.OP_INSERT, match, itemUri == null ? 0 : 1, start);
+        logIfSlowWrite(ProviderMetrics.OP_INSERT, match, start, null, null);
+        return itemUri;
     }
 
     /**
@@ -123,21 +807,7 @@ public class WorkProvider extends ContentProvider {
      */
     private Uri insertReminder(Uri uri, ContentValues values) {
 
-        // Check that the name is not null
-        String name = values.getAsString(ReminderEntry.COLUMN_REMINDER_NAME);
-        if (name == null) {
-            throw new IllegalArgumentException("Reminder requires a name");
-        }
-
-        Integer hours = values.getAsInteger(ReminderEntry.COLUMN_TIME_HOURS);
-        if (hours == null) {
-            throw new IllegalArgumentException("Reminder requires setting time");
-        }
-
-        Integer minutes = values.getAsInteger(ReminderEntry.COLUMN_TIME_MINUTES);
-        if (minutes == null) {
-            throw new IllegalArgumentException("Reminder requires setting time");
-        }
+        validateReminder(values);
 
         // Get writeable database
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
@@ -151,7 +821,7 @@ public class WorkProvider extends ContentProvider {
             return null;
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         // Once we know the ID of the new row in the table,
         // return the new URI with the ID appended to the end of it
@@ -160,20 +830,21 @@ public class WorkProvider extends ContentProvider {
 
     private Uri insertTask(Uri uri, ContentValues values) {
 
-        // Check that the title is not null
-        String title = values.getAsString(TaskEntry.COLUMN_TASK_TITLE);
-        if (title == null) {
-            throw new IllegalArgumentException("Task title required");
-        }
-
-        Integer status = values.getAsInteger(TaskEntry.COLUMN_TASK_STATUS);
-        if (status == null || !TaskEntry.isValidStatus(status)) {
-            throw new IllegalArgumentException("Task requires valid status");
-        }
+        validateTask(values);
 
         // Get writeable database
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
+        // Put the new task at the end of its list, unless it comes with a position
+        values = new ContentValues(values);
+        if (!values.containsKey(TaskEntry.COLUMN_TASK_POSITION)) {
+            values.put(TaskEntry.COLUMN_TASK_POSITION,
+                    lastPosition(database, values.getAsInteger(TaskEntry.COLUMN_TASK_STATUS)) + WorkDbHelper.POSITION_GAP);
+        }
+        if (!values.containsKey(TaskEntry.COLUMN_TASK_CREATED)) {
+            values.put(TaskEntry.COLUMN_TASK_CREATED, System.currentTimeMillis());
+        }
+
         // Insert the new task with the given values
         long id = database.insert(TaskEntry.TABLE_NAME, null, values);
 
@@ -183,7 +854,10 @@ public class WorkProvider extends ContentProvider {
             return null;
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        // Only the tab of the new task's status needs to reload
+        Set<Integer> statuses = new HashSet<>();
+        statuses.add(values.getAsInteger(TaskEntry.COLUMN_TASK_STATUS));
+        notifyTaskChange(null, statuses, true);
 
         // Once we know the ID of the new row in the table,
         // return the new URI with the ID appended to the end of it
@@ -191,67 +865,455 @@ public class WorkProvider extends ContentProvider {
     }
 
     /**
-     * Updates the data at the given selection and selection arguments, with the new ContentValues.
+     * Check that a new reminder has a name and a time set.
+     */
+    private static void validateReminder(ContentValues values) {
+        // Check that the name is not null
+        String name = values.getAsString(ReminderEntry.COLUMN_REMINDER_NAME);
+        if (name == null) {
+            throw new IllegalArgumentException("Reminder requires a name");
+        }
+
+        Integer hours = values.getAsInteger(ReminderEntry.COLUMN_TIME_HOURS);
+        if (hours == null) {
+            throw new IllegalArgumentException("Reminder requires setting time");
+        }
+
+        Integer minutes = values.getAsInteger(ReminderEntry.COLUMN_TIME_MINUTES);
+        if (minutes == null) {
+            throw new IllegalArgumentException("Reminder requires setting time");
+        }
+    }
+
+    /**
+     * Check that a new task has a title and a valid status.
+     */
+    private static void validateTask(ContentValues values) {
+        // Check that the title is not null
+        String title = values.getAsString(TaskEntry.COLUMN_TASK_TITLE);
+        if (title == null) {
+            throw new IllegalArgumentException("Task title required");
+        }
+
+        Integer status = values.getAsInteger(TaskEntry.COLUMN_TASK_STATUS);
+        if (status == null || !TaskEntry.isValidStatus(status)) {
+            throw new IllegalArgumentException("Task requires valid status");
+        }
+
+        // The position is optional, but has to be a number if it is given
+        if (values.containsKey(TaskEntry.COLUMN_TASK_POSITION)
+                && values.getAsLong(TaskEntry.COLUMN_TASK_POSITION) == null) {
+            throw new IllegalArgumentException("Task requires valid position");
+        }
+    }
+
+    /**
+     * Insert a batch of rows in a single transaction. Every row is validated the same way as
+     * {@link #insert(Uri, ContentValues)}, and listeners are notified once for the whole batch.
      */
     @Override
-    public int update(Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        long start = System.nanoTime();
+        int rowsInserted;
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case REMINDERS:
-                return updateReminder(uri, contentValues, selection, selectionArgs);
-            case REMINDER_ID:
-                // For the REMINDER_ID code, extract out the ID from the URI,
-                // so we know which row to update. Selection will be "_id=?" and selection
-                // arguments will be a String array containing the actual ID.
-                selection = ReminderEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                return updateReminder(uri, contentValues, selection, selectionArgs);
+                rowsInserted = bulkInsertReminders(uri, values);
+                break;
             case TASKS:
-                return updateTask(uri, contentValues, selection, selectionArgs);
-            case TASK_ID:
-                // For the TASK_ID code, extract out the ID from the URI,
-                // so we know which row to update. Selection will be "_id=?" and selection
-                // arguments will be a String array containing the actual ID.
-                selection = TaskEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                return updateTask(uri, contentValues, selection, selectionArgs);
+                rowsInserted = bulkInsertTasks(uri, values);
+                break;
             default:
-                throw new IllegalArgumentException("Update is not supported for " + uri);
+                throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
+        mMetrics.record(ProviderMetrics.OP_BULK_INSERT, match, rowsInserted, start);
+        logIfSlowWrite(ProviderMetrics.OP_BULK_INSERT, match, start, null, null);
+        return rowsInserted;
     }
 
-    private int updateReminder(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        // If the {@link ReminderEntry#COLUMN_TASK_TITLE} key is present,
-        // check that the name value is not null.
-        if (values.containsKey(ReminderEntry.COLUMN_REMINDER_NAME)) {
-            String name = values.getAsString(ReminderEntry.COLUMN_REMINDER_NAME);
-            if (name == null) {
-                throw new IllegalArgumentException("Reminder requires a name");
+    private int bulkInsertReminders(Uri uri, ContentValues[] values) {
+        // Validate the whole batch up front, so a bad row fails before anything is written
+        for (ContentValues value : values) {
+            validateReminder(value);
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsInserted = 0;
+        // Compile the insert once and rebind it for every row, instead of letting
+        // SQLiteDatabase.insert() build and prepare the same SQL for each of them
+        SQLiteStatement statement = database.compileStatement("INSERT INTO " + ReminderEntry.TABLE_NAME + " ("
+                + ReminderEntry.COLUMN_REMINDER_NAME + ", "
+                + ReminderEntry.COLUMN_REMINDER_DETAILS + ", "
+                + ReminderEntry.COLUMN_TIME_HOURS + ", "
+                + ReminderEntry.COLUMN_TIME_MINUTES + ") VALUES (?, ?, ?, ?)");
+        database.beginTransactionNonExclusive();
+        try {
+            for (ContentValues value : values) {
+                if (!hasOnlyKeys(value, REMINDER_INSERT_COLUMNS)) {
+                    // Columns the compiled statement doesn't know about take the regular path
+                    database.insertOrThrow(ReminderEntry.TABLE_NAME, null, value);
+                } else {
+                    statement.clearBindings();
+                    statement.bindString(1, value.getAsString(ReminderEntry.COLUMN_REMINDER_NAME));
+                    bindStringOrNull(statement, 2, value.getAsString(ReminderEntry.COLUMN_REMINDER_DETAILS));
+                    statement.bindLong(3, value.getAsInteger(ReminderEntry.COLUMN_TIME_HOURS));
+                    statement.bindLong(4, value.getAsInteger(ReminderEntry.COLUMN_TIME_MINUTES));
+                    statement.executeInsert();
+                }
+                rowsInserted++;
             }
+            boolean imported = recordImportProgress(database, uri);
+            database.setTransactionSuccessful();
+            if (imported) {
+                notifyChange(ImportEntry.CONTENT_URI);
+            }
+        } finally {
+            database.endTransaction();
+            statement.close();
         }
 
-       // No need to check the details, any value is valid (including null).
+        if (rowsInserted != 0) {
+            notifyChange(ReminderEntry.CONTENT_URI);
+        }
+        flushNotifications();
+        return rowsInserted;
+    }
 
-        // If there are no values to update, then don't try to update the database
-        if (values.size() == 0) {
-            return 0;
+    private int bulkInsertTasks(Uri uri, ContentValues[] values) {
+        // Validate the whole batch up front, so a bad row fails before anything is written
+        for (ContentValues value : values) {
+            validateTask(value);
         }
 
-        // Otherwise, get writeable database to update the data
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
-
-        // Perform the update on the database and get the number of rows affected
-        int rowsUpdated = database.update(ReminderEntry.TABLE_NAME, values, selection, selectionArgs);
-        if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+        int rowsInserted = 0;
+        Set<Integer> statuses = new HashSet<>();
+        // Position after the last task of each status the batch has added to so far
+        Map<Integer, Long> nextPositions = new HashMap<>();
+        long now = System.currentTimeMillis();
+        // Compile the insert once and rebind it for every row, instead of letting
+        // SQLiteDatabase.insert() build and prepare the same SQL for each of them
+        SQLiteStatement statement = database.compileStatement("INSERT INTO " + TaskEntry.TABLE_NAME + " ("
+                + TaskEntry.COLUMN_TASK_TITLE + ", "
+                + TaskEntry.COLUMN_TASK_DETAILS + ", "
+                + TaskEntry.COLUMN_TASK_STATUS + ", "
+                + TaskEntry.COLUMN_TASK_POSITION + ", "
+                + TaskEntry.COLUMN_TASK_CREATED + ") VALUES (?, ?, ?, ?, ?)");
+        database.beginTransactionNonExclusive();
+        try {
+            for (ContentValues value : values) {
+                int status = value.getAsInteger(TaskEntry.COLUMN_TASK_STATUS);
+                long position;
+                if (value.containsKey(TaskEntry.COLUMN_TASK_POSITION)) {
+                    position = value.getAsLong(TaskEntry.COLUMN_TASK_POSITION);
+                    // The end of that list may have moved
+                    nextPositions.remove(status);
+                } else {
+                    // New tasks go to the end of their list, in the order of the batch
+                    Long next = nextPositions.get(status);
+                    position = next != null ? next : lastPosition(database, status) + WorkDbHelper.POSITION_GAP;
+                    nextPositions.put(status, position + WorkDbHelper.POSITION_GAP);
+                }
+                Long created = value.getAsLong(TaskEntry.COLUMN_TASK_CREATED);
+                if (!hasOnlyKeys(value, TASK_INSERT_COLUMNS)) {
+                    // Columns the compiled statement doesn't know about take the regular path
+                    ContentValues row = new ContentValues(value);
+                    row.put(TaskEntry.COLUMN_TASK_POSITION, position);
+                    row.put(TaskEntry.COLUMN_TASK_CREATED, created != null ? created : now);
+                    database.insertOrThrow(TaskEntry.TABLE_NAME, null, row);
+                } else {
+                    statement.clearBindings();
+                    statement.bindString(1, value.getAsString(TaskEntry.COLUMN_TASK_TITLE));
+                    bindStringOrNull(statement, 2, value.getAsString(TaskEntry.COLUMN_TASK_DETAILS));
+                    statement.bindLong(3, status);
+                    statement.bindLong(4, position);
+                    statement.bindLong(5, created != null ? created : now);
+                    statement.executeInsert();
+                }
+                statuses.add(status);
+                rowsInserted++;
+            }
+            boolean imported = recordImportProgress(database, uri);
+            database.setTransactionSuccessful();
+            if (imported) {
+                notifyChange(ImportEntry.CONTENT_URI);
+            }
+        } finally {
+            database.endTransaction();
+            statement.close();
         }
 
+        if (rowsInserted != 0) {
+            notifyTaskChange(null, statuses, true);
+        }
+        flushNotifications();
+        return rowsInserted;
+    }
 
-        // Returns the number of database rows affected by the update statement
-        return rowsUpdated;
+    /**
+     * If the bulk insert URI is a batch of an import (see {@link ImportEntry#buildBatchUri}),
+     * move the checkpoint of the import forward, in the transaction of the batch. Returns true
+     * if it was a batch of an import.
+     */
+    private static boolean recordImportProgress(SQLiteDatabase database, Uri uri) {
+        String source = uri.getQueryParameter(ImportEntry.QUERY_IMPORT_SOURCE);
+        if (source == null) {
+            return false;
+        }
+        String records = uri.getQueryParameter(ImportEntry.QUERY_IMPORT_RECORDS);
+        if (records == null || !isPositiveNumber(records)) {
+            // Thrown inside the transaction, so the batch's rows are rolled back too
+            throw new IllegalArgumentException("Invalid import records in " + uri);
+        }
+        database.execSQL("INSERT OR REPLACE INTO " + ImportEntry.TABLE_NAME + " ("
+                + ImportEntry.COLUMN_SOURCE + ", " + ImportEntry.COLUMN_RECORDS + ", " + ImportEntry.COLUMN_FINISHED
+                + ") VALUES (?, ?, 0)", new Object[] { source, Long.parseLong(records) });
+        return true;
     }
 
-    private int updateTask(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    /**
+     * Add the checkpoint of an import that hasn't imported anything yet.
+     */
+    private Uri insertImport(ContentValues values) {
+        if (values.getAsString(ImportEntry.COLUMN_SOURCE) == null) {
+            throw new IllegalArgumentException("Import requires a source");
+        }
+        ContentValues row = new ContentValues(values);
+        if (!row.containsKey(ImportEntry.COLUMN_RECORDS)) {
+            row.put(ImportEntry.COLUMN_RECORDS, 0);
+        }
+        long id = mDbHelper.getWritableDatabase().insertOrThrow(ImportEntry.TABLE_NAME, null, row);
+        notifyChange(ImportEntry.CONTENT_URI);
+        return ContentUris.withAppendedId(ImportEntry.CONTENT_URI, id);
+    }
+
+    /**
+     * Update the import checkpoints matching the selection, e.g. to mark an import as finished.
+     */
+    private int updateImports(ContentValues values, String selection, String[] selectionArgs) {
+        if (values.size() == 0) {
+            return 0;
+        }
+        int rowsUpdated = mDbHelper.getWritableDatabase().update(ImportEntry.TABLE_NAME, values, selection,
+                selectionArgs);
+        if (rowsUpdated != 0) {
+            notifyChange(ImportEntry.CONTENT_URI);
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Register a consumer of the change feed, which starts out having seen every record so far.
+     * Registering a consumer that is already registered leaves it where it is.
+     */
+    private Uri insertConsumer(ContentValues values) {
+        String consumer = values.getAsString(ChangeEntry.COLUMN_CONSUMER);
+        if (consumer == null || values.size() != 1) {
+            throw new IllegalArgumentException("A change consumer requires only a name");
+        }
+        SQLiteStatement insert = mDbHelper.getWritableDatabase().compileStatement(CONSUMER_INSERT_SQL);
+        long id;
+        try {
+            insert.bindString(1, consumer);
+            id = insert.executeInsert();
+        } finally {
+            insert.close();
+        }
+        if (id != -1) {
+            notifyChange(ChangeEntry.CONSUMERS_URI);
+        }
+        return ChangeEntry.CONSUMERS_URI;
+    }
+
+    /**
+     * Move the consumers matching the selection forward to the {@link ChangeEntry#COLUMN_SEEN}
+     * in values, and trim the records that every consumer has now seen.
+     */
+    private int updateConsumers(ContentValues values, String selection, String[] selectionArgs) {
+        Long seen = values.getAsLong(ChangeEntry.COLUMN_SEEN);
+        if (seen == null || values.size() != 1) {
+            throw new IllegalArgumentException("Only the last seen change of a consumer can be updated");
+        }
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsUpdated;
+        database.beginTransactionNonExclusive();
+        try {
+            SQLiteStatement update = database.compileStatement(CONSUMERS_SEEN_SQL
+                    + (TextUtils.isEmpty(selection) ? "1" : selection));
+            try {
+                update.bindLong(1, seen);
+                if (selectionArgs != null) {
+                    for (int i = 0; i < selectionArgs.length; i++) {
+                        update.bindString(i + 2, selectionArgs[i]);
+                    }
+                }
+                rowsUpdated = update.executeUpdateDelete();
+            } finally {
+                update.close();
+            }
+            if (rowsUpdated != 0) {
+                database.execSQL(TRIM_CHANGES_SQL);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        if (rowsUpdated != 0) {
+            notifyChange(ChangeEntry.CONSUMERS_URI);
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Remove the consumers matching the selection, and the records only they were waiting for.
+     */
+    private int deleteConsumers(String selection, String[] selectionArgs) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsDeleted;
+        database.beginTransactionNonExclusive();
+        try {
+            rowsDeleted = database.delete(ChangeEntry.CONSUMERS_TABLE_NAME, selection, selectionArgs);
+            if (rowsDeleted != 0) {
+                database.execSQL(TRIM_CHANGES_SQL);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        if (rowsDeleted != 0) {
+            notifyChange(ChangeEntry.CONSUMERS_URI);
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Returns true if every key in the given values is one of the given columns.
+     */
+    private static boolean hasOnlyKeys(ContentValues values, String[] columns) {
+        int known = 0;
+        for (String column : columns) {
+            if (values.containsKey(column)) {
+                known++;
+            }
+        }
+        return known == values.size();
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Updates the data at the given selection and selection arguments, with the new ContentValues.
+     */
+    @Override
+    public int update(Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
+        long start = System.nanoTime();
+        int rowsUpdated;
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case REMINDERS:
+                rowsUpdated = updateReminder(null, contentValues, selection, selectionArgs);
+                break;
+            case REMINDER_ID:
+                // For the REMINDER_ID code the row to update is the one with the ID in the URI
+                rowsUpdated = updateReminder(uri, contentValues, null, null);
+                break;
+            case TASKS:
+                rowsUpdated = updateTask(null, contentValues, selection, selectionArgs);
+                break;
+            case TASK_ID:
+                // For the TASK_ID code the row to update is the one with the ID in the URI
+                rowsUpdated = updateTask(uri, contentValues, null, null);
+                break;
+            case IMPORTS:
+                rowsUpdated = updateImports(contentValues, selection, selectionArgs);
+                break;
+            case CHANGE_CONSUMERS:
+                rowsUpdated = updateConsumers(contentValues, selection, selectionArgs);
+                break;
+            default:
+                throw new IllegalArgumentException("Update is not supported for " + uri);
+        }
+        mMetrics.record(ProviderMetrics.OP_UPDATE, match, rowsUpdated, start);
+        logIfSlowWrite(ProviderMetrics.OP_UPDATE, match, start, selection, selectionArgs);
+        return rowsUpdated;
+    }
+
+    /**
+     * Update the reminders matching the selection. itemUri is the URI of the reminder when a
+     * single reminder is updated by its URI, and null otherwise; the selection is then ignored.
+     */
+    private int updateReminder(Uri itemUri, ContentValues values, String selection, String[] selectionArgs) {
+        // If the {@link ReminderEntry#COLUMN_TASK_TITLE} key is present,
+        // check that the name value is not null.
+        if (values.containsKey(ReminderEntry.COLUMN_REMINDER_NAME)) {
+            String name = values.getAsString(ReminderEntry.COLUMN_REMINDER_NAME);
+            if (name == null) {
+                throw new IllegalArgumentException("Reminder requires a name");
+            }
+        }
+
+       // No need to check the details, any value is valid (including null).
+
+        if (values.containsKey(ReminderEntry.COLUMN_REMINDER_REVISION)) {
+            throw new IllegalArgumentException("Reminder revision is read only");
+        }
+
+        // If there are no values to update, then don't try to update the database
+        if (values.size() == 0) {
+            return 0;
+        }
+
+        // Otherwise, get writeable database to update the data
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        Long expectedRevision = expectedRevision(itemUri);
+        if (expectedRevision != null) {
+            // Notify and cache by the reminder's own URI
+            itemUri = ContentUris.withAppendedId(ReminderEntry.CONTENT_URI, ContentUris.parseId(itemUri));
+        }
+
+        // Perform the update on the database and get the number of rows affected
+        int rowsUpdated;
+        int shape = itemUri == null ? -1 : indexOfShape(values, REMINDER_UPDATE_SHAPES);
+        if (shape >= 0) {
+            String sql = expectedRevision == null ? REMINDER_UPDATE_SQL[shape] : REMINDER_UPDATE_REVISION_SQL[shape];
+            rowsUpdated = executeById(database, sql, REMINDER_UPDATE_SHAPES[shape], values,
+                    ContentUris.parseId(itemUri), expectedRevision);
+        } else {
+            if (itemUri != null) {
+                selection = ReminderEntry._ID + "=?";
+                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(itemUri)) };
+                if (expectedRevision != null) {
+                    selection += " AND " + ReminderEntry.COLUMN_REMINDER_REVISION + "=?";
+                    selectionArgs = appendSelectionArg(selectionArgs, String.valueOf(expectedRevision));
+                }
+            }
+            rowsUpdated = database.update(ReminderEntry.TABLE_NAME, values, selection, selectionArgs);
+        }
+        if (rowsUpdated == 0 && expectedRevision != null) {
+            // The update itself was conditional, so this only decides how a miss is reported
+            checkRevision(database, REMINDER_REVISION_SQL, itemUri, expectedRevision);
+        }
+        if (rowsUpdated != 0) {
+            invalidateRows(ReminderEntry.TABLE_NAME, itemUri);
+            notifyChange(itemUri != null ? itemUri : ReminderEntry.CONTENT_URI);
+        }
+
+
+        // Returns the number of database rows affected by the update statement
+        return rowsUpdated;
+    }
+
+    /**
+     * Update the tasks matching the selection. itemUri is the URI of the task when a single task
+     * is updated by its URI, and null otherwise; the selection is then ignored.
+     */
+    private int updateTask(Uri itemUri, ContentValues values, String selection, String[] selectionArgs) {
         // If the {@link TaskEntry#COLUMN_TASK_TITLE} key is present,
         // check that the title value is not null.
         if (values.containsKey(TaskEntry.COLUMN_TASK_TITLE)) {
@@ -270,32 +1332,237 @@ public class WorkProvider extends ContentProvider {
             }
         }
 
+        if (values.containsKey(TaskEntry.COLUMN_TASK_POSITION)
+                && values.getAsLong(TaskEntry.COLUMN_TASK_POSITION) == null) {
+            throw new IllegalArgumentException("Task requires valid position");
+        }
+
+        if (values.containsKey(TaskEntry.COLUMN_TASK_REVISION)) {
+            throw new IllegalArgumentException("Task revision is read only");
+        }
+
         // If there are no values to update, then don't try to update the database
         if (values.size() == 0) {
             return 0;
         }
+        Long expectedRevision = expectedRevision(itemUri);
+        if (expectedRevision != null) {
+            // Notify and cache by the task's own URI
+            itemUri = ContentUris.withAppendedId(TaskEntry.CONTENT_URI, ContentUris.parseId(itemUri));
+        }
 
         // Otherwise, get writeable database to update the data
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        Set<Integer> statuses;
+        int rowsUpdated;
+        Integer newStatus = values.getAsInteger(TaskEntry.COLUMN_TASK_STATUS);
+        long now = System.currentTimeMillis();
 
-        // Perform the update on the database and get the number of rows affected
-        int rowsUpdated = database.update(TaskEntry.TABLE_NAME, values, selection, selectionArgs);
-        if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+        int shape = itemUri == null ? -1 : indexOfShape(values, TASK_UPDATE_SHAPES);
+        // The status changes are logged in the same transaction as the update, so the log
+        // commits with it and costs no extra sync
+        database.beginTransactionNonExclusive();
+        try {
+            if (shape >= 0) {
+                // A common single-task update: run it from the compiled statements
+                long id = ContentUris.parseId(itemUri);
+                statuses = taskStatus(database, id);
+                if (newStatus != null && !statuses.isEmpty() && !statuses.contains(newStatus)) {
+                    updateCompletions(database, TaskEntry._ID + "=?", new String[] { String.valueOf(id) },
+                            newStatus, now);
+                }
+                String sql = expectedRevision == null ? TASK_UPDATE_SQL[shape] : TASK_UPDATE_REVISION_SQL[shape];
+                rowsUpdated = executeById(database, sql, TASK_UPDATE_SHAPES[shape], values, id, expectedRevision);
+                if (rowsUpdated != 0 && newStatus != null && !statuses.contains(newStatus)) {
+                    logStatusChange(database, id, statuses.iterator().next(), newStatus, now);
+                }
+            } else {
+                if (itemUri != null) {
+                    selection = TaskEntry._ID + "=?";
+                    selectionArgs = new String[] { String.valueOf(ContentUris.parseId(itemUri)) };
+                    if (expectedRevision != null) {
+                        selection += " AND " + TaskEntry.COLUMN_TASK_REVISION + "=?";
+                        selectionArgs = appendSelectionArg(selectionArgs, String.valueOf(expectedRevision));
+                    }
+                }
+                // Deleted tasks can't be changed any more
+                selection = appendSelection(selection, WorkDbHelper.LIVE_TASKS);
+                // Find the tabs the tasks are in before the update may move them to another one
+                statuses = taskStatuses(database, selection, selectionArgs);
+                if (newStatus != null) {
+                    // Count the moves and log them while the old statuses can still be read
+                    updateCompletions(database, selection, selectionArgs, newStatus, now);
+                    logStatusChanges(database, selection, selectionArgs, newStatus, now);
+                }
+                // Perform the update on the database and get the number of rows affected
+                rowsUpdated = database.update(TaskEntry.TABLE_NAME, values, selection, selectionArgs);
+            }
+            if (rowsUpdated == 0 && expectedRevision != null) {
+                checkRevision(database, TASK_REVISION_SQL, itemUri, expectedRevision);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
         }
 
+        if (rowsUpdated != 0) {
+            invalidateRows(TaskEntry.TABLE_NAME, itemUri);
+            boolean statusChanged = false;
+            if (newStatus != null) {
+                statusChanged = statuses.size() > 1 || !statuses.contains(newStatus);
+                statuses.add(newStatus);
+            }
+            notifyTaskChange(itemUri, statuses, statusChanged);
+            if (statusChanged) {
+                notifyChange(TaskEventEntry.CONTENT_URI);
+                // Moves to and from Done both change the statistics
+                if (statuses.contains(TaskEntry.STATUS_COMPLETED)) {
+                    notifyChange(StatsEntry.CONTENT_URI);
+                }
+            }
+        }
 
         // Returns the number of database rows affected by the update statement
         return rowsUpdated;
     }
 
+    /**
+     * Append the status change of one task to the task events log, from a pooled statement.
+     */
+    private void logStatusChange(SQLiteDatabase database, long id, int fromStatus, int toStatus, long time) {
+        SQLiteStatement statement = mStatements.acquire(database, TASK_EVENT_INSERT_SQL);
+        try {
+            statement.bindLong(1, id);
+            statement.bindLong(2, fromStatus);
+            statement.bindLong(3, toStatus);
+            statement.bindLong(4, time);
+            statement.executeInsert();
+        } finally {
+            mStatements.release(database, TASK_EVENT_INSERT_SQL, statement);
+        }
+    }
+
+    /**
+     * Append an event to the task events log for every task matching the selection that isn't
+     * in toStatus yet. Must run before the update that changes their status.
+     */
+    private static void logStatusChanges(SQLiteDatabase database, String selection, String[] selectionArgs,
+                                         int toStatus, long time) {
+        // The new status and time come first in the SQL, then the selection, then the status check
+        int argCount = selectionArgs == null ? 0 : selectionArgs.length;
+        Object[] args = new Object[argCount + 3];
+        args[0] = toStatus;
+        args[1] = time;
+        if (argCount > 0) {
+            System.arraycopy(selectionArgs, 0, args, 2, argCount);
+        }
+        args[argCount + 2] = toStatus;
+        database.execSQL(TASK_EVENTS_INSERT_SQL + appendSelection(selection,
+                TaskEntry.COLUMN_TASK_STATUS + " <> ?"), args);
+    }
+
+    /**
+     * Update the statistics for the tasks matching the selection moving to newStatus: the tasks
+     * moved to Done count as completed at the given time, and the tasks moved out of Done no
+     * longer count on the day they were completed. Must run before the update, and before the
+     * moves are logged.
+     */
+    private void updateCompletions(SQLiteDatabase database, String selection, String[] selectionArgs,
+                                   int newStatus, long time) {
+        if (newStatus == TaskEntry.STATUS_COMPLETED) {
+            addCompletions(database, selection, selectionArgs, time);
+        } else {
+            removeCompletions(database, selection, selectionArgs);
+        }
+    }
+
+    /**
+     * Add the tasks matching the selection that aren't done yet to the statistics, as completed
+     * at the given time.
+     */
+    private void addCompletions(SQLiteDatabase database, String selection, String[] selectionArgs, long time) {
+        String[] args = new String[(selectionArgs == null ? 0 : selectionArgs.length) + 1];
+        args[0] = String.valueOf(time);
+        if (selectionArgs != null) {
+            System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+        }
+        Cursor cursor = database.rawQuery(COMPLETIONS_SQL + appendSelection(selection,
+                TaskEntry.COLUMN_TASK_STATUS + " <> " + TaskEntry.STATUS_COMPLETED) + ")", args);
+        try {
+            if (cursor.moveToFirst() && cursor.getInt(0) > 0) {
+                addCompletions(database, WorkDbHelper.localDay(time), cursor.getInt(0), cursor.getInt(1),
+                        cursor.getLong(2));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Take the Done tasks matching the selection out of the statistics of the days they were
+     * completed on, as they are moved out of Done.
+     */
+    private void removeCompletions(SQLiteDatabase database, String selection, String[] selectionArgs) {
+        // Per day, the number completed, the number of them timed and their total time
+        Map<Long, long[]> statsByDay = new HashMap<>();
+        Cursor cursor = database.rawQuery(UNCOMPLETIONS_SQL + appendSelection(selection,
+                TaskEntry.COLUMN_TASK_STATUS + " = " + TaskEntry.STATUS_COMPLETED) + ") WHERE done IS NOT NULL",
+                selectionArgs);
+        try {
+            while (cursor.moveToNext()) {
+                long done = cursor.getLong(0);
+                long day = WorkDbHelper.localDay(done);
+                long[] stats = statsByDay.get(day);
+                if (stats == null) {
+                    stats = new long[3];
+                    statsByDay.put(day, stats);
+                }
+                stats[0]++;
+                if (!cursor.isNull(1)) {
+                    stats[1]++;
+                    stats[2] += Math.max(done - cursor.getLong(1), 0);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        for (Map.Entry<Long, long[]> entry : statsByDay.entrySet()) {
+            long[] stats = entry.getValue();
+            addCompletions(database, entry.getKey(), -stats[0], -stats[1], -stats[2]);
+        }
+    }
+
+    /**
+     * Add completed tasks to the statistics row of the given day: their number, the number of
+     * them that are timed, and the total of their times from entering To Do to being done.
+     * Negative numbers take completions back.
+     */
+    private void addCompletions(SQLiteDatabase database, long day, long completed, long timed, long totalMillis) {
+        SQLiteStatement statement = mStatements.acquire(database, STATS_DAY_SQL);
+        try {
+            statement.bindLong(1, day);
+            statement.executeInsert();
+        } finally {
+            mStatements.release(database, STATS_DAY_SQL, statement);
+        }
+        statement = mStatements.acquire(database, STATS_ADD_SQL);
+        try {
+            statement.bindLong(1, completed);
+            statement.bindLong(2, timed);
+            statement.bindLong(3, totalMillis);
+            statement.bindLong(4, day);
+            statement.executeUpdateDelete();
+        } finally {
+            mStatements.release(database, STATS_ADD_SQL, statement);
+        }
+    }
+
     /**
      * Delete the data at the given selection and selection arguments.
      */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        // Get writeable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long start = System.nanoTime();
         // Track the number of rows that were deleted
         int rowsDeleted;
 
@@ -304,34 +1571,709 @@ public class WorkProvider extends ContentProvider {
         switch (match) {
             case REMINDERS:
                 // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(ReminderEntry.TABLE_NAME, selection, selectionArgs);
+                rowsDeleted = deleteReminders(null, selection, selectionArgs);
                 break;
             case REMINDER_ID:
                 // Delete a single row given by the ID in the URI
-                selection = ReminderEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                rowsDeleted = database.delete(ReminderEntry.TABLE_NAME, selection, selectionArgs);
+                rowsDeleted = deleteReminders(uri, null, null);
                 break;
             case TASKS:
                 // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(TaskEntry.TABLE_NAME, selection, selectionArgs);
+                rowsDeleted = deleteTasks(null, selection, selectionArgs);
                 break;
             case TASK_ID:
                 // Delete a single row given by the ID in the URI
-                selection = TaskEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                rowsDeleted = database.delete(TaskEntry.TABLE_NAME, selection, selectionArgs);
+                rowsDeleted = deleteTasks(uri, null, null);
+                break;
+            case ARCHIVE:
+                rowsDeleted = deleteArchived(null, selection, selectionArgs);
+                break;
+            case ARCHIVE_ID:
+                rowsDeleted = deleteArchived(uri, null, null);
+                break;
+            case IMPORTS:
+                rowsDeleted = mDbHelper.getWritableDatabase().delete(ImportEntry.TABLE_NAME, selection, selectionArgs);
+                if (rowsDeleted != 0) {
+                    notifyChange(ImportEntry.CONTENT_URI);
+                }
+                break;
+            case CHANGE_CONSUMERS:
+                rowsDeleted = deleteConsumers(selection, selectionArgs);
                 break;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
+        mMetrics.record(ProviderMetrics.OP_DELETE, match, rowsDeleted, start);
+        logIfSlowWrite(ProviderMetrics.OP_DELETE, match, start, selection, selectionArgs);
+        return rowsDeleted;
+    }
+
+    /**
+     * Record a write in the slow query log if it took longer than the threshold. Writes don't
+     * go through the cursor factory, so the statement is described from the table and the rows
+     * it selected, and the plan is that of selecting those rows.
+     */
+    private void logIfSlowWrite(int op, int match, long startNanos, String selection, String[] selectionArgs) {
+        long duration = System.nanoTime() - startNanos;
+        if (!mSlowQueries.isSlow(duration)) {
+            return;
+        }
+        String table = match == REMINDERS || match == REMINDER_ID ? ReminderEntry.TABLE_NAME
+                : match == ARCHIVE || match == ARCHIVE_ID ? ArchiveEntry.TABLE_NAME
+                : match == IMPORTS ? ImportEntry.TABLE_NAME
+                : match == CHANGE_CONSUMERS ? ChangeEntry.CONSUMERS_TABLE_NAME : TaskEntry.TABLE_NAME;
+        String sql;
+        String explainSql = null;
+        if (op == ProviderMetrics.OP_INSERT || op == ProviderMetrics.OP_BULK_INSERT) {
+            sql = "INSERT INTO " + table;
+        } else {
+            String where = match == REMINDER_ID || match == TASK_ID || match == ARCHIVE_ID
+                    ? BaseColumns._ID + " = ?" : selection;
+            if (match == TASKS || match == TASK_ID || match == TASKS_BY_STATUS) {
+                where = appendSelection(where, WorkDbHelper.LIVE_TASKS);
+            }
+            where = TextUtils.isEmpty(where) ? "" : " WHERE " + where;
+            sql = (op == ProviderMetrics.OP_UPDATE ? "UPDATE " : "DELETE FROM ") + table + where;
+            // The consumers are keyed by name and have no _id
+            explainSql = "SELECT " + (match == CHANGE_CONSUMERS ? ChangeEntry.COLUMN_CONSUMER : BaseColumns._ID)
+                    + " FROM " + table + where;
+        }
+        mSlowQueries.record(mDbHelper.getReadableDatabase(), ProviderMetrics.nameOf(op), sMatchPaths[match],
+                duration, sql, explainSql, selectionArgs);
+    }
+
+    /**
+     * Delete the reminders matching the selection. itemUri is the URI of the reminder when a
+     * single reminder is deleted by its URI, and null otherwise; the selection is then ignored.
+     */
+    private int deleteReminders(Uri itemUri, String selection, String[] selectionArgs) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsDeleted;
+        if (itemUri != null) {
+            rowsDeleted = executeById(database, REMINDER_DELETE_SQL, new String[0], null,
+                    ContentUris.parseId(itemUri));
+        } else {
+            rowsDeleted = database.delete(ReminderEntry.TABLE_NAME, selection, selectionArgs);
+        }
         // If 1 or more rows were deleted, then notify all listeners that the data at the
         // given URI has changed
-        if (rowsDeleted != 0)
-            getContext().getContentResolver().notifyChange(uri, null);
+        if (rowsDeleted != 0) {
+            invalidateRows(ReminderEntry.TABLE_NAME, itemUri);
+            notifyChange(itemUri != null ? itemUri : ReminderEntry.CONTENT_URI);
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Delete the archived tasks matching the selection. itemUri is the URI of the archived task
+     * when a single one is deleted by its URI, and null otherwise; the selection is then ignored.
+     */
+    private int deleteArchived(Uri itemUri, String selection, String[] selectionArgs) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        if (itemUri != null) {
+            selection = ArchiveEntry._ID + "=?";
+            selectionArgs = new String[] { String.valueOf(ContentUris.parseId(itemUri)) };
+        }
+        int rowsDeleted = database.delete(ArchiveEntry.TABLE_NAME, selection, selectionArgs);
+        if (rowsDeleted != 0) {
+            invalidateRows(ArchiveEntry.TABLE_NAME, itemUri);
+            notifyChange(itemUri != null ? itemUri : ArchiveEntry.CONTENT_URI);
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Move an archived task back to the end of the Done list, as a new task. It keeps its text
+     * and the time it was added, and counts as completed now, so it isn't archived again right
+     * away. Returns the new _id of the task, or -1 if there is no such archived task.
+     */
+    private long restoreTask(long archivedId) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        String[] idArgs = { String.valueOf(archivedId) };
+        long id;
+
+        database.beginTransactionNonExclusive();
+        try {
+            ContentValues values = new ContentValues();
+            Cursor cursor = database.query(ArchiveEntry.TABLE_NAME, new String[] {
+                    ArchiveEntry.COLUMN_TITLE, ArchiveEntry.COLUMN_DETAILS, ArchiveEntry.COLUMN_CREATED },
+                    ArchiveEntry._ID + "=?", idArgs, null, null, null);
+            try {
+                if (!cursor.moveToFirst()) {
+                    return -1;
+                }
+                values.put(TaskEntry.COLUMN_TASK_TITLE, cursor.getString(0));
+                values.put(TaskEntry.COLUMN_TASK_DETAILS, cursor.getString(1));
+                values.put(TaskEntry.COLUMN_TASK_CREATED, cursor.getLong(2));
+            } finally {
+                cursor.close();
+            }
+            values.put(TaskEntry.COLUMN_TASK_STATUS, TaskEntry.STATUS_COMPLETED);
+            values.put(TaskEntry.COLUMN_TASK_POSITION,
+                    lastPosition(database, TaskEntry.STATUS_COMPLETED) + WorkDbHelper.POSITION_GAP);
+            id = database.insertOrThrow(TaskEntry.TABLE_NAME, null, values);
+            database.delete(ArchiveEntry.TABLE_NAME, ArchiveEntry._ID + "=?", idArgs);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        mRowCache.invalidate(ArchiveEntry.TABLE_NAME, archivedId);
+        notifyChange(ArchiveEntry.CONTENT_URI);
+        Set<Integer> statuses = new HashSet<>();
+        statuses.add(TaskEntry.STATUS_COMPLETED);
+        notifyTaskChange(null, statuses, true);
+        flushNotifications();
+        return id;
+    }
+
+    /**
+     * Delete the tasks matching the selection. itemUri is the URI of the task when a single task
+     * is deleted by its URI, and null otherwise; the selection is then ignored.
+     *
+     * The tasks are only marked as deleted, and {@link TaskPurger} removes them later. Deleting
+     * every task doesn't touch the tasks at all: it moves the delete watermark past the last one.
+     */
+    private int deleteTasks(Uri itemUri, String selection, String[] selectionArgs) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        Set<Integer> statuses;
+        int rowsDeleted;
+
+        database.beginTransactionNonExclusive();
+        try {
+            // Find the tabs the tasks are in before they are gone
+            if (itemUri != null) {
+                long id = ContentUris.parseId(itemUri);
+                statuses = taskStatus(database, id);
+                rowsDeleted = executeById(database, TASK_DELETE_SQL, new String[0], null, id);
+            } else if (TextUtils.isEmpty(selection)) {
+                statuses = new HashSet<>();
+                rowsDeleted = clearTasks(database, statuses);
+            } else {
+                selection = appendSelection(selection, WorkDbHelper.LIVE_TASKS);
+                statuses = taskStatuses(database, selection, selectionArgs);
+                ContentValues deleted = new ContentValues();
+                deleted.put(WorkDbHelper.COLUMN_TASK_DELETED, 1);
+                rowsDeleted = database.update(TaskEntry.TABLE_NAME, deleted, selection, selectionArgs);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (rowsDeleted != 0) {
+            invalidateRows(TaskEntry.TABLE_NAME, itemUri);
+            notifyTaskChange(itemUri, statuses, true);
+            mPurger.schedule();
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Delete every task by moving the delete watermark to the highest task _id. _id is
+     * AUTOINCREMENT, so tasks inserted later always land above it. Adds the statuses that had
+     * tasks to the given set, and returns the number of tasks deleted.
+     */
+    private static int clearTasks(SQLiteDatabase database, Set<Integer> statuses) {
+        int rowsDeleted = 0;
+        Cursor cursor = database.query(TaskCountEntry.TABLE_NAME,
+                new String[] { TaskCountEntry.COLUMN_STATUS, TaskCountEntry.COLUMN_COUNT },
+                TaskCountEntry.COLUMN_COUNT + " > 0", null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                statuses.add(cursor.getInt(0));
+                rowsDeleted += cursor.getInt(1);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        database.execSQL("UPDATE " + WorkDbHelper.TABLE_TASK_WATERMARK + " SET "
+                + WorkDbHelper.COLUMN_DELETED_THROUGH + " = (SELECT IFNULL(MAX(" + TaskEntry._ID + "), 0) FROM "
+                + TaskEntry.TABLE_NAME + ")");
+        database.execSQL("UPDATE " + TaskCountEntry.TABLE_NAME + " SET " + TaskCountEntry.COLUMN_COUNT + " = 0");
         return rowsDeleted;
     }
 
+    /**
+     * Move a task so it follows the task afterId in the list of its status, or to the top of the
+     * list if afterId is 0, by giving it a position between its new neighbours. Only the moved
+     * task is written. If its neighbours have run out of positions between them, the tasks after
+     * the new place are shifted up first; once the gaps get small, the list is renumbered in the
+     * background so that hardly ever happens.
+     */
+    private void moveTask(long id, long afterId) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        Set<Integer> statuses;
+        boolean crowded = false;
+
+        database.beginTransactionNonExclusive();
+        try {
+            statuses = taskStatus(database, id);
+            if (statuses.isEmpty() || afterId == id) {
+                // The task is gone, or stays where it is
+                return;
+            }
+            int status = statuses.iterator().next();
+            Long previous = null;
+            Long next;
+            if (afterId == 0) {
+                next = queryLong(database, TASK_FIRST_POSITION_SQL, status, id);
+            } else {
+                previous = queryLong(database, TASK_POSITION_SQL, afterId, status);
+                if (previous == null) {
+                    // The task to follow has been deleted or moved to another status
+                    return;
+                }
+                next = queryLong(database, TASK_NEXT_POSITION_SQL, status, id, previous, previous, afterId);
+            }
+
+            long position;
+            if (next == null) {
+                position = previous == null ? WorkDbHelper.POSITION_GAP : previous + WorkDbHelper.POSITION_GAP;
+            } else if (previous == null) {
+                position = next - WorkDbHelper.POSITION_GAP;
+            } else {
+                if (next - previous < 2) {
+                    database.execSQL(TASK_MAKE_ROOM_SQL, new Object[] { status, previous, previous, afterId });
+                    next += WorkDbHelper.POSITION_GAP;
+                }
+                position = previous + (next - previous) / 2;
+                crowded = next - previous < 2 * CROWDED_POSITION_GAP;
+            }
+            ContentValues values = new ContentValues();
+            values.put(TaskEntry.COLUMN_TASK_POSITION, position);
+            executeById(database, TASK_MOVE_SQL, new String[] { TaskEntry.COLUMN_TASK_POSITION }, values, id);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        Uri itemUri = ContentUris.withAppendedId(TaskEntry.CONTENT_URI, id);
+        invalidateRows(TaskEntry.TABLE_NAME, itemUri);
+        notifyTaskChange(itemUri, statuses, false);
+        flushNotifications();
+        if (crowded) {
+            mRenumberer.schedule(statuses.iterator().next());
+        }
+    }
+
+    /**
+     * Returns the highest position in use in the given status, or 0 if there is none.
+     */
+    private long lastPosition(SQLiteDatabase database, int status) {
+        return queryLong(database, TASK_LAST_POSITION_SQL, status);
+    }
+
+    /**
+     * Run a pooled query returning a single number, or null if it returned no row.
+     */
+    private Long queryLong(SQLiteDatabase database, String sql, Object... args) {
+        SQLiteStatement statement = mStatements.acquire(database, sql);
+        try {
+            for (int i = 0; i < args.length; i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, args[i]);
+            }
+            return statement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return null;
+        } finally {
+            mStatements.release(database, sql, statement);
+        }
+    }
+
+    /**
+     * Returns the revision an update of the row at itemUri is conditional on (see
+     * {@link WorkContract#QUERY_REVISION}), or null if it isn't conditional.
+     */
+    private static Long expectedRevision(Uri itemUri) {
+        String revision = itemUri == null ? null : itemUri.getQueryParameter(WorkContract.QUERY_REVISION);
+        if (revision == null) {
+            return null;
+        }
+        if (!isPositiveNumber(revision) && !"0".equals(revision)) {
+            throw new IllegalArgumentException("Invalid revision in " + itemUri);
+        }
+        return Long.parseLong(revision);
+    }
+
+    /**
+     * After a conditional update of the row at itemUri changed nothing, throw a
+     * {@link WriteConflictException} if the row is there at another revision. A row that is
+     * gone is left to the caller, like any other update of a missing row.
+     */
+    private void checkRevision(SQLiteDatabase database, String revisionSql, Uri itemUri, long expectedRevision) {
+        Long revision = queryLong(database, revisionSql, ContentUris.parseId(itemUri));
+        if (revision != null) {
+            throw new WriteConflictException(itemUri, expectedRevision, revision);
+        }
+    }
+
+    /**
+     * Drop written rows from the row cache: the one row of itemUri, or the whole table when
+     * the rows were picked by a selection (itemUri is null).
+     */
+    private void invalidateRows(String table, Uri itemUri) {
+        if (itemUri != null) {
+            mRowCache.invalidate(table, ContentUris.parseId(itemUri));
+        } else {
+            mRowCache.invalidateTable(table);
+        }
+    }
+
+    /**
+     * Returns the distinct statuses of the tasks matching the selection. With the status index
+     * this reads the index only, not the rows.
+     */
+    private static Set<Integer> taskStatuses(SQLiteDatabase database, String selection, String[] selectionArgs) {
+        Set<Integer> statuses = new HashSet<>();
+        Cursor cursor = database.query(true, TaskEntry.TABLE_NAME, new String[] { TaskEntry.COLUMN_TASK_STATUS },
+                selection, selectionArgs, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                statuses.add(cursor.getInt(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return statuses;
+    }
+
+    /**
+     * Returns the status of the task with the given _id, as a set like {@link #taskStatuses}:
+     * empty if there is no such task.
+     */
+    private Set<Integer> taskStatus(SQLiteDatabase database, long id) {
+        Set<Integer> statuses = new HashSet<>();
+        SQLiteStatement statement = mStatements.acquire(database, TASK_STATUS_SQL);
+        try {
+            statement.bindLong(1, id);
+            statuses.add((int) statement.simpleQueryForLong());
+        } catch (SQLiteDoneException e) {
+            // No task with this id
+        } finally {
+            mStatements.release(database, TASK_STATUS_SQL, statement);
+        }
+        return statuses;
+    }
+
+    /**
+     * Run a pooled "... WHERE _id = ?" write for the row with the given id. The values of the
+     * given columns are bound in order, with their own type, followed by the id.
+     * Returns the number of rows changed.
+     */
+    private int executeById(SQLiteDatabase database, String sql, String[] columns, ContentValues values, long id) {
+        return executeById(database, sql, columns, values, id, null);
+    }
+
+    /**
+     * Like {@link #executeById(SQLiteDatabase, String, String[], ContentValues, long)}, binding
+     * the revision, if not null, after the _id.
+     */
+    private int executeById(SQLiteDatabase database, String sql, String[] columns, ContentValues values, long id,
+                            Long revision) {
+        SQLiteStatement statement = mStatements.acquire(database, sql);
+        try {
+            for (int i = 0; i < columns.length; i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns[i]));
+            }
+            statement.bindLong(columns.length + 1, id);
+            if (revision != null) {
+                statement.bindLong(columns.length + 2, revision);
+            }
+            return statement.executeUpdateDelete();
+        } finally {
+            mStatements.release(database, sql, statement);
+        }
+    }
+
+    /**
+     * Returns the index of the shape that sets exactly the columns in the given values, or -1.
+     */
+    private static int indexOfShape(ContentValues values, String[][] shapes) {
+        for (int i = 0; i < shapes.length; i++) {
+            if (shapes[i].length == values.size() && hasOnlyKeys(values, shapes[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns "UPDATE table SET a = ?, b = ? WHERE _id = ?" for each list of columns, with the
+     * extra condition (if not null) added to the WHERE clause.
+     */
+    private static String[] buildUpdateByIdSql(String table, String[][] shapes, String condition) {
+        String[] sql = new String[shapes.length];
+        for (int i = 0; i < shapes.length; i++) {
+            StringBuilder builder = new StringBuilder("UPDATE ").append(table).append(" SET ");
+            for (int j = 0; j < shapes[i].length; j++) {
+                if (j > 0) {
+                    builder.append(", ");
+                }
+                builder.append(shapes[i][j]).append(" = ?");
+            }
+            builder.append(" WHERE ").append(BaseColumns._ID).append(" = ?");
+            if (condition != null) {
+                builder.append(" AND ").append(condition);
+            }
+            sql[i] = builder.toString();
+        }
+        return sql;
+    }
+
+    /**
+     * Notify the listeners of the tasks that changed: the task itself when it was changed by its
+     * URI, the lists of the given statuses, and the task counts if tasks were added, removed or
+     * moved to another status. Lists of other statuses are left alone, so their tabs don't reload.
+     */
+    private void notifyTaskChange(Uri itemUri, Set<Integer> statuses, boolean countsChanged) {
+        if (itemUri != null) {
+            notifyChange(itemUri);
+        }
+        for (int status : statuses) {
+            notifyChange(TaskEntry.buildStatusUri(status));
+        }
+        if (countsChanged) {
+            notifyChange(TaskCountEntry.CONTENT_URI);
+        }
+    }
+
+    /**
+     * Apply all the operations in a single transaction. Either every operation is applied or,
+     * if one of them fails, none of them are. Change notifications are held until the batch
+     * commits and then sent once per distinct URI.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        Set<Uri> changedUris = new HashSet<>();
+        ContentProviderResult[] results;
+
+        mPendingNotifications.set(changedUris);
+        database.beginTransactionNonExclusive();
+        try {
+            results = super.applyBatch(operations);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            mPendingNotifications.remove();
+            // Rows may have been cached from before the commit while the batch was running
+            mRowCache.invalidateAll();
+        }
+
+        // The batch is committed, so let its listeners know right away
+        mNotifier.notifyChange(changedUris);
+        mNotifier.flush();
+        return results;
+    }
+
+    /**
+     * Notify listeners that the data at the given URI has changed. If a batch is running on
+     * this thread, the notification is held until the batch commits; otherwise it is merged
+     * with other changes to the same URI over a short window. Observers of the change feed are
+     * notified along with every other URI, as any change of the data may have added records.
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> pending = mPendingNotifications.get();
+        if (pending != null) {
+            pending.add(uri);
+            pending.add(ChangeEntry.CONTENT_URI);
+        } else {
+            mNotifier.notifyChange(uri);
+            mNotifier.notifyChange(ChangeEntry.CONTENT_URI);
+        }
+    }
+
+    /**
+     * Send the notifications held so far, at the end of a transaction. Inside a batch they are
+     * sent when the batch commits instead.
+     */
+    private void flushNotifications() {
+        if (mPendingNotifications.get() == null) {
+            mNotifier.flush();
+        }
+    }
+
+    /**
+     * Run the provider methods of {@link WorkContract}: {@link WorkContract#METHOD_MAINTENANCE},
+     * {@link WorkContract#METHOD_SET_SLOW_QUERY_THRESHOLD}, {@link WorkContract#METHOD_MOVE_TASK},
+     * {@link WorkContract#METHOD_SET_ARCHIVE_AGE}, {@link WorkContract#METHOD_RESTORE_TASK},
+     * {@link WorkContract#METHOD_WRITE_SNAPSHOT}, {@link WorkContract#METHOD_RESTORE_SNAPSHOT}
+     * and {@link WorkContract#METHOD_SYNC}.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WorkContract.METHOD_SYNC.equals(method)) {
+            if (arg == null || !(arg.startsWith("http://") || arg.startsWith("https://"))) {
+                throw new IllegalArgumentException("Invalid sync server " + arg);
+            }
+            TaskSyncer.Result synced;
+            try {
+                synced = mSyncer.sync(arg);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to sync with " + arg, e);
+            }
+            Bundle result = new Bundle();
+            result.putInt(WorkContract.EXTRA_SYNC_ROWS_SENT, synced.rowsSent);
+            result.putInt(WorkContract.EXTRA_SYNC_ROWS_RECEIVED, synced.rowsReceived);
+            result.putLong(WorkContract.EXTRA_SYNC_BYTES_SENT, synced.bytesSent);
+            result.putLong(WorkContract.EXTRA_SYNC_BYTES_RECEIVED, synced.bytesReceived);
+            return result;
+        }
+        if (WorkContract.METHOD_WRITE_SNAPSHOT.equals(method)
+                || WorkContract.METHOD_RESTORE_SNAPSHOT.equals(method)) {
+            if (arg == null || !arg.startsWith("/")) {
+                throw new IllegalArgumentException("Invalid snapshot path " + arg);
+            }
+            Bundle result = new Bundle();
+            result.putInt(WorkContract.EXTRA_ROW_COUNT, WorkContract.METHOD_WRITE_SNAPSHOT.equals(method)
+                    ? writeSnapshot(new File(arg)) : restoreSnapshot(new File(arg)));
+            return result;
+        }
+        if (WorkContract.METHOD_SET_ARCHIVE_AGE.equals(method)) {
+            if (arg == null || !isPositiveNumber(arg)) {
+                throw new IllegalArgumentException("Invalid archive age " + arg);
+            }
+            mPreferences.edit().putLong(TaskArchiver.PREF_ARCHIVE_AGE_DAYS, Long.parseLong(arg)).apply();
+            mArchiver.schedule();
+            return null;
+        }
+        if (WorkContract.METHOD_RESTORE_TASK.equals(method)) {
+            if (arg == null || !isPositiveNumber(arg)) {
+                throw new IllegalArgumentException("Invalid archived task " + arg);
+            }
+            long id = restoreTask(Long.parseLong(arg));
+            if (id == -1) {
+                return null;
+            }
+            Bundle result = new Bundle();
+            result.putLong(WorkContract.EXTRA_TASK_ID, id);
+            return result;
+        }
+        if (WorkContract.METHOD_MOVE_TASK.equals(method)) {
+            long afterId = extras == null ? 0 : extras.getLong(WorkContract.EXTRA_AFTER_ID);
+            if (arg == null || !isPositiveNumber(arg) || afterId < 0) {
+                throw new IllegalArgumentException("Invalid task move " + arg + " after " + afterId);
+            }
+            moveTask(Long.parseLong(arg), afterId);
+            return null;
+        }
+        if (WorkContract.METHOD_SET_SLOW_QUERY_THRESHOLD.equals(method)) {
+            if (arg == null || !(isPositiveNumber(arg) || "0".equals(arg))) {
+                throw new IllegalArgumentException("Invalid slow query threshold " + arg);
+            }
+            mSlowQueries.setThresholdMillis(Long.parseLong(arg));
+            return null;
+        }
+        if (WorkContract.METHOD_MAINTENANCE.equals(method)) {
+            long budget = extras == null ? DEFAULT_MAINTENANCE_BUDGET_MILLIS
+                    : extras.getLong(WorkContract.EXTRA_TIME_BUDGET_MILLIS, DEFAULT_MAINTENANCE_BUDGET_MILLIS);
+            Bundle result = new Bundle();
+            result.putBoolean(WorkContract.EXTRA_MAINTENANCE_DONE, mMaintenance.run(budget));
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    private int writeSnapshot(File file) {
+        try {
+            return WorkSnapshot.write(mDbHelper.getWritableDatabase(), file);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to write snapshot " + file, e);
+        }
+    }
+
+    /**
+     * Replace the tasks and reminders with those of the snapshot in file, and let every list
+     * know they have all changed.
+     */
+    private int restoreSnapshot(File file) {
+        int rows;
+        try {
+            rows = WorkSnapshot.restore(mDbHelper.getWritableDatabase(), file);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to restore snapshot " + file, e);
+        } finally {
+            // The rows may be anything now, even if the restore failed part way and rolled back
+            mRowCache.invalidateAll();
+        }
+        notifyChange(TaskEntry.CONTENT_URI);
+        notifyChange(ReminderEntry.CONTENT_URI);
+        notifyChange(SearchEntry.CONTENT_URI);
+        // Copies of the restored tasks are dropped from the archive
+        notifyChange(ArchiveEntry.CONTENT_URI);
+        flushNotifications();
+        return rows;
+    }
+
+    /**
+     * Open an export of the database for reading (see {@link ExportEntry}). The export is written
+     * into a pipe on a background thread while the caller reads the other end, so the caller can
+     * start reading right away and the export is never held in memory as a whole.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        String table;
+        switch (sUriMatcher.match(uri)) {
+            case EXPORT:
+                table = null;
+                break;
+            case EXPORT_TABLE:
+                table = uri.getLastPathSegment();
+                if (!DatabaseExporter.isTable(table)) {
+                    throw new FileNotFoundException("No table to export at " + uri);
+                }
+                break;
+            default:
+                throw new FileNotFoundException("No file at " + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Exports can only be read, not opened with mode " + mode);
+        }
+        String mimeType = exportType(uri, table);
+        if (mimeType == null) {
+            throw new IllegalArgumentException("Unsupported export format in " + uri);
+        }
+        return openPipeHelper(uri, mimeType, null, table, mExporter);
+    }
+
+    /**
+     * Returns the MIME type of the export at the URI, or null if its format isn't supported.
+     * table is the exported table, or null for the whole database, which is only exported as JSON.
+     */
+    private static String exportType(Uri uri, String table) {
+        String format = uri.getQueryParameter(ExportEntry.QUERY_FORMAT);
+        if (format == null || ExportEntry.FORMAT_JSON.equals(format)) {
+            return ExportEntry.JSON_TYPE;
+        }
+        if (ExportEntry.FORMAT_CSV.equals(format) && table != null) {
+            return ExportEntry.CSV_TYPE;
+        }
+        return null;
+    }
+
+    /**
+     * Print the provider's state for "adb shell dumpsys activity provider".
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        long requested = mNotifier.getRequestedCount();
+        long delivered = mNotifier.getDeliveredCount();
+        writer.println("Change notifications: requested=" + requested + " delivered=" + delivered
+                + " merged=" + (requested - delivered));
+        writer.println(mRowCache);
+        writer.println(mStatements);
+        writer.println(mPurger);
+        writer.println(mRenumberer);
+        writer.println(mArchiver);
+        writer.println(mSyncer);
+        writer.println(mMaintenance);
+        mMetrics.dump(writer);
+        mSlowQueries.dump(writer);
+    }
+
     /**
      * Returns the MIME type of data for the content URI.
      */
@@ -347,6 +2289,36 @@ public class WorkProvider extends ContentProvider {
                 return TaskEntry.CONTENT_LIST_TYPE;
             case TASK_ID:
                 return TaskEntry.CONTENT_ITEM_TYPE;
+            case TASKS_BY_STATUS:
+                return TaskEntry.CONTENT_LIST_TYPE;
+            case TASK_COUNTS:
+                return TaskCountEntry.CONTENT_LIST_TYPE;
+            case TASK_EVENTS:
+                return TaskEventEntry.CONTENT_LIST_TYPE;
+            case STATS:
+            case STATS_WEEKS:
+                return StatsEntry.CONTENT_LIST_TYPE;
+            case ARCHIVE:
+            case ARCHIVE_SEARCH:
+                return ArchiveEntry.CONTENT_LIST_TYPE;
+            case ARCHIVE_ID:
+                return ArchiveEntry.CONTENT_ITEM_TYPE;
+            case SEARCH:
+                return SearchEntry.CONTENT_LIST_TYPE;
+            case METRICS:
+                return MetricsEntry.CONTENT_LIST_TYPE;
+            case SLOW_QUERIES:
+                return SlowQueryEntry.CONTENT_LIST_TYPE;
+            case IMPORTS:
+                return ImportEntry.CONTENT_LIST_TYPE;
+            case CHANGES:
+                return ChangeEntry.CONTENT_LIST_TYPE;
+            case CHANGE_CONSUMERS:
+                return ChangeEntry.CONSUMERS_LIST_TYPE;
+            case EXPORT:
+                return exportType(uri, null);
+            case EXPORT_TABLE:
+                return exportType(uri, uri.getLastPathSegment());
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
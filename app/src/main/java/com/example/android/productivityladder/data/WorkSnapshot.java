@@ -0,0 +1,358 @@
+package com.example.android.productivityladder.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.productivityladder.data.WorkContract.ArchiveEntry;
+import com.example.android.productivityladder.data.WorkContract.ChangeEntry;
+import com.example.android.productivityladder.data.WorkContract.ReminderEntry;
+import com.example.android.productivityladder.data.WorkContract.TaskCountEntry;
+import com.example.android.productivityladder.data.WorkContract.TaskEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes and restores binary snapshots of the tasks and reminders, for backups that are much
+ * faster than going through ContentValues a row at a time. The layout, with every number
+ * big-endian:
+ * <pre>
+ * header:   int magic "PLSN", int format version
+ * sections: byte table tag, then per row: int record length, record; then an int 0
+ * strings:  int count, then per string: int length in bytes, UTF-8 bytes
+ * trailer:  long offset of the string table
+ * </pre>
+ * A task record holds its _id, title, details, status, position, created and completed time,
+ * and since version 2 its sync id, version and dirty count; a reminder record its _id, name,
+ * details, hours and minutes. Text is stored once in the string table and referred to by its
+ * index, or -1 for NULL, so a title repeated across many tasks costs four bytes per task. Records carry their length, so a later format version can append
+ * fields that this one skips over.
+ *
+ * A restore maps the file into memory, decodes the string table and feeds every record into
+ * one compiled insert per table, all in a single transaction. Restored tasks keep their sync id,
+ * so the sync sends them as updates rather than deleting every task on the server and adding it
+ * again under a new id; tasks from a version 1 snapshot get new ids.
+ */
+final class WorkSnapshot {
+
+    /** Version of the format written by {@link #write}; {@link #restore} reads this one and older */
+    static final int FORMAT_VERSION = 2;
+
+    private static final int MAGIC = 0x504c534e;
+    private static final byte TABLE_TASKS = 1;
+    private static final byte TABLE_REMINDERS = 2;
+    private static final int TASK_RECORD_LENGTH = 8 + 4 + 4 + 4 + 8 + 8 + 8 + 4 + 8 + 4;
+    private static final int REMINDER_RECORD_LENGTH = 8 + 4 + 4 + 4 + 4;
+
+    /** Rows read per query while writing */
+    private static final int PAGE_SIZE = 1000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] TASK_COLUMNS = { TaskEntry._ID, TaskEntry.COLUMN_TASK_TITLE,
+            TaskEntry.COLUMN_TASK_DETAILS, TaskEntry.COLUMN_TASK_STATUS, TaskEntry.COLUMN_TASK_POSITION,
+            TaskEntry.COLUMN_TASK_CREATED, TaskEntry.COLUMN_TASK_COMPLETED, WorkDbHelper.COLUMN_TASK_SYNC_ID,
+            WorkDbHelper.COLUMN_TASK_VERSION, WorkDbHelper.COLUMN_TASK_DIRTY };
+    private static final String[] REMINDER_COLUMNS = { ReminderEntry._ID, ReminderEntry.COLUMN_REMINDER_NAME,
+            ReminderEntry.COLUMN_REMINDER_DETAILS, ReminderEntry.COLUMN_TIME_HOURS,
+            ReminderEntry.COLUMN_TIME_MINUTES };
+
+    /** Sync id and version of the live tasks before a restore, to tell which restored tasks the server has */
+    private static final String TABLE_RESTORE_SYNCED = "temp.restore_synced";
+
+    private WorkSnapshot() {
+    }
+
+    /**
+     * Write a snapshot of the live tasks and the reminders to file. The rows are read in one
+     * transaction, so the snapshot is consistent. Returns the number of rows written.
+     */
+    static int write(SQLiteDatabase database, File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        Map<String, Integer> stringIds = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        int rows = 0;
+
+        try {
+            database.beginTransactionNonExclusive();
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+
+                out.writeByte(TABLE_TASKS);
+                long lastId = 0;
+                int pageRows;
+                do {
+                    Cursor cursor = database.query(TaskEntry.TABLE_NAME, TASK_COLUMNS,
+                            TaskEntry._ID + " > ? AND " + WorkDbHelper.LIVE_TASKS, new String[] { String.valueOf(lastId) },
+                            null, null, TaskEntry._ID, String.valueOf(PAGE_SIZE));
+                    try {
+                        pageRows = cursor.getCount();
+                        while (cursor.moveToNext()) {
+                            lastId = cursor.getLong(0);
+                            out.writeInt(TASK_RECORD_LENGTH);
+                            out.writeLong(lastId);
+                            out.writeInt(stringId(cursor.getString(1), stringIds, strings));
+                            out.writeInt(stringId(cursor.getString(2), stringIds, strings));
+                            out.writeInt(cursor.getInt(3));
+                            out.writeLong(cursor.getLong(4));
+                            out.writeLong(cursor.getLong(5));
+                            out.writeLong(cursor.getLong(6));
+                            out.writeInt(stringId(cursor.getString(7), stringIds, strings));
+                            out.writeLong(cursor.getLong(8));
+                            out.writeInt(cursor.getInt(9));
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                    rows += pageRows;
+                } while (pageRows == PAGE_SIZE);
+                out.writeInt(0);
+
+                out.writeByte(TABLE_REMINDERS);
+                lastId = 0;
+                do {
+                    Cursor cursor = database.query(ReminderEntry.TABLE_NAME, REMINDER_COLUMNS,
+                            ReminderEntry._ID + " > ?", new String[] { String.valueOf(lastId) },
+                            null, null, ReminderEntry._ID, String.valueOf(PAGE_SIZE));
+                    try {
+                        pageRows = cursor.getCount();
+                        while (cursor.moveToNext()) {
+                            lastId = cursor.getLong(0);
+                            out.writeInt(REMINDER_RECORD_LENGTH);
+                            out.writeLong(lastId);
+                            out.writeInt(stringId(cursor.getString(1), stringIds, strings));
+                            out.writeInt(stringId(cursor.getString(2), stringIds, strings));
+                            out.writeInt(cursor.getInt(3));
+                            out.writeInt(cursor.getInt(4));
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                    rows += pageRows;
+                } while (pageRows == PAGE_SIZE);
+                out.writeInt(0);
+
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+
+            // Snapshots are mapped to be restored, which limits them to 2GB, within the range of size()
+            long stringsOffset = out.size();
+            out.writeInt(strings.size());
+            for (String string : strings) {
+                byte[] bytes = string.getBytes(UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeLong(stringsOffset);
+        } finally {
+            out.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Replace every task and reminder with the rows of the snapshot in file, keeping their _id.
+     * Either the whole snapshot is restored or, if the file is damaged, nothing changes. Returns
+     * the number of rows restored.
+     */
+    static int restore(SQLiteDatabase database, File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return restore(database, buffer);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Damaged snapshot " + file, e);
+        } finally {
+            input.close();
+        }
+    }
+
+    private static int restore(SQLiteDatabase database, MappedByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a snapshot");
+        }
+        int version = buffer.getInt();
+        if (version < 1 || version > FORMAT_VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        int sectionsStart = buffer.position();
+
+        // Decode the string table first, so every record can be inserted as soon as it is read
+        long stringsOffset = buffer.getLong(buffer.limit() - 8);
+        if (stringsOffset < sectionsStart || stringsOffset > buffer.limit() - 8) {
+            throw new IOException("Damaged snapshot trailer");
+        }
+        buffer.position((int) stringsOffset);
+        int stringCount = buffer.getInt();
+        if (stringCount < 0) {
+            throw new IOException("Damaged string table");
+        }
+        String[] strings = new String[stringCount];
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < strings.length; i++) {
+            int length = buffer.getInt();
+            if (length > bytes.length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            buffer.get(bytes, 0, length);
+            strings[i] = new String(bytes, 0, length, UTF_8);
+        }
+        if (buffer.position() != buffer.limit() - 8) {
+            // A cut off file whose end happened to read as a string table
+            throw new IOException("Damaged string table");
+        }
+        buffer.position(sectionsStart);
+
+        int rows = 0;
+        database.beginTransactionNonExclusive();
+        SQLiteStatement insertTask = database.compileStatement("INSERT INTO " + TaskEntry.TABLE_NAME + " ("
+                + TaskEntry._ID + ", " + TaskEntry.COLUMN_TASK_TITLE + ", " + TaskEntry.COLUMN_TASK_DETAILS + ", "
+                + TaskEntry.COLUMN_TASK_STATUS + ", " + TaskEntry.COLUMN_TASK_POSITION + ", "
+                + TaskEntry.COLUMN_TASK_CREATED + ", " + TaskEntry.COLUMN_TASK_COMPLETED + ", "
+                + WorkDbHelper.COLUMN_TASK_SYNC_ID + ", " + WorkDbHelper.COLUMN_TASK_VERSION + ", "
+                + WorkDbHelper.COLUMN_TASK_DIRTY + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        SQLiteStatement insertReminder = database.compileStatement("INSERT INTO " + ReminderEntry.TABLE_NAME + " ("
+                + ReminderEntry._ID + ", " + ReminderEntry.COLUMN_REMINDER_NAME + ", "
+                + ReminderEntry.COLUMN_REMINDER_DETAILS + ", " + ReminderEntry.COLUMN_TIME_HOURS + ", "
+                + ReminderEntry.COLUMN_TIME_MINUTES + ") VALUES (?, ?, ?, ?, ?)");
+        try {
+            long lastChange = DatabaseUtils.longForQuery(database, "SELECT IFNULL(MAX("
+                    + ChangeEntry.COLUMN_SEQUENCE + "), 0) FROM " + ChangeEntry.TABLE_NAME, null);
+            database.execSQL("DROP TABLE IF EXISTS " + TABLE_RESTORE_SYNCED);
+            database.execSQL("CREATE TABLE " + TABLE_RESTORE_SYNCED + " AS SELECT " + WorkDbHelper.COLUMN_TASK_SYNC_ID
+                    + ", " + WorkDbHelper.COLUMN_TASK_VERSION + " FROM " + TaskEntry.TABLE_NAME
+                    + " WHERE " + WorkDbHelper.LIVE_TASKS);
+            // Removing task rows doesn't touch the counts (see WorkDbHelper version 8), so reset
+            // them along with the watermark, which would hide restored tasks with low _ids
+            database.delete(TaskEntry.TABLE_NAME, null, null);
+            database.delete(ReminderEntry.TABLE_NAME, null, null);
+            database.execSQL("UPDATE " + WorkDbHelper.TABLE_TASK_WATERMARK + " SET "
+                    + WorkDbHelper.COLUMN_DELETED_THROUGH + " = 0");
+            database.execSQL("UPDATE " + TaskCountEntry.TABLE_NAME + " SET " + TaskCountEntry.COLUMN_COUNT + " = 0");
+
+            while (buffer.position() < stringsOffset) {
+                byte table = buffer.get();
+                int length;
+                while ((length = buffer.getInt()) != 0) {
+                    int next = buffer.position() + length;
+                    if (table == TABLE_TASKS) {
+                        insertTask.bindLong(1, buffer.getLong());
+                        bindString(insertTask, 2, strings, buffer.getInt());
+                        bindString(insertTask, 3, strings, buffer.getInt());
+                        insertTask.bindLong(4, buffer.getInt());
+                        insertTask.bindLong(5, buffer.getLong());
+                        insertTask.bindLong(6, buffer.getLong());
+                        insertTask.bindLong(7, buffer.getLong());
+                        if (version >= 2) {
+                            bindString(insertTask, 8, strings, buffer.getInt());
+                            insertTask.bindLong(9, buffer.getLong());
+                            insertTask.bindLong(10, buffer.getInt());
+                        } else {
+                            // A new sync id from the tasks_sync_id trigger, and dirty to be sent
+                            insertTask.bindNull(8);
+                            insertTask.bindLong(9, 0);
+                            insertTask.bindLong(10, 1);
+                        }
+                        insertTask.executeInsert();
+                    } else if (table == TABLE_REMINDERS) {
+                        insertReminder.bindLong(1, buffer.getLong());
+                        bindString(insertReminder, 2, strings, buffer.getInt());
+                        bindString(insertReminder, 3, strings, buffer.getInt());
+                        insertReminder.bindLong(4, buffer.getInt());
+                        insertReminder.bindLong(5, buffer.getInt());
+                        insertReminder.executeInsert();
+                    } else {
+                        throw new IOException("Unknown snapshot table " + table);
+                    }
+                    // Skip any fields added by a later version of the format
+                    buffer.position(next);
+                    rows++;
+                }
+            }
+            if (buffer.position() != stringsOffset) {
+                throw new IOException("Damaged snapshot records");
+            }
+
+            // Deleting the tasks above queued a server delete for every synced one. Restored tasks
+            // aren't deleted, so drop theirs. A restored task the device didn't have live at the
+            // same version may differ from the server's, so it is sent again.
+            database.execSQL("DELETE FROM " + WorkDbHelper.TABLE_TASK_SYNC_DELETES + " WHERE "
+                    + WorkDbHelper.COLUMN_TASK_SYNC_ID + " IN (SELECT " + WorkDbHelper.COLUMN_TASK_SYNC_ID
+                    + " FROM " + TaskEntry.TABLE_NAME + ")");
+            database.execSQL("UPDATE " + TaskEntry.TABLE_NAME + " SET " + WorkDbHelper.COLUMN_TASK_DIRTY + " = "
+                    + WorkDbHelper.COLUMN_TASK_DIRTY + " + 1 WHERE " + WorkDbHelper.COLUMN_TASK_VERSION + " > 0"
+                    + " AND NOT EXISTS (SELECT 1 FROM " + TABLE_RESTORE_SYNCED + " s WHERE s."
+                    + WorkDbHelper.COLUMN_TASK_SYNC_ID + " = " + TaskEntry.TABLE_NAME + "." + WorkDbHelper.COLUMN_TASK_SYNC_ID
+                    + " AND s." + WorkDbHelper.COLUMN_TASK_VERSION + " = " + TaskEntry.TABLE_NAME + "."
+                    + WorkDbHelper.COLUMN_TASK_VERSION + ")");
+            database.execSQL("DROP TABLE " + TABLE_RESTORE_SYNCED);
+
+            // Tasks archived since the snapshot was written are live again. The archive keeps
+            // their _id, so drop their copies there, which would clash with archiving them again.
+            int unarchived = database.delete(ArchiveEntry.TABLE_NAME, ArchiveEntry._ID + " IN (SELECT "
+                    + TaskEntry._ID + " FROM " + TaskEntry.TABLE_NAME + ")", null);
+
+            // Every row changed, which the change feed says in a record per table rather than
+            // one per row deleted and inserted above
+            database.delete(ChangeEntry.TABLE_NAME, ChangeEntry.COLUMN_SEQUENCE + " > ?",
+                    new String[] { String.valueOf(lastChange) });
+            database.execSQL("INSERT INTO " + ChangeEntry.TABLE_NAME + " (" + ChangeEntry.COLUMN_SOURCE + ", "
+                    + ChangeEntry.COLUMN_OP + ") VALUES (" + ChangeEntry.SOURCE_TASKS + ", " + ChangeEntry.OP_RESET
+                    + "), (" + ChangeEntry.SOURCE_REMINDERS + ", " + ChangeEntry.OP_RESET + ")");
+            if (unarchived > 0) {
+                database.execSQL("INSERT INTO " + ChangeEntry.TABLE_NAME + " (" + ChangeEntry.COLUMN_SOURCE + ", "
+                        + ChangeEntry.COLUMN_OP + ") VALUES (" + ChangeEntry.SOURCE_ARCHIVE + ", "
+                        + ChangeEntry.OP_RESET + ")");
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            insertTask.close();
+            insertReminder.close();
+            database.endTransaction();
+        }
+        return rows;
+    }
+
+    /**
+     * Returns the index of value in the string table, adding it if it isn't there yet, or -1
+     * for NULL.
+     */
+    private static int stringId(String value, Map<String, Integer> stringIds, List<String> strings) {
+        if (value == null) {
+            return -1;
+        }
+        Integer id = stringIds.get(value);
+        if (id == null) {
+            id = strings.size();
+            strings.add(value);
+            stringIds.put(value, id);
+        }
+        return id;
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String[] strings, int id) {
+        if (id == -1) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, strings[id]);
+        }
+    }
+}
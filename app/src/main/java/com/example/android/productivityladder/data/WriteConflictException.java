@@ -0,0 +1,26 @@
+package com.example.android.productivityladder.data;
+
+import android.net.Uri;
+
+/**
+ * Thrown by a conditional update (see {@link WorkContract#QUERY_REVISION}) of a task or reminder
+ * that was changed since the revision the update was made against. Nothing was written.
+ */
+public class WriteConflictException extends IllegalStateException {
+
+    private final long mCurrentRevision;
+
+    WriteConflictException(Uri uri, long expectedRevision, long currentRevision) {
+        super("Conflicting update of " + uri + ": expected revision " + expectedRevision
+                + ", found " + currentRevision);
+        mCurrentRevision = currentRevision;
+    }
+
+    /**
+     * Returns the revision the row is at now, to retry the update against once the caller has
+     * decided what to do about the other change.
+     */
+    public long getCurrentRevision() {
+        return mCurrentRevision;
+    }
+}